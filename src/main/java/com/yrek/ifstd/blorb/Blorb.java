@@ -4,6 +4,9 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.LinkedList;
 import java.util.TreeMap;
 import java.util.Iterator;
@@ -58,9 +61,21 @@ public abstract class Blorb implements Closeable {
         return new ByteArrayBlorb(bytes);
     }
 
+    // A Blorb that can be shared by concurrent readers.
+    public static Blorb map(File file) throws IOException {
+        return new MappedBlorb(file);
+    }
+
     private final TreeMap<Long,Chunk> chunks = new TreeMap<Long,Chunk>();
     private final LinkedList<Resource> resources = new LinkedList<Resource>();
     private boolean initialized = false;
+    // Volatile so that lookups need not lock once the index is built.
+    // The resources and the index arrays are published by setting it.
+    private volatile boolean indexed = false;
+    // Open addressed table of resources keyed by usage and number.
+    private long[] indexKeys = new long[0];
+    private Resource[] indexResources = new Resource[0];
+    private volatile boolean metadataLoaded = false;
 
     public abstract void close() throws IOException;
 
@@ -70,10 +85,34 @@ public abstract class Blorb implements Closeable {
     protected abstract byte[] getChunkContents(long start, int length) throws IOException;
     protected abstract void writeChunk(long start, int length, OutputStream out) throws IOException;
 
-    public synchronized void init() throws IOException {
-        if (initialized) {
-            return;
+    protected ByteBuffer getChunkBuffer(long start, int length) throws IOException {
+        return ByteBuffer.wrap(getChunkContents(start, length)).asReadOnlyBuffer();
+    }
+
+    // Stops early if out is non-blocking and cannot take more.
+    protected long transferChunk(long start, int length, WritableByteChannel out) throws IOException {
+        ByteBuffer buffer = getChunkBuffer(start, length);
+        while (buffer.hasRemaining()) {
+            if (out.write(buffer) <= 0) {
+                break;
+            }
+        }
+        return buffer.position();
+    }
+
+    protected static long transfer(FileChannel channel, long start, int length, WritableByteChannel out) throws IOException {
+        long total = 0L;
+        while (total < length) {
+            long count = channel.transferTo(start + total, length - total, out);
+            if (count <= 0L) {
+                break;
+            }
+            total += count;
         }
+        return total;
+    }
+
+    private long readHeader() throws IOException {
         seek(0L);
         if (readInt() != FORM) {
             throw new IOException("Invalid file");
@@ -82,26 +121,90 @@ public abstract class Blorb implements Closeable {
         if (readInt() != IFRS) {
             throw new IOException("Invalid file");
         }
+        return eof;
+    }
+
+    // Reads every chunk header.
+    public synchronized void init() throws IOException {
+        if (initialized) {
+            return;
+        }
+        long eof = readHeader();
         if (eof > 12) {
             for (;;) {
                 Chunk chunk = new Chunk(getPosition(), readInt(), readInt());
-                chunks.put(chunk.start, chunk);
+                if (!chunks.containsKey(chunk.start)) {
+                    chunks.put(chunk.start, chunk);
+                }
                 if (chunk.start + 8 + chunk.length >= eof - 8) {
                     break;
                 }
                 seek(chunk.start + 8 + ((chunk.length+1)&0xfffffffe));
             }
         }
-        for (Chunk chunk : chunks.values()) {
-            if (chunk.id == RIdx) {
-                seek(chunk.start + 8);
-                int count = readInt();
-                for (int i = 0; i < count; i++) {
-                    resources.add(new Resource(readInt(), readInt(), readInt()));
+        initialized = true;
+        if (!indexed) {
+            for (Chunk chunk : chunks.values()) {
+                if (chunk.id == RIdx) {
+                    readIndex(chunk.start);
                 }
             }
+            buildIndex();
         }
-        initialized = true;
+    }
+
+    // Reads only the resource index, when it is the first chunk, as the
+    // Blorb specification requires.  The chunks of the resources are
+    // then read when they are first requested.
+    public synchronized void initIndex() throws IOException {
+        if (indexed) {
+            return;
+        }
+        long eof = readHeader();
+        if (eof <= 12 || readInt() != RIdx) {
+            init();
+            return;
+        }
+        readIndex(12L);
+        buildIndex();
+    }
+
+    private void readIndex(long start) throws IOException {
+        seek(start + 8);
+        int count = readInt();
+        for (int i = 0; i < count; i++) {
+            resources.add(new Resource(readInt(), readInt(), readInt()));
+        }
+    }
+
+    private void buildIndex() {
+        int size = 1;
+        while (size < 2*resources.size()) {
+            size *= 2;
+        }
+        indexKeys = new long[size];
+        indexResources = new Resource[size];
+        for (Resource resource : resources) {
+            long key = indexKey(resource.usage, resource.number);
+            int i = indexSlot(key);
+            while (indexResources[i] != null && indexKeys[i] != key) {
+                i = (i + 1) & (size - 1);
+            }
+            if (indexResources[i] == null) {
+                indexKeys[i] = key;
+                indexResources[i] = resource;
+            }
+        }
+        indexed = true;
+    }
+
+    private static long indexKey(int usage, int number) {
+        return ((long) usage << 32) | (0xffffffffL & number);
+    }
+
+    private int indexSlot(long key) {
+        long hash = key*0x9e3779b97f4a7c15L;
+        return (int) (hash ^ (hash >>> 32)) & (indexKeys.length - 1);
     }
 
     public Iterable<Chunk> chunks() throws IOException {
@@ -110,10 +213,147 @@ public abstract class Blorb implements Closeable {
     }
 
     public Iterable<Resource> resources() throws IOException {
-        init();
+        if (!indexed) {
+            initIndex();
+        }
         return resources;
     }
 
+    // Returns null if there is no such resource.
+    public Resource getResource(int usage, int number) throws IOException {
+        if (!indexed) {
+            initIndex();
+        }
+        if (indexKeys.length == 0) {
+            return null;
+        }
+        long key = indexKey(usage, number);
+        for (int i = indexSlot(key); indexResources[i] != null; i = (i + 1) & (indexKeys.length - 1)) {
+            if (indexKeys[i] == key) {
+                return indexResources[i];
+            }
+        }
+        return null;
+    }
+
+    public Chunk getChunk(int usage, int number) throws IOException {
+        Resource resource = getResource(usage, number);
+        return resource == null ? null : resource.getChunk();
+    }
+
+    // Sets size to the width and height of the picture, as for
+    // Glk.imageGetInfo(), reading only the PNG or JPEG header once.
+    public boolean getImageSize(int number, int[] size) throws IOException {
+        Resource resource = getResource(Pict, number);
+        if (resource == null || resource.getImageWidth() < 0) {
+            return false;
+        }
+        if (size != null) {
+            size[0] = resource.getImageWidth();
+            size[1] = resource.getImageHeight();
+        }
+        return true;
+    }
+
+    // Reads the Reso and RDes chunks into their resources.
+    private void loadMetadata() throws IOException {
+        if (metadataLoaded) {
+            return;
+        }
+        synchronized (this) {
+            if (metadataLoaded) {
+                return;
+            }
+            init();
+            for (Chunk chunk : chunks.values()) {
+                if (chunk.id == Reso) {
+                    seek(chunk.start + 8);
+                    int[] window = new int[6];
+                    for (int i = 0; i < window.length; i++) {
+                        window[i] = readInt();
+                    }
+                    for (int i = (chunk.length - 24)/28; i > 0; i--) {
+                        Resource resource = getResource(Pict, readInt());
+                        Resolution resolution = new Resolution(window, readInt(), readInt(), readInt(), readInt(), readInt(), readInt());
+                        if (resource != null) {
+                            resource.resolution = resolution;
+                        }
+                    }
+                } else if (chunk.id == RDes) {
+                    seek(chunk.start + 8);
+                    for (int i = readInt(); i > 0; i--) {
+                        Resource resource = getResource(readInt(), readInt());
+                        int length = readInt();
+                        long position = getPosition();
+                        if (resource != null) {
+                            resource.description = new String(getChunkContents(position, length), "UTF-8");
+                        }
+                        seek(position + length);
+                    }
+                }
+            }
+            metadataLoaded = true;
+        }
+    }
+
+    private static final long NeedMore = -2L;
+
+    // Returns the width and height packed into a long, -1 if the
+    // header cannot be parsed, or NeedMore if it is past the end of
+    // header.
+    private static long parseImageSize(int id, ByteBuffer header) {
+        int limit = header.limit();
+        if (id == PNG) {
+            if (limit < 24) {
+                return NeedMore;
+            } else if (header.getInt(12) != 0x49484452) {
+                return -1L;
+            }
+            return ((long) header.getInt(16) << 32) | (0xffffffffL & header.getInt(20));
+        } else if (id != JPEG) {
+            return -1L;
+        }
+        if (limit < 2) {
+            return NeedMore;
+        } else if ((header.getShort(0) & 0xffff) != 0xffd8) {
+            return -1L;
+        }
+        int position = 2;
+        for (;;) {
+            if (position + 4 > limit) {
+                return NeedMore;
+            } else if (header.get(position) != (byte) 0xff) {
+                return -1L;
+            }
+            int marker = header.get(position + 1) & 255;
+            if (marker == 0xff) {
+                position++;
+            } else if (marker == 0x01 || (marker >= 0xd0 && marker <= 0xd8)) {
+                position += 2;
+            } else if (marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc) {
+                // SOFn: length, precision, height, width
+                if (position + 9 > limit) {
+                    return NeedMore;
+                }
+                return ((long) (header.getShort(position + 7) & 0xffff) << 32) | (header.getShort(position + 5) & 0xffff);
+            } else if (marker == 0xd9 || marker == 0xda) {
+                return -1L;
+            } else {
+                position += 2 + (header.getShort(position + 2) & 0xffff);
+            }
+        }
+    }
+
+    private synchronized Chunk getChunk(long start) throws IOException {
+        Chunk chunk = chunks.get(start);
+        if (chunk == null && !initialized) {
+            seek(start);
+            chunk = new Chunk(start, readInt(), readInt());
+            chunks.put(start, chunk);
+        }
+        return chunk;
+    }
+
     public class Chunk {
         final long start;
         final int id;
@@ -137,15 +377,43 @@ public abstract class Blorb implements Closeable {
             return getChunkContents(start + 8, length);
         }
 
+        // A read-only buffer positioned at 0 with the contents, which
+        // may share storage with the Blorb.
+        public ByteBuffer getBuffer() throws IOException {
+            return getChunkBuffer(start + 8, length);
+        }
+
         public void write(OutputStream out) throws IOException {
             writeChunk(start + 8, length, out);
         }
+
+        // Returns the number of bytes written, which is less than the
+        // length only if out is non-blocking.
+        public long transferTo(WritableByteChannel out) throws IOException {
+            return transferTo(0L, length, out);
+        }
+
+        // Writes up to count bytes of the contents, starting at offset.
+        public long transferTo(long offset, long count, WritableByteChannel out) throws IOException {
+            if (offset < 0L || count < 0L) {
+                throw new IllegalArgumentException("Bad range");
+            }
+            if (offset >= length) {
+                return 0L;
+            }
+            return transferChunk(start + 8 + offset, (int) Math.min(count, length - offset), out);
+        }
     }
 
     public class Resource {
         final int usage;
         final int number;
         final long start;
+        private volatile Chunk chunk = null;
+        // Not yet read if Long.MIN_VALUE.
+        private volatile long imageSize = Long.MIN_VALUE;
+        private volatile Resolution resolution = null;
+        private volatile String description = null;
 
         Resource(int usage, int number, int start) {
             this.usage = usage;
@@ -161,8 +429,55 @@ public abstract class Blorb implements Closeable {
             return number;
         }
 
-        public Chunk getChunk() {
-            return chunks.get(start);
+        public Chunk getChunk() throws IOException {
+            Chunk chunk = this.chunk;
+            if (chunk == null) {
+                chunk = Blorb.this.getChunk(start);
+                this.chunk = chunk;
+            }
+            return chunk;
+        }
+
+        // -1 if the resource is not a PNG or JPEG picture.
+        public int getImageWidth() throws IOException {
+            return (int) (getImageSize() >> 32);
+        }
+
+        public int getImageHeight() throws IOException {
+            return (int) getImageSize();
+        }
+
+        private long getImageSize() throws IOException {
+            long imageSize = this.imageSize;
+            if (imageSize == Long.MIN_VALUE) {
+                imageSize = -1L;
+                Chunk chunk = usage == Pict ? getChunk() : null;
+                if (chunk != null) {
+                    for (int size = 1024; ; size *= 8) {
+                        imageSize = parseImageSize(chunk.id, getChunkBuffer(chunk.start + 8, Math.min(size, chunk.length)));
+                        if (imageSize != NeedMore) {
+                            break;
+                        } else if (size >= chunk.length) {
+                            imageSize = -1L;
+                            break;
+                        }
+                    }
+                }
+                this.imageSize = imageSize;
+            }
+            return imageSize;
+        }
+
+        // From the Reso chunk, or null.
+        public Resolution getResolution() throws IOException {
+            loadMetadata();
+            return resolution;
+        }
+
+        // From the RDes chunk, or null.
+        public String getDescription() throws IOException {
+            loadMetadata();
+            return description;
         }
 
         @Override
@@ -170,4 +485,37 @@ public abstract class Blorb implements Closeable {
             return "number " + getNumber() + " usage " + getUsage();
         }
     }
+
+    // The scaling rules for a picture: the standard, minimum and maximum
+    // window sizes, and the ratios applied to the picture, as
+    // numerator/denominator pairs.
+    public static final class Resolution {
+        public final int standardWidth;
+        public final int standardHeight;
+        public final int minWidth;
+        public final int minHeight;
+        public final int maxWidth;
+        public final int maxHeight;
+        public final int ratioNumerator;
+        public final int ratioDenominator;
+        public final int minRatioNumerator;
+        public final int minRatioDenominator;
+        public final int maxRatioNumerator;
+        public final int maxRatioDenominator;
+
+        Resolution(int[] window, int ratioNumerator, int ratioDenominator, int minRatioNumerator, int minRatioDenominator, int maxRatioNumerator, int maxRatioDenominator) {
+            this.standardWidth = window[0];
+            this.standardHeight = window[1];
+            this.minWidth = window[2];
+            this.minHeight = window[3];
+            this.maxWidth = window[4];
+            this.maxHeight = window[5];
+            this.ratioNumerator = ratioNumerator;
+            this.ratioDenominator = ratioDenominator;
+            this.minRatioNumerator = minRatioNumerator;
+            this.minRatioDenominator = minRatioDenominator;
+            this.maxRatioNumerator = maxRatioNumerator;
+            this.maxRatioDenominator = maxRatioDenominator;
+        }
+    }
 }
@@ -0,0 +1,261 @@
+package com.yrek.ifstd.blorb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+// Loaded resource contents, shared by the sessions of the games using
+// the same Blorb instances, holding up to maxBytes bytes of unreferenced
+// resources and evicting the least recently used first.  A resource is
+// loaded once however many sessions ask for it at the same time.
+//
+// Providers can call hint() from Glk.soundLoadHint() to load resources
+// in the background, so that acquiring them later does no I/O on the
+// interpreter thread.
+public class BlorbCache {
+    private final long maxBytes;
+    private final Executor executor;
+    private final LinkedHashMap<Key,Entry> entries = new LinkedHashMap<Key,Entry>(16, 0.75f, true);
+    private long size = 0L;
+    private long hitCount = 0L;
+    private long missCount = 0L;
+    private long evictionCount = 0L;
+
+    public BlorbCache(long maxBytes) {
+        this(maxBytes, Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "BlorbCache");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }));
+    }
+
+    public BlorbCache(long maxBytes, Executor executor) {
+        if (maxBytes < 0L) {
+            throw new IllegalArgumentException("Negative cache size");
+        }
+        this.maxBytes = maxBytes;
+        this.executor = executor;
+    }
+
+    private static final class Key {
+        final Blorb blorb;
+        final int usage;
+        final int number;
+
+        Key(Blorb blorb, int usage, int number) {
+            this.blorb = blorb;
+            this.usage = usage;
+            this.number = number;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return blorb == key.blorb && usage == key.usage && number == key.number;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(blorb) ^ usage ^ 31*number;
+        }
+    }
+
+    public final class Entry {
+        final Key key;
+        // Guarded by the cache.
+        int references = 0;
+        boolean loaded = false;
+        ByteBuffer buffer = null;
+        IOException error = null;
+
+        private Entry(Key key) {
+            this.key = key;
+        }
+
+        // The contents, positioned at 0.
+        public ByteBuffer getBuffer() {
+            return buffer.duplicate();
+        }
+
+        public int getLength() {
+            return buffer.capacity();
+        }
+
+        // Each acquire() must be matched by a release().  The buffers of
+        // a released entry may still be read.
+        public void release() {
+            synchronized (BlorbCache.this) {
+                if (references <= 0) {
+                    throw new IllegalStateException("Entry not acquired");
+                }
+                references--;
+                if (references == 0) {
+                    evict();
+                }
+            }
+        }
+
+        // Failures, including corrupt Blorbs, are passed on to every
+        // thread waiting for the entry, and the entry is dropped so that
+        // later calls try again.
+        private void load() {
+            ByteBuffer buffer = null;
+            IOException error = new IOException("Resource not loaded");
+            try {
+                Blorb.Chunk chunk = key.blorb.getChunk(key.usage, key.number);
+                if (chunk != null) {
+                    buffer = chunk.getBuffer();
+                }
+                error = null;
+            } catch (IOException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                error = new IOException(e);
+            } finally {
+                synchronized (BlorbCache.this) {
+                    this.loaded = true;
+                    this.buffer = buffer;
+                    this.error = error;
+                    if (buffer == null) {
+                        if (entries.get(key) == this) {
+                            entries.remove(key);
+                        }
+                    } else {
+                        size += buffer.capacity();
+                        evict();
+                    }
+                    BlorbCache.this.notifyAll();
+                }
+            }
+        }
+    }
+
+    // Returns null if there is no such resource.  Waits if another
+    // thread is loading it.
+    public Entry acquire(Blorb blorb, int usage, int number) throws IOException {
+        Key key = new Key(blorb, usage, number);
+        Entry entry;
+        boolean load = false;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry(key);
+                entries.put(key, entry);
+                load = true;
+                missCount++;
+            } else {
+                hitCount++;
+            }
+            entry.references++;
+        }
+        if (load) {
+            entry.load();
+        }
+        synchronized (this) {
+            try {
+                while (!entry.loaded) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                entry.references--;
+                throw new InterruptedIOException();
+            }
+            if (entry.buffer == null) {
+                entry.references--;
+                if (entry.error != null) {
+                    throw entry.error;
+                }
+                return null;
+            }
+        }
+        return entry;
+    }
+
+    // Loads the resource in the background, if it is not already cached.
+    public void prefetch(Blorb blorb, int usage, int number) {
+        Key key = new Key(blorb, usage, number);
+        final Entry entry;
+        synchronized (this) {
+            if (entries.containsKey(key)) {
+                return;
+            }
+            entry = new Entry(key);
+            entries.put(key, entry);
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                entry.load();
+            }
+        });
+    }
+
+    // As for Glk.soundLoadHint(): prefetches the resource if load is
+    // true, otherwise drops it if no one has it acquired.
+    public void hint(Blorb blorb, int usage, int number, boolean load) {
+        if (load) {
+            prefetch(blorb, usage, number);
+            return;
+        }
+        synchronized (this) {
+            Key key = new Key(blorb, usage, number);
+            Entry entry = entries.get(key);
+            if (entry != null && entry.loaded && entry.references == 0) {
+                entries.remove(key);
+                size -= entry.buffer.capacity();
+            }
+        }
+    }
+
+    // Drops the unreferenced resources of blorb, such as when it is
+    // closed.
+    public synchronized void remove(Blorb blorb) {
+        for (Iterator<Entry> i = entries.values().iterator(); i.hasNext(); ) {
+            Entry entry = i.next();
+            if (entry.key.blorb == blorb && entry.loaded && entry.references == 0) {
+                i.remove();
+                size -= entry.buffer.capacity();
+            }
+        }
+    }
+
+    private void evict() {
+        for (Iterator<Entry> i = entries.values().iterator(); size > maxBytes && i.hasNext(); ) {
+            Entry entry = i.next();
+            if (entry.loaded && entry.references == 0) {
+                i.remove();
+                size -= entry.buffer.capacity();
+                evictionCount++;
+            }
+        }
+    }
+
+    // The total size of the loaded resources, including acquired ones,
+    // which may exceed maxBytes.
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+}
@@ -3,6 +3,7 @@ package com.yrek.ifstd.blorb;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 public class ByteArrayBlorb extends Blorb {
@@ -44,6 +45,11 @@ public class ByteArrayBlorb extends Blorb {
         return Arrays.copyOfRange(bytes, (int) start, length + (int) start);
     }
 
+    @Override
+    protected ByteBuffer getChunkBuffer(long start, int length) throws IOException {
+        return ByteBuffer.wrap(bytes, (int) start, length).slice().asReadOnlyBuffer();
+    }
+
     @Override
     protected void writeChunk(long start, int length, OutputStream out) throws IOException {
         out.write(bytes, (int) start, length);
@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.channels.WritableByteChannel;
 
 public class FileBlorb extends Blorb {
     private final RandomAccessFile file;
@@ -32,8 +33,11 @@ public class FileBlorb extends Blorb {
         file.seek(position);
     }
 
+    // The file position is shared, so reads that seek hold the same lock
+    // as the lazy chunk lookup in Blorb, and BlorbCache can load from
+    // another thread.
     @Override
-    protected byte[] getChunkContents(long start, int length) throws IOException {
+    protected synchronized byte[] getChunkContents(long start, int length) throws IOException {
         file.seek(start);
         byte[] contents = new byte[length];
         file.readFully(contents);
@@ -41,7 +45,7 @@ public class FileBlorb extends Blorb {
     }
 
     @Override
-    protected void writeChunk(long start, int length, OutputStream out) throws IOException {
+    protected synchronized void writeChunk(long start, int length, OutputStream out) throws IOException {
         file.seek(start);
         int total = 0;
         byte[] buffer = new byte[8192];
@@ -54,4 +58,9 @@ public class FileBlorb extends Blorb {
             total += count;
         }
     }
+
+    @Override
+    protected long transferChunk(long start, int length, WritableByteChannel out) throws IOException {
+        return transfer(file.getChannel(), start, length, out);
+    }
 }
@@ -0,0 +1,125 @@
+package com.yrek.ifstd.blorb;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+// A Blorb file mapped read-only into memory, so that one instance can be
+// shared by all the sessions playing it.  After init(), reads do not
+// change any state, and chunk buffers are slices of the mapping.
+//
+// Files too big for one mapping are read with positional reads, which
+// do not share the file position, and chunks of at least MapThreshold
+// bytes are mapped on their own.
+public class MappedBlorb extends Blorb {
+    private static final int MapThreshold = 65536;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+    // Only used by init(), which is synchronized.
+    private long position = 0L;
+    private final ByteBuffer intBuffer = ByteBuffer.allocate(4);
+
+    public MappedBlorb(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        try {
+            this.channel = this.file.getChannel();
+            long size = channel.size();
+            this.map = size <= Integer.MAX_VALUE ? channel.map(FileChannel.MapMode.READ_ONLY, 0L, size) : null;
+        } catch (IOException e) {
+            this.file.close();
+            throw e;
+        }
+    }
+
+    // The mapping stays valid until it is garbage collected, so buffers
+    // returned by Chunk.getBuffer() may still be read after close().
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    @Override
+    protected int readInt() throws IOException {
+        int value;
+        if (map != null) {
+            if (position + 4L > map.limit()) {
+                throw new EOFException();
+            }
+            value = map.getInt((int) position);
+        } else {
+            intBuffer.clear();
+            read(intBuffer, position);
+            value = intBuffer.getInt(0);
+        }
+        position += 4L;
+        return value;
+    }
+
+    @Override
+    protected long getPosition() throws IOException {
+        return position;
+    }
+
+    @Override
+    protected void seek(long position) throws IOException {
+        this.position = position;
+    }
+
+    private void read(ByteBuffer buffer, long start) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    @Override
+    protected ByteBuffer getChunkBuffer(long start, int length) throws IOException {
+        if (map != null) {
+            if (start + length > map.limit()) {
+                throw new EOFException();
+            }
+            ByteBuffer buffer = map.duplicate();
+            buffer.limit((int) start + length).position((int) start);
+            return buffer.slice();
+        }
+        if (length >= MapThreshold) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        read(buffer, start);
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    @Override
+    protected byte[] getChunkContents(long start, int length) throws IOException {
+        byte[] contents = new byte[length];
+        getChunkBuffer(start, length).get(contents);
+        return contents;
+    }
+
+    @Override
+    protected void writeChunk(long start, int length, OutputStream out) throws IOException {
+        ByteBuffer buffer = getChunkBuffer(start, length);
+        byte[] bytes = new byte[Math.min(8192, length)];
+        while (buffer.hasRemaining()) {
+            int count = Math.min(bytes.length, buffer.remaining());
+            buffer.get(bytes, 0, count);
+            out.write(bytes, 0, count);
+        }
+    }
+
+    @Override
+    protected long transferChunk(long start, int length, WritableByteChannel out) throws IOException {
+        return transfer(channel, start, length, out);
+    }
+}
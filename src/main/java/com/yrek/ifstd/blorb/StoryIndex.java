@@ -0,0 +1,234 @@
+package com.yrek.ifstd.blorb;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+// A catalogue of story files, written by StoryIndexer.  The file is a
+// header, a table of fixed size records sorted by path, then the UTF-8
+// strings they refer to, so an opened index is read in place from its
+// mapping and find() is a binary search.
+public class StoryIndex {
+    private static final int Magic = 0x49466978; // IFix
+    private static final int Version = 1;
+    private static final int HeaderSize = 12;
+    private static final int RecordSize = 76;
+
+    public static final class Entry {
+        public final String path;
+        public final long lastModified;
+        public final long length;
+        // Blorb.IFRS for Blorb files, 0 for bare story files.
+        public final int container;
+        // Blorb.ZCOD or Blorb.GLUL, or 0 if unrecognized.
+        public final int format;
+        // The Z-machine version or the Glulx version.
+        public final int version;
+        // Release, serial and checksum are 0 or "" if unknown.
+        public final int release;
+        public final String serial;
+        public final int checksum;
+        public final int pictures;
+        public final int sounds;
+        public final int data;
+        // The Fspc picture, or -1.
+        public final int cover;
+        // The IFmd chunk, or "".
+        public final String metadata;
+
+        public Entry(String path, long lastModified, long length, int container, int format, int version, int release, String serial, int checksum, int pictures, int sounds, int data, int cover, String metadata) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.container = container;
+            this.format = format;
+            this.version = version;
+            this.release = release;
+            this.serial = serial;
+            this.checksum = checksum;
+            this.pictures = pictures;
+            this.sounds = sounds;
+            this.data = data;
+            this.cover = cover;
+            this.metadata = metadata;
+        }
+
+        @Override
+        public String toString() {
+            return path + " release " + release + " serial " + serial;
+        }
+    }
+
+    private static final Comparator<Entry> ByPath = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            return e1.path.compareTo(e2.path);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return this == obj;
+        }
+    };
+
+    private final ByteBuffer buffer;
+    private final int count;
+
+    private StoryIndex(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.limit() < HeaderSize || buffer.getInt(0) != Magic || buffer.getInt(4) != Version) {
+            throw new IOException("Invalid story index");
+        }
+        this.count = buffer.getInt(8);
+        if (count < 0 || HeaderSize + (long) count*RecordSize > buffer.limit()) {
+            throw new IOException("Invalid story index");
+        }
+    }
+
+    public static StoryIndex open(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            return new StoryIndex(in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0L, in.length()));
+        } finally {
+            in.close();
+        }
+    }
+
+    public static void write(File file, Collection<Entry> entries) throws IOException {
+        ArrayList<Entry> sorted = new ArrayList<Entry>(entries);
+        Collections.sort(sorted, ByPath);
+        byte[][] paths = new byte[sorted.size()][];
+        byte[][] metadata = new byte[sorted.size()][];
+        int offset = HeaderSize + sorted.size()*RecordSize;
+        for (int i = 0; i < sorted.size(); i++) {
+            paths[i] = utf8(sorted.get(i).path);
+            metadata[i] = utf8(sorted.get(i).metadata);
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(Magic);
+            out.writeInt(Version);
+            out.writeInt(sorted.size());
+            for (int i = 0; i < sorted.size(); i++) {
+                Entry entry = sorted.get(i);
+                out.writeInt(offset);
+                out.writeInt(paths[i].length);
+                offset += paths[i].length;
+                out.writeInt(offset);
+                out.writeInt(metadata[i].length);
+                offset += metadata[i].length;
+                out.writeLong(entry.lastModified);
+                out.writeLong(entry.length);
+                out.writeInt(entry.container);
+                out.writeInt(entry.format);
+                out.writeInt(entry.version);
+                out.writeInt(entry.release);
+                byte[] serial = new byte[6];
+                for (int j = 0; j < serial.length && j < entry.serial.length(); j++) {
+                    serial[j] = (byte) entry.serial.charAt(j);
+                }
+                out.write(serial);
+                out.writeShort(0);
+                out.writeInt(entry.checksum);
+                out.writeInt(entry.pictures);
+                out.writeInt(entry.sounds);
+                out.writeInt(entry.data);
+                out.writeInt(entry.cover);
+            }
+            for (int i = 0; i < sorted.size(); i++) {
+                out.write(paths[i]);
+                out.write(metadata[i]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public Entry get(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException();
+        }
+        int record = HeaderSize + index*RecordSize;
+        StringBuilder serial = new StringBuilder();
+        for (int i = 0; i < 6 && buffer.get(record + 48 + i) != 0; i++) {
+            serial.append((char) (buffer.get(record + 48 + i) & 255));
+        }
+        return new Entry(getString(record), buffer.getLong(record + 16), buffer.getLong(record + 24), buffer.getInt(record + 32), buffer.getInt(record + 36), buffer.getInt(record + 40), buffer.getInt(record + 44), serial.toString(), buffer.getInt(record + 56), buffer.getInt(record + 60), buffer.getInt(record + 64), buffer.getInt(record + 68), buffer.getInt(record + 72), getString(record + 8));
+    }
+
+    // Returns null if path is not in the index.
+    public Entry find(String path) {
+        byte[] key = utf8(path);
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compare(HeaderSize + mid*RecordSize, key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return get(mid);
+            }
+        }
+        return null;
+    }
+
+    public List<Entry> entries() {
+        ArrayList<Entry> entries = new ArrayList<Entry>(count);
+        for (int i = 0; i < count; i++) {
+            entries.add(get(i));
+        }
+        return entries;
+    }
+
+    // Compares the path of the record with key.  UTF-8 byte order is
+    // code point order, which is String order outside the surrogates.
+    private int compare(int record, byte[] key) {
+        int offset = buffer.getInt(record);
+        int length = buffer.getInt(record + 4);
+        for (int i = 0; i < length && i < key.length; i++) {
+            int diff = (buffer.get(offset + i) & 255) - (key[i] & 255);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return length - key.length;
+    }
+
+    private String getString(int field) {
+        byte[] bytes = new byte[buffer.getInt(field + 4)];
+        ByteBuffer b = buffer.duplicate();
+        b.position(buffer.getInt(field));
+        b.get(bytes);
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] utf8(String string) {
+        try {
+            return string.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.yrek.ifstd.blorb;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Scans directories for Blorb and story files and reads their
+// StoryIndex entries on an executor, one task per file.  Only the chunk
+// headers and the chunks holding metadata are read, with positional
+// reads.  Files whose modification time and size match their entry in
+// the previous index are not read at all.
+public class StoryIndexer {
+    private static final String[] Extensions = {
+        ".blb", ".blorb", ".gblorb", ".glb", ".zblorb", ".zlb", ".ulx", ".z1", ".z2", ".z3", ".z4", ".z5", ".z6", ".z7", ".z8",
+    };
+    // Larger index and metadata chunks are not read.
+    private static final long MaxChunkRead = 1L << 20;
+
+    private final ExecutorService executor;
+    private final StoryIndex previous;
+    private final AtomicInteger readCount = new AtomicInteger();
+    private final AtomicInteger reusedCount = new AtomicInteger();
+    private final AtomicInteger failedCount = new AtomicInteger();
+
+    // previous may be null.
+    public StoryIndexer(ExecutorService executor, StoryIndex previous) {
+        this.executor = executor;
+        this.previous = previous;
+    }
+
+    // The directories are listed on the calling thread, and the files
+    // are read on the executor.
+    public List<StoryIndex.Entry> scan(File... roots) throws InterruptedException {
+        ArrayList<Future<StoryIndex.Entry>> futures = new ArrayList<Future<StoryIndex.Entry>>();
+        for (File root : roots) {
+            scan(root, futures);
+        }
+        ArrayList<StoryIndex.Entry> entries = new ArrayList<StoryIndex.Entry>();
+        for (Future<StoryIndex.Entry> future : futures) {
+            try {
+                StoryIndex.Entry entry = future.get();
+                if (entry != null) {
+                    entries.add(entry);
+                }
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        return entries;
+    }
+
+    private void scan(File file, List<Future<StoryIndex.Entry>> futures) {
+        if (file.isDirectory()) {
+            File[] files = file.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    if (f.isDirectory() || isStory(f)) {
+                        scan(f, futures);
+                    }
+                }
+            }
+        } else {
+            futures.add(executor.submit(new Scan(file)));
+        }
+    }
+
+    public int getReadCount() {
+        return readCount.get();
+    }
+
+    public int getReusedCount() {
+        return reusedCount.get();
+    }
+
+    // Files that looked like stories but could not be read.
+    public int getFailedCount() {
+        return failedCount.get();
+    }
+
+    // Returns null if the file cannot be read.
+    private final class Scan implements Callable<StoryIndex.Entry> {
+        private final File file;
+
+        Scan(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public StoryIndex.Entry call() {
+            String path = file.getPath();
+            long lastModified = file.lastModified();
+            long length = file.length();
+            StoryIndex.Entry entry = previous == null ? null : previous.find(path);
+            if (entry != null && entry.lastModified == lastModified && entry.length == length) {
+                reusedCount.incrementAndGet();
+                return entry;
+            }
+            try {
+                entry = read(file, lastModified, length);
+                readCount.incrementAndGet();
+                return entry;
+            } catch (IOException e) {
+                failedCount.incrementAndGet();
+                return null;
+            } catch (RuntimeException e) {
+                // Corrupt files are counted as failed rather than ending
+                // the scan.
+                failedCount.incrementAndGet();
+                return null;
+            }
+        }
+    }
+
+    static boolean isStory(File file) {
+        String name = file.getName().toLowerCase();
+        for (String extension : Extensions) {
+            if (name.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static StoryIndex.Entry read(File file) throws IOException {
+        return read(file, file.lastModified(), file.length());
+    }
+
+    private static StoryIndex.Entry read(File file, long lastModified, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return new Reader(file.getPath(), lastModified, length, raf.getChannel()).read();
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static final class Reader {
+        final String path;
+        final long lastModified;
+        final long length;
+        final FileChannel channel;
+        int container = 0;
+        int format = 0;
+        int version = 0;
+        int release = 0;
+        String serial = "";
+        int checksum = 0;
+        int pictures = 0;
+        int sounds = 0;
+        int data = 0;
+        int cover = -1;
+        String metadata = "";
+
+        Reader(String path, long lastModified, long length, FileChannel channel) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.channel = channel;
+        }
+
+        ByteBuffer read(long position, int count) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(count);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException();
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        StoryIndex.Entry read() throws IOException {
+            ByteBuffer header = read(0L, (int) Math.min(12L, length));
+            if (header.limit() == 12 && header.getInt(0) == Blorb.FORM && header.getInt(8) == Blorb.IFRS) {
+                readBlorb(Math.min(length, 8L + (0xffffffffL & header.getInt(4))));
+            } else {
+                readStory(0L, length);
+            }
+            return new StoryIndex.Entry(path, lastModified, length, container, format, version, release, serial, checksum, pictures, sounds, data, cover, metadata);
+        }
+
+        private void readBlorb(long eof) throws IOException {
+            container = Blorb.IFRS;
+            HashMap<Long,Integer> chunks = new HashMap<Long,Integer>();
+            ByteBuffer index = null;
+            for (long position = 12L; position + 8L <= eof; ) {
+                ByteBuffer header = read(position, 8);
+                int id = header.getInt(0);
+                long size = 0xffffffffL & header.getInt(4);
+                chunks.put(position, id);
+                long available = Math.min(size, eof - position - 8L);
+                if (id == Blorb.RIdx) {
+                    index = read(position + 8L, (int) Math.min(available, MaxChunkRead));
+                } else if (id == Blorb.IFmd && available <= MaxChunkRead) {
+                    metadata = new String(read(position + 8L, (int) available).array(), "UTF-8");
+                } else if (id == Blorb.Fspc) {
+                    cover = read(position + 8L, 4).getInt(0);
+                }
+                position += 8L + ((size + 1L) & ~1L);
+            }
+            if (index == null || index.limit() < 4) {
+                return;
+            }
+            long exec = -1L;
+            for (int i = 0; i < index.getInt(0) && 16 + 12*i <= index.limit(); i++) {
+                int usage = index.getInt(4 + 12*i);
+                if (usage == Blorb.Pict) {
+                    pictures++;
+                } else if (usage == Blorb.Snd) {
+                    sounds++;
+                } else if (usage == Blorb.Data) {
+                    data++;
+                } else if (usage == Blorb.Exec && index.getInt(8 + 12*i) == 0) {
+                    exec = 0xffffffffL & index.getInt(12 + 12*i);
+                }
+            }
+            Integer id = chunks.get(exec);
+            if (id != null) {
+                format = id;
+                readStory(exec + 8L, 0xffffffffL & read(exec + 4L, 4).getInt(0));
+            }
+        }
+
+        private void readStory(long start, long size) throws IOException {
+            ByteBuffer header = read(start, (int) Math.min(size, 64L));
+            if (header.limit() >= 36 && header.getInt(0) == 0x476c756c) {
+                format = Blorb.GLUL;
+                version = header.getInt(4);
+                checksum = header.getInt(32);
+                // Inform's header extension
+                if (header.limit() >= 60 && header.getInt(36) == 0x496e666f) {
+                    release = header.getShort(52) & 0xffff;
+                    serial = serial(header, 54);
+                }
+            } else if (header.limit() >= 64 && header.get(0) >= 1 && header.get(0) <= 8 && (format == 0 || format == Blorb.ZCOD)) {
+                format = Blorb.ZCOD;
+                version = header.get(0);
+                release = header.getShort(2) & 0xffff;
+                serial = serial(header, 0x12);
+                checksum = header.getShort(0x1c) & 0xffff;
+            }
+        }
+
+        private static String serial(ByteBuffer header, int offset) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 6; i++) {
+                int ch = header.get(offset + i) & 255;
+                if (ch < 0x20 || ch > 0x7e) {
+                    break;
+                }
+                sb.append((char) ch);
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.yrek.ifstd.glk;
+
+// Copies between Glk arrays, using the backing arrays when there are any.
+final class GlkArrays {
+    private static final int BufferSize = 1024;
+
+    private GlkArrays() {
+    }
+
+    static void copy(GlkByteArray src, int srcIndex, GlkByteArray dst, int dstIndex, int count) {
+        if (count <= 0) {
+            return;
+        }
+        byte[] srcArray = src.getBackingArray();
+        byte[] dstArray = dst.getBackingArray();
+        if (srcArray != null && dstArray != null) {
+            System.arraycopy(srcArray, src.getBackingOffset() + srcIndex, dstArray, dst.getBackingOffset() + dstIndex, count);
+        } else if (srcArray != null) {
+            dst.setBytes(dstIndex, srcArray, src.getBackingOffset() + srcIndex, count);
+        } else if (dstArray != null) {
+            src.getBytes(srcIndex, dstArray, dst.getBackingOffset() + dstIndex, count);
+        } else {
+            byte[] buffer = new byte[Math.min(count, BufferSize)];
+            for (int i = 0; i < count; i += buffer.length) {
+                int n = Math.min(count - i, buffer.length);
+                src.getBytes(srcIndex + i, buffer, 0, n);
+                dst.setBytes(dstIndex + i, buffer, 0, n);
+            }
+        }
+    }
+
+    static void copy(GlkIntArray src, int srcIndex, GlkIntArray dst, int dstIndex, int count) {
+        if (count <= 0) {
+            return;
+        }
+        byte[] srcArray = src.getBackingArray();
+        byte[] dstArray = dst.getBackingArray();
+        if (srcArray != null && dstArray != null) {
+            System.arraycopy(srcArray, src.getBackingOffset() + 4*srcIndex, dstArray, dst.getBackingOffset() + 4*dstIndex, 4*count);
+            return;
+        }
+        int[] buffer = new int[Math.min(count, BufferSize)];
+        for (int i = 0; i < count; i += buffer.length) {
+            int n = Math.min(count - i, buffer.length);
+            src.getInts(srcIndex + i, buffer, 0, n);
+            dst.setInts(dstIndex + i, buffer, 0, n);
+        }
+    }
+
+    static void copy(GlkByteArray src, int srcIndex, GlkIntArray dst, int dstIndex, int count) {
+        if (count <= 0) {
+            return;
+        }
+        byte[] bytes = new byte[Math.min(count, BufferSize)];
+        int[] ints = new int[bytes.length];
+        for (int i = 0; i < count; i += bytes.length) {
+            int n = Math.min(count - i, bytes.length);
+            src.getBytes(srcIndex + i, bytes, 0, n);
+            for (int j = 0; j < n; j++) {
+                ints[j] = bytes[j] & 255;
+            }
+            dst.setInts(dstIndex + i, ints, 0, n);
+        }
+    }
+
+    // Characters that do not fit in a byte are written as '?'.
+    static void copy(GlkIntArray src, int srcIndex, GlkByteArray dst, int dstIndex, int count) {
+        if (count <= 0) {
+            return;
+        }
+        int[] ints = new int[Math.min(count, BufferSize)];
+        byte[] bytes = new byte[ints.length];
+        for (int i = 0; i < count; i += ints.length) {
+            int n = Math.min(count - i, ints.length);
+            src.getInts(srcIndex + i, ints, 0, n);
+            for (int j = 0; j < n; j++) {
+                bytes[j] = (byte) toByte(ints[j]);
+            }
+            dst.setBytes(dstIndex + i, bytes, 0, n);
+        }
+    }
+
+    static void copy(CharSequence src, int srcIndex, GlkByteArray dst, int dstIndex, int count) {
+        if (count <= 0) {
+            return;
+        }
+        if (src instanceof GlkByteArrayString) {
+            GlkByteArrayString string = (GlkByteArrayString) src;
+            copy(string.byteArray, string.startIndex + srcIndex, dst, dstIndex, count);
+            return;
+        }
+        byte[] dstArray = dst.getBackingArray();
+        if (dstArray != null) {
+            int dstOffset = dst.getBackingOffset() + dstIndex;
+            for (int i = 0; i < count; i++) {
+                dstArray[dstOffset + i] = (byte) src.charAt(srcIndex + i);
+            }
+            return;
+        }
+        byte[] bytes = new byte[Math.min(count, BufferSize)];
+        for (int i = 0; i < count; i += bytes.length) {
+            int n = Math.min(count - i, bytes.length);
+            for (int j = 0; j < n; j++) {
+                bytes[j] = (byte) src.charAt(srcIndex + i + j);
+            }
+            dst.setBytes(dstIndex + i, bytes, 0, n);
+        }
+    }
+
+    static void copy(CharSequence src, int srcIndex, GlkIntArray dst, int dstIndex, int count) {
+        if (count <= 0) {
+            return;
+        }
+        int[] ints = new int[Math.min(count, BufferSize)];
+        for (int i = 0; i < count; i += ints.length) {
+            int n = Math.min(count - i, ints.length);
+            for (int j = 0; j < n; j++) {
+                ints[j] = src.charAt(srcIndex + i + j) & 255;
+            }
+            dst.setInts(dstIndex + i, ints, 0, n);
+        }
+    }
+
+    static void copy(UnicodeString src, int srcIndex, GlkByteArray dst, int dstIndex, int count) {
+        if (count <= 0) {
+            return;
+        }
+        byte[] bytes = new byte[Math.min(count, BufferSize)];
+        for (int i = 0; i < count; i += bytes.length) {
+            int n = Math.min(count - i, bytes.length);
+            for (int j = 0; j < n; j++) {
+                bytes[j] = (byte) toByte(src.codePointAt(srcIndex + i + j));
+            }
+            dst.setBytes(dstIndex + i, bytes, 0, n);
+        }
+    }
+
+    static void copy(UnicodeString src, int srcIndex, GlkIntArray dst, int dstIndex, int count) {
+        if (count <= 0) {
+            return;
+        }
+        if (src instanceof GlkIntArrayString) {
+            GlkIntArrayString string = (GlkIntArrayString) src;
+            copy(string.intArray, string.startIndex + srcIndex, dst, dstIndex, count);
+            return;
+        }
+        int[] ints = new int[Math.min(count, BufferSize)];
+        for (int i = 0; i < count; i += ints.length) {
+            int n = Math.min(count - i, ints.length);
+            for (int j = 0; j < n; j++) {
+                ints[j] = src.codePointAt(srcIndex + i + j);
+            }
+            dst.setInts(dstIndex + i, ints, 0, n);
+        }
+    }
+
+    // Returns the number of elements up to and including the first
+    // newline, but no more than count.
+    static int lineLength(GlkByteArray src, int srcIndex, int count) {
+        if (count <= 0) {
+            return 0;
+        }
+        byte[] srcArray = src.getBackingArray();
+        int srcOffset = src.getBackingOffset() + srcIndex;
+        if (srcArray == null) {
+            srcArray = new byte[count];
+            srcOffset = 0;
+            src.getBytes(srcIndex, srcArray, 0, count);
+        }
+        for (int i = 0; i < count; i++) {
+            if (srcArray[srcOffset + i] == '\n') {
+                return i + 1;
+            }
+        }
+        return count;
+    }
+
+    static int lineLength(GlkIntArray src, int srcIndex, int count) {
+        if (count <= 0) {
+            return 0;
+        }
+        int[] ints = new int[Math.min(count, BufferSize)];
+        for (int i = 0; i < count; i += ints.length) {
+            int n = Math.min(count - i, ints.length);
+            src.getInts(srcIndex + i, ints, 0, n);
+            for (int j = 0; j < n; j++) {
+                if (ints[j] == '\n') {
+                    return i + j + 1;
+                }
+            }
+        }
+        return count;
+    }
+
+    static int toByte(int ch) {
+        return ch >= 0 && ch < 256 ? ch : '?';
+    }
+}
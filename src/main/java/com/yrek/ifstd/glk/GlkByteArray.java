@@ -1,5 +1,7 @@
 package com.yrek.ifstd.glk;
 
+import java.nio.ByteBuffer;
+
 // Implemented by the Glk user
 public interface GlkByteArray {
     public int getByteElement();
@@ -12,4 +14,15 @@ public interface GlkByteArray {
     public int setWriteArrayIndex(int index);
     public int getArrayLength();
     public void setArrayLength(int length);
+
+    // Bulk transfers of count elements starting at index.
+    public void getBytes(int index, byte[] dst, int offset, int count);
+    public void setBytes(int index, byte[] src, int offset, int count);
+    public void getBytes(int index, ByteBuffer dst, int count);
+    public void setBytes(int index, ByteBuffer src, int count);
+
+    // Returns the array holding the elements, or null.  Element i is at
+    // getBackingOffset() + i.
+    public byte[] getBackingArray();
+    public int getBackingOffset();
 }
@@ -2,15 +2,23 @@ package com.yrek.ifstd.glk;
 
 public class GlkByteArrayString implements CharSequence {
     public final GlkByteArray byteArray;
-    private final int startIndex;
-    private final int endIndex;
+    final int startIndex;
+    final int endIndex;
 
     public GlkByteArrayString(GlkByteArray byteArray) {
         this.byteArray = byteArray;
         this.startIndex = 0;
         int end = startIndex;
-        while (byteArray.getByteElementAt(end) != 0) {
-            end++;
+        byte[] array = byteArray.getBackingArray();
+        if (array != null) {
+            int offset = byteArray.getBackingOffset();
+            while (array[offset + end] != 0) {
+                end++;
+            }
+        } else {
+            while (byteArray.getByteElementAt(end) != 0) {
+                end++;
+            }
         }
         this.endIndex = end;
     }
@@ -23,7 +31,7 @@ public class GlkByteArrayString implements CharSequence {
 
     @Override
     public char charAt(int index) {
-        return (char) (byteArray.getByteElementAt(startIndex + index));
+        return (char) (byteArray.getByteElementAt(startIndex + index) & 255);
     }
 
     @Override
@@ -38,10 +46,18 @@ public class GlkByteArrayString implements CharSequence {
 
     @Override
     public String toString() {
-        StringBuilder sb = new StringBuilder();
-        for (int i = startIndex; i < endIndex; i++) {
-            sb.append((char) (byteArray.getByteElementAt(startIndex + i)));
+        int length = endIndex - startIndex;
+        byte[] array = byteArray.getBackingArray();
+        int offset = byteArray.getBackingOffset() + startIndex;
+        if (array == null) {
+            array = new byte[length];
+            offset = 0;
+            byteArray.getBytes(startIndex, array, 0, length);
         }
-        return sb.toString();
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) (array[offset + i] & 255);
+        }
+        return new String(chars);
     }
 }
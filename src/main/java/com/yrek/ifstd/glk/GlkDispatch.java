@@ -1,5 +1,7 @@
 package com.yrek.ifstd.glk;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.util.Calendar;
 import java.util.List;
@@ -12,6 +14,8 @@ public class GlkDispatch {
     private final GlkObjectPool<GlkStream> streams;
     private final GlkObjectPool<GlkFile> files;
     private final GlkObjectPool<GlkSChannel> schannels;
+    private volatile long selectCount = 0L;
+    private GlkDispatchMetrics metrics = null;
 
     public GlkDispatch(Glk glk) {
         this(glk, null, null, null, null);
@@ -25,7 +29,41 @@ public class GlkDispatch {
         this.schannels = new GlkObjectPool<GlkSChannel>(schannels);
     }
 
+    public GlkDispatch(Glk glk, DataInput in, GlkObjectCodec<GlkWindow> windowCodec, GlkObjectCodec<GlkStream> streamCodec, GlkObjectCodec<GlkFile> fileCodec, GlkObjectCodec<GlkSChannel> schannelCodec) throws IOException {
+        this.glk = glk;
+        this.selectCount = in.readLong();
+        this.windows = new GlkObjectPool<GlkWindow>(in, windowCodec);
+        this.streams = new GlkObjectPool<GlkStream>(in, streamCodec);
+        this.files = new GlkObjectPool<GlkFile>(in, fileCodec);
+        this.schannels = new GlkObjectPool<GlkSChannel>(in, schannelCodec);
+    }
+
+    // Records the calls in metrics, or stops recording if metrics is null.
+    public void setMetrics(GlkDispatchMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public GlkDispatchMetrics getMetrics() {
+        return metrics;
+    }
+
     public int dispatch(int selector, GlkDispatchArgument[] args) throws IOException {
+        GlkDispatchMetrics metrics = this.metrics;
+        if (metrics == null) {
+            return call(selector, args);
+        }
+        long start = System.nanoTime();
+        try {
+            return call(selector, args);
+        } finally {
+            // select() records its own times.
+            if (selector != 0x00c0) {
+                metrics.record(selector, System.nanoTime() - start);
+            }
+        }
+    }
+
+    private int call(int selector, GlkDispatchArgument[] args) throws IOException {
         switch (selector) {
         case 0x0001: // exit
             glk.exit();
@@ -338,7 +376,7 @@ public class GlkDispatch {
                 return 1;
             }
         case 0x00c0: // select
-            setEvent(args[0], glk.select());
+            setEvent(args[0], select());
             return 0;
         case 0x00c1: // selectPoll
             setEvent(args[0], glk.selectPoll());
@@ -470,10 +508,10 @@ public class GlkDispatch {
         case 0x00f4: // sChannelCreateExt
             return schannels.add(glk.sChannelCreateExt(args[0].getInt(), args[1].getInt()));
         case 0x00f7: // sChannelPlayMulti
-            GlkIntArray intArray = args[0].getIntArray();
-            GlkSChannel[] channels = new GlkSChannel[args[1].getInt()];
+            int[] pointers = toIntArray(args[0].getIntArray(), args[1].getInt());
+            GlkSChannel[] channels = new GlkSChannel[pointers.length];
             for (int i = 0; i < channels.length; i++) {
-                channels[i] = schannels.get(intArray.getIntElementAt(i));
+                channels[i] = schannels.get(pointers[i]);
             }
             glk.sChannelPlayMulti(channels, toIntArray(args[2].getIntArray(), args[3].getInt()), args[4].getInt());
             return 0;
@@ -554,29 +592,35 @@ public class GlkDispatch {
         case 0x0120: // bufferToLowerCaseUni
             GlkIntArray buffer = withLength(args[0].getIntArray(), args[1].getInt());
             int length = args[2].getInt();
+            int[] codePoints = toIntArray(buffer, length);
             for (int i = 0; i < length; i++) {
-                buffer.setIntElementAt(i, Character.toLowerCase(buffer.getIntElementAt(i)));
+                codePoints[i] = Character.toLowerCase(codePoints[i]);
             }
+            buffer.setInts(0, codePoints, 0, length);
             return length;
         case 0x0121: // bufferToUpperCaseUni
             buffer = withLength(args[0].getIntArray(), args[1].getInt());
             length = args[2].getInt();
+            codePoints = toIntArray(buffer, length);
             for (int i = 0; i < length; i++) {
-                buffer.setIntElementAt(i, Character.toUpperCase(buffer.getIntElementAt(i)));
+                codePoints[i] = Character.toUpperCase(codePoints[i]);
             }
+            buffer.setInts(0, codePoints, 0, length);
             return length;
         case 0x0122: // bufferToTitleCaseUni
             buffer = withLength(args[0].getIntArray(), args[1].getInt());
             length = args[2].getInt();
             boolean toLower = args[3].getInt() != 0;
+            codePoints = toIntArray(buffer, length);
             if (length > 0) {
-                buffer.setIntElementAt(0, Character.toTitleCase(buffer.getIntElementAt(0)));
+                codePoints[0] = Character.toTitleCase(codePoints[0]);
             }
             if (toLower) {
                 for (int i = 1; i < length; i++) {
-                    buffer.setIntElementAt(i, Character.toLowerCase(buffer.getIntElementAt(i)));
+                    codePoints[i] = Character.toLowerCase(codePoints[i]);
                 }
             }
+            buffer.setInts(0, codePoints, 0, length);
             return length;
         case 0x0123: // bufferCanonDecomposeUni
             throw new RuntimeException("unimplemented");
@@ -600,7 +644,7 @@ public class GlkDispatch {
             return 0;
         case 0x012c: // putStringStreamUni
             stream = streams.get(args[0].getInt());
-            intArray = args[1].getStringUnicode();
+            GlkIntArray intArray = args[1].getStringUnicode();
             if (stream != null) {
                 stream.putStringUni(new GlkIntArrayString(intArray));
             }
@@ -720,6 +764,25 @@ public class GlkDispatch {
         }
     }
 
+    public GlkEvent select() throws IOException {
+        selectCount++;
+        GlkDispatchMetrics metrics = this.metrics;
+        if (metrics == null) {
+            return glk.select();
+        }
+        GlkDispatchMetrics.beginSelect();
+        long start = System.nanoTime();
+        try {
+            return glk.select();
+        } finally {
+            metrics.recordSelect(System.nanoTime() - start);
+        }
+    }
+
+    public long getSelectCount() {
+        return selectCount;
+    }
+
     public GlkWindow getWindow(int pointer) {
         return windows.get(pointer);
     }
@@ -743,6 +806,14 @@ public class GlkDispatch {
         this.schannels.saveToMap(schannels);
     }
 
+    public void writeSnapshot(DataOutput out, GlkObjectCodec<GlkWindow> windowCodec, GlkObjectCodec<GlkStream> streamCodec, GlkObjectCodec<GlkFile> fileCodec, GlkObjectCodec<GlkSChannel> schannelCodec) throws IOException {
+        out.writeLong(selectCount);
+        this.windows.writeSnapshot(out, windowCodec);
+        this.streams.writeSnapshot(out, streamCodec);
+        this.files.writeSnapshot(out, fileCodec);
+        this.schannels.writeSnapshot(out, schannelCodec);
+    }
+
     public List<GlkWindow> windowList() {
         return windows.toList();
     }
@@ -798,9 +869,7 @@ public class GlkDispatch {
             return null;
         }
         int[] result = new int[length];
-        for (int i = 0; i < length; i++) {
-            result[i] = arg.getIntElementAt(i);
-        }
+        arg.getInts(0, result, 0, length);
         return result;
     }
 
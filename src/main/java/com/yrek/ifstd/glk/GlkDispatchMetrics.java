@@ -0,0 +1,276 @@
+package com.yrek.ifstd.glk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// Call counts and latency histograms of Glk calls, by selector, for
+// GlkDispatch.setMetrics().  The time select() spends waiting for an
+// event is kept in its own histogram.  Glk implementations mark the
+// blocking part of select() with beginWait() and endWait(), and the rest
+// of select(), handling the event, is recorded under its selector, 0xc0.
+// The whole of select() counts as waiting in implementations that do
+// not mark it.
+//
+// Each thread records into its own Recorder, with no locking and no
+// allocation after a selector's first call, so one GlkDispatchMetrics
+// can be shared by many sessions.  Histograms have SubBuckets buckets
+// for each power of two nanoseconds, so values are within 1/SubBuckets
+// of the recorded latency.  Snapshots and reset() do not stop the
+// recording threads, so they may miss calls made while they run.
+public class GlkDispatchMetrics {
+    private static final int SubBucketBits = 4;
+    private static final int SubBuckets = 1 << SubBucketBits;
+    static final int Buckets = SubBuckets*(64 - SubBucketBits);
+    private static final int Selectors = 0x200;
+    // Index of select() wait times, and of selectors past Selectors.
+    private static final int SelectWait = Selectors;
+    private static final int Other = Selectors + 1;
+    // Row layout: count, total nanos, max nanos, then the buckets.
+    private static final int Count = 0;
+    private static final int Total = 1;
+    private static final int Max = 2;
+    private static final int Bucket0 = 3;
+
+    private final ArrayList<Recorder> recorders = new ArrayList<Recorder>();
+    private final ThreadLocal<Recorder> recorder = new ThreadLocal<Recorder>() {
+        @Override
+        protected Recorder initialValue() {
+            Recorder recorder = new Recorder();
+            synchronized (recorders) {
+                recorders.add(recorder);
+            }
+            return recorder;
+        }
+    };
+
+    private static final class Recorder {
+        final long[][] rows = new long[Other + 1][];
+
+        void record(int index, long nanos) {
+            long[] row = rows[index];
+            if (row == null) {
+                row = new long[Bucket0 + Buckets];
+                rows[index] = row;
+            }
+            if (nanos < 0L) {
+                nanos = 0L;
+            }
+            row[Count]++;
+            row[Total] += nanos;
+            if (nanos > row[Max]) {
+                row[Max] = nanos;
+            }
+            row[Bucket0 + bucket(nanos)]++;
+        }
+    }
+
+    // The time the current select() on a thread has spent blocked.
+    private static final class Wait {
+        boolean marked;
+        long since;
+        long nanos;
+    }
+
+    private static final ThreadLocal<Wait> wait = new ThreadLocal<Wait>() {
+        @Override
+        protected Wait initialValue() {
+            return new Wait();
+        }
+    };
+
+    public static void beginWait() {
+        Wait w = wait.get();
+        w.marked = true;
+        w.since = System.nanoTime();
+    }
+
+    public static void endWait() {
+        Wait w = wait.get();
+        w.nanos += System.nanoTime() - w.since;
+    }
+
+    static void beginSelect() {
+        Wait w = wait.get();
+        w.marked = false;
+        w.nanos = 0L;
+    }
+
+    static int bucket(long nanos) {
+        if (nanos < SubBuckets) {
+            return (int) nanos;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(nanos) - SubBucketBits;
+        return SubBuckets*(shift + 1) + (int) ((nanos >>> shift) & (SubBuckets - 1));
+    }
+
+    // The smallest latency counted in the bucket.
+    static long bucketStart(int bucket) {
+        if (bucket < SubBuckets) {
+            return bucket;
+        }
+        int shift = bucket/SubBuckets - 1;
+        return (long) (SubBuckets + bucket%SubBuckets) << shift;
+    }
+
+    // Records a call to selector taking nanos nanoseconds, on the
+    // calling thread's recorder.
+    public void record(int selector, long nanos) {
+        recorder.get().record(selector >= 0 && selector < Selectors ? selector : Other, nanos);
+    }
+
+    public void recordSelectWait(long nanos) {
+        recorder.get().record(SelectWait, nanos);
+    }
+
+    // Records a select() taking nanos nanoseconds in all, after
+    // beginSelect() on the same thread.
+    void recordSelect(long nanos) {
+        Wait w = wait.get();
+        Recorder r = recorder.get();
+        if (w.marked) {
+            r.record(0x00c0, nanos - w.nanos);
+            r.record(SelectWait, w.nanos);
+        } else {
+            r.record(SelectWait, nanos);
+        }
+    }
+
+    public void reset() {
+        synchronized (recorders) {
+            for (Recorder r : recorders) {
+                for (long[] row : r.rows) {
+                    if (row != null) {
+                        Arrays.fill(row, 0L);
+                    }
+                }
+            }
+        }
+    }
+
+    public Snapshot snapshot() {
+        long[][] rows = new long[Other + 1][];
+        synchronized (recorders) {
+            for (Recorder r : recorders) {
+                for (int i = 0; i < rows.length; i++) {
+                    long[] row = r.rows[i];
+                    if (row == null) {
+                        continue;
+                    }
+                    if (rows[i] == null) {
+                        rows[i] = new long[row.length];
+                    }
+                    for (int j = 0; j < row.length; j++) {
+                        if (j == Max) {
+                            rows[i][j] = Math.max(rows[i][j], row[j]);
+                        } else {
+                            rows[i][j] += row[j];
+                        }
+                    }
+                }
+            }
+        }
+        return new Snapshot(rows);
+    }
+
+    // The merged recordings of all threads.  Selector statistics for
+    // selectors past 0x1ff are lumped together under -1.
+    public static final class Snapshot {
+        private final long[][] rows;
+
+        private Snapshot(long[][] rows) {
+            this.rows = rows;
+        }
+
+        private long[] row(int selector) {
+            if (selector == -1) {
+                return rows[Other];
+            }
+            return selector >= 0 && selector < Selectors ? rows[selector] : null;
+        }
+
+        // The selectors called, in increasing order.
+        public int[] getSelectors() {
+            int count = 0;
+            for (int i = 0; i < Selectors; i++) {
+                if (rows[i] != null && rows[i][Count] > 0L) {
+                    count++;
+                }
+            }
+            int[] selectors = new int[count + (rows[Other] != null && rows[Other][Count] > 0L ? 1 : 0)];
+            count = 0;
+            for (int i = 0; i < Selectors; i++) {
+                if (rows[i] != null && rows[i][Count] > 0L) {
+                    selectors[count++] = i;
+                }
+            }
+            if (count < selectors.length) {
+                selectors[count] = -1;
+            }
+            return selectors;
+        }
+
+        public long getCount(int selector) {
+            return get(row(selector), Count);
+        }
+
+        public long getTotalNanos(int selector) {
+            return get(row(selector), Total);
+        }
+
+        public long getMaxNanos(int selector) {
+            return get(row(selector), Max);
+        }
+
+        // The latency under which the given fraction of calls completed,
+        // to within the histogram's precision.
+        public long getPercentileNanos(int selector, double fraction) {
+            return percentile(row(selector), fraction);
+        }
+
+        public long getSelectWaitCount() {
+            return get(rows[SelectWait], Count);
+        }
+
+        public long getSelectWaitTotalNanos() {
+            return get(rows[SelectWait], Total);
+        }
+
+        public long getSelectWaitMaxNanos() {
+            return get(rows[SelectWait], Max);
+        }
+
+        public long getSelectWaitPercentileNanos(double fraction) {
+            return percentile(rows[SelectWait], fraction);
+        }
+
+        // The time spent in Glk calls other than waiting in select().
+        public long getTotalProcessingNanos() {
+            long total = 0L;
+            for (int i = 0; i < rows.length; i++) {
+                if (i != SelectWait) {
+                    total += get(rows[i], Total);
+                }
+            }
+            return total;
+        }
+
+        private static long get(long[] row, int index) {
+            return row == null ? 0L : row[index];
+        }
+
+        private static long percentile(long[] row, double fraction) {
+            if (row == null || row[Count] == 0L) {
+                return 0L;
+            }
+            long target = Math.max(1L, (long) Math.ceil(fraction*row[Count]));
+            long count = 0L;
+            for (int i = 0; i < Buckets; i++) {
+                count += row[Bucket0 + i];
+                if (count >= target) {
+                    return Math.min(row[Max], i + 1 < Buckets ? bucketStart(i + 1) - 1L : Long.MAX_VALUE);
+                }
+            }
+            return row[Max];
+        }
+    }
+}
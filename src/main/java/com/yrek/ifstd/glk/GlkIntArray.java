@@ -1,5 +1,7 @@
 package com.yrek.ifstd.glk;
 
+import java.nio.ByteBuffer;
+
 // Implemented by the Glk user
 public interface GlkIntArray {
     public int getIntElement();
@@ -12,4 +14,16 @@ public interface GlkIntArray {
     public int setWriteArrayIndex(int index);
     public int getArrayLength();
     public void setArrayLength(int length);
+
+    // Bulk transfers of count elements starting at index.  In a
+    // ByteBuffer, elements are 4-byte integers in the buffer's byte order.
+    public void getInts(int index, int[] dst, int offset, int count);
+    public void setInts(int index, int[] src, int offset, int count);
+    public void getInts(int index, ByteBuffer dst, int count);
+    public void setInts(int index, ByteBuffer src, int count);
+
+    // Returns the array holding the elements as 4-byte big-endian
+    // integers, or null.  Element i is at getBackingOffset() + 4*i.
+    public byte[] getBackingArray();
+    public int getBackingOffset();
 }
@@ -2,15 +2,23 @@ package com.yrek.ifstd.glk;
 
 public class GlkIntArrayString implements UnicodeString {
     public final GlkIntArray intArray;
-    private final int startIndex;
-    private final int endIndex;
+    final int startIndex;
+    final int endIndex;
 
     public GlkIntArrayString(GlkIntArray intArray) {
         this.intArray = intArray;
         this.startIndex = 0;
         int end = startIndex;
-        while (intArray.getIntElementAt(end) != 0) {
-            end++;
+        byte[] array = intArray.getBackingArray();
+        if (array != null) {
+            int offset = intArray.getBackingOffset();
+            while ((array[offset + 4*end] | array[offset + 4*end + 1] | array[offset + 4*end + 2] | array[offset + 4*end + 3]) != 0) {
+                end++;
+            }
+        } else {
+            while (intArray.getIntElementAt(end) != 0) {
+                end++;
+            }
         }
         this.endIndex = end;
     }
@@ -38,11 +46,9 @@ public class GlkIntArrayString implements UnicodeString {
 
     @Override
     public String toString() {
-        StringBuilder sb = new StringBuilder();
-        for (int i = startIndex; i < endIndex; i++) {
-            sb.append(Character.toChars(intArray.getIntElementAt(startIndex + i)));
-        }
-        return sb.toString();
+        int[] codePoints = new int[endIndex - startIndex];
+        intArray.getInts(startIndex, codePoints, 0, codePoints.length);
+        return new String(codePoints, 0, codePoints.length);
     }
 
     @Override
@@ -0,0 +1,12 @@
+package com.yrek.ifstd.glk;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+// Supplied by the Glk implementation to write and read its objects in
+// session snapshots.
+public interface GlkObjectCodec<T extends GlkObject> {
+    public void write(DataOutput out, T obj) throws IOException;
+    public T read(DataInput in) throws IOException;
+}
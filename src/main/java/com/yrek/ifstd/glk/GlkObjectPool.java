@@ -1,11 +1,31 @@
 package com.yrek.ifstd.glk;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
+// Pointers are the slot index + 1 in the low bits, and the slot's
+// generation in the high bits, so that a stale pointer to a reused slot
+// is not mistaken for the new object.  Free slots are kept in a list
+// threaded through next[], and live slots in a doubly linked list
+// through next[] and prev[], in allocation order.
 public class GlkObjectPool<T extends GlkObject> {
-    private final ArrayList<T> pool = new ArrayList<T>();
+    private static final int IndexBits = 20;
+    private static final int IndexMask = (1 << IndexBits) - 1;
+    private static final int GenerationMask = (1 << (31 - IndexBits)) - 1;
+
+    private GlkObject[] objects = new GlkObject[16];
+    private int[] generations = new int[16];
+    private int[] next = new int[16];
+    private int[] prev = new int[16];
+    private int size = 0;
+    private int free = -1;
+    private int head = -1;
+    private int tail = -1;
 
     public GlkObjectPool() {
     }
@@ -13,13 +33,99 @@ public class GlkObjectPool<T extends GlkObject> {
     public GlkObjectPool(Map<Integer,T> restore) {
         if (restore != null) {
             for (Map.Entry<Integer,T> e : restore.entrySet()) {
-                while (pool.size() < e.getKey()) {
-                    pool.add(null);
-                }
-                pool.set(e.getKey() - 1, e.getValue());
-                e.getValue().setPointer(e.getKey());
+                restore(e.getKey(), e.getValue());
+            }
+            relink();
+        }
+    }
+
+    public GlkObjectPool(DataInput in, GlkObjectCodec<T> codec) throws IOException {
+        for (int count = in.readInt(); count > 0; count--) {
+            int pointer = in.readInt();
+            if ((pointer & IndexMask) == 0 || pointer < 0) {
+                throw new IllegalArgumentException("Bad pointer");
+            }
+            restore(pointer, codec.read(in));
+        }
+        relink();
+    }
+
+    private void restore(int pointer, T obj) {
+        int index = (pointer & IndexMask) - 1;
+        while (size <= index) {
+            allocate();
+        }
+        objects[index] = obj;
+        generations[index] = pointer >>> IndexBits;
+        obj.setPointer(pointer);
+    }
+
+    // Rebuilds the free and live lists after restoring.
+    private void relink() {
+        free = -1;
+        head = -1;
+        tail = -1;
+        for (int i = size - 1; i >= 0; i--) {
+            if (objects[i] == null) {
+                next[i] = free;
+                free = i;
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            if (objects[i] != null) {
+                link(i);
+            }
+        }
+    }
+
+    private int allocate() {
+        if (size >= objects.length) {
+            if (size > IndexMask) {
+                throw new IllegalStateException("Too many objects");
             }
+            int capacity = Math.min(2*objects.length, IndexMask + 1);
+            objects = Arrays.copyOf(objects, capacity);
+            generations = Arrays.copyOf(generations, capacity);
+            next = Arrays.copyOf(next, capacity);
+            prev = Arrays.copyOf(prev, capacity);
         }
+        return size++;
+    }
+
+    private void link(int index) {
+        next[index] = -1;
+        prev[index] = tail;
+        if (tail < 0) {
+            head = index;
+        } else {
+            next[tail] = index;
+        }
+        tail = index;
+    }
+
+    private void release(int index) {
+        if (prev[index] < 0) {
+            head = next[index];
+        } else {
+            next[prev[index]] = next[index];
+        }
+        if (next[index] < 0) {
+            tail = prev[index];
+        } else {
+            prev[next[index]] = prev[index];
+        }
+        objects[index] = null;
+        generations[index] = (generations[index] + 1) & GenerationMask;
+        next[index] = free;
+        free = index;
+    }
+
+    private int index(int pointer) {
+        int index = (pointer & IndexMask) - 1;
+        if (pointer <= 0 || index >= size || objects[index] == null || generations[index] != pointer >>> IndexBits) {
+            return -1;
+        }
+        return index;
     }
 
     public int add(T obj) {
@@ -29,16 +135,15 @@ public class GlkObjectPool<T extends GlkObject> {
         if (obj.getPointer() != 0) {
             return obj.getPointer();
         }
-        for (int i = 0; i < pool.size(); i++) {
-            T elt = pool.get(i);
-            if (elt == null || elt.isDestroyed()) {
-                obj.setPointer(i+1);
-                pool.set(i, obj);
-                return i+1;
-            }
+        int index = free;
+        if (index >= 0) {
+            free = next[index];
+        } else {
+            index = allocate();
         }
-        obj.setPointer(pool.size()+1);
-        pool.add(obj);
+        objects[index] = obj;
+        link(index);
+        obj.setPointer((generations[index] << IndexBits) | (index + 1));
         return obj.getPointer();
     }
 
@@ -48,27 +153,41 @@ public class GlkObjectPool<T extends GlkObject> {
     }
 
     public int iterate(int start) {
-        for (int i = start; i < pool.size(); i++) {
-            T elt = pool.get(i);
-            if (elt != null) {
-                if (!elt.isDestroyed()) {
-                    return i + 1;
-                } else {
-                    pool.set(i, null);
-                }
+        int index;
+        if (start == 0) {
+            index = head;
+        } else {
+            index = index(start);
+            if (index < 0) {
+                return 0;
             }
+            index = next[index];
+        }
+        while (index >= 0) {
+            GlkObject obj = objects[index];
+            if (!obj.isDestroyed()) {
+                return obj.getPointer();
+            }
+            int nextIndex = next[index];
+            release(index);
+            index = nextIndex;
         }
         return 0;
     }
 
+    @SuppressWarnings("unchecked")
     public T get(int pointer) {
-        return pointer == 0 ? null : pool.get(pointer-1);
+        int index = index(pointer);
+        return index < 0 ? null : (T) objects[index];
     }
 
     public void destroy(int pointer) {
-        T obj = pool.get(pointer-1);
-        obj.destroy();
-        pool.set(pointer-1, null);
+        int index = index(pointer);
+        if (index < 0) {
+            return;
+        }
+        objects[index].destroy();
+        release(index);
     }
 
     public int getPointer(T obj) {
@@ -76,19 +195,31 @@ public class GlkObjectPool<T extends GlkObject> {
     }
 
     public void saveToMap(Map<Integer,T> map) {
-        for (T obj : pool) {
-            if (obj != null && !obj.isDestroyed()) {
-                map.put(obj.getPointer(), obj);
-            }
+        for (T obj : toList()) {
+            map.put(obj.getPointer(), obj);
+        }
+    }
+
+    public void writeSnapshot(DataOutput out, GlkObjectCodec<T> codec) throws IOException {
+        List<T> list = toList();
+        out.writeInt(list.size());
+        for (T obj : list) {
+            out.writeInt(obj.getPointer());
+            codec.write(out, obj);
         }
     }
 
+    @SuppressWarnings("unchecked")
     public List<T> toList() {
         ArrayList<T> list = new ArrayList<T>();
-        for (T obj : pool) {
-            if (obj != null && !obj.isDestroyed()) {
-                list.add(obj);
+        for (int index = head; index >= 0; ) {
+            int nextIndex = next[index];
+            if (objects[index].isDestroyed()) {
+                release(index);
+            } else {
+                list.add((T) objects[index]);
             }
+            index = nextIndex;
         }
         return list;
     }
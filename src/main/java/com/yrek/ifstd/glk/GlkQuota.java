@@ -0,0 +1,142 @@
+package com.yrek.ifstd.glk;
+
+import java.io.Serializable;
+
+// Limits how much an interpreter session may execute between calls to
+// Glk.select().  The interpreter loop calls exceeded() at its tick points.
+// Each interpreter session needs its own instance, since the quota keeps
+// counters.
+public final class GlkQuota implements Serializable {
+    private static final long serialVersionUID = 0L;
+
+    public static final int ActionSuspend = 0;
+    public static final int ActionRewind = 1;
+    public static final int ActionTerminate = 2;
+
+    public static final String Message = "[** Execution quota exceeded **]";
+
+    // Instructions between checks.
+    private static final long CheckInstructions = 1024L;
+
+    private final long maxInstructions;
+    private final long maxMicroseconds;
+    private final int action;
+
+    private transient long nextCheck = 0L;
+    private transient long selectCount = -1L;
+    private transient long turnStartInstructions = 0L;
+    private transient long turnStartNanos = 0L;
+
+    private volatile long turns = 0L;
+    private volatile long turnInstructions = 0L;
+    private volatile long turnMicroseconds = 0L;
+    private volatile long totalInstructions = 0L;
+    private volatile long maxTurnInstructions = 0L;
+    private volatile long maxTurnMicroseconds = 0L;
+    private volatile long exceededCount = 0L;
+
+    // A limit of 0 means no limit.
+    public GlkQuota(long maxInstructions, long maxMicroseconds, int action) {
+        if (maxInstructions < 0L || maxMicroseconds < 0L) {
+            throw new IllegalArgumentException("Negative quota");
+        }
+        switch (action) {
+        case ActionSuspend: case ActionRewind: case ActionTerminate:
+            break;
+        default:
+            throw new IllegalArgumentException("Unrecognized quota action");
+        }
+        this.maxInstructions = maxInstructions;
+        this.maxMicroseconds = maxMicroseconds;
+        this.action = action;
+    }
+
+    public long getMaxInstructions() {
+        return maxInstructions;
+    }
+
+    public long getMaxMicroseconds() {
+        return maxMicroseconds;
+    }
+
+    public int getAction() {
+        return action;
+    }
+
+    // Called when the interpreter loop is (re)entered.  Instruction counts
+    // restart at 0, and the next check starts a new turn.
+    public void reset() {
+        nextCheck = 0L;
+        selectCount = -1L;
+    }
+
+    public boolean exceeded(long instructions, long selectCount) {
+        if (instructions < nextCheck) {
+            return false;
+        }
+        nextCheck = instructions + CheckInstructions;
+        long now = System.nanoTime();
+        if (selectCount != this.selectCount) {
+            endTurn(instructions, now);
+            this.selectCount = selectCount;
+            return false;
+        }
+        long instructionCount = instructions - turnStartInstructions;
+        long microseconds = (now - turnStartNanos)/1000L;
+        turnInstructions = instructionCount;
+        turnMicroseconds = microseconds;
+        if ((maxInstructions > 0L && instructionCount > maxInstructions) || (maxMicroseconds > 0L && microseconds > maxMicroseconds)) {
+            exceededCount++;
+            endTurn(instructions, now);
+            return true;
+        }
+        return false;
+    }
+
+    private void endTurn(long instructions, long now) {
+        if (this.selectCount >= 0L) {
+            long instructionCount = instructions - turnStartInstructions;
+            long microseconds = (now - turnStartNanos)/1000L;
+            turns++;
+            totalInstructions += instructionCount;
+            if (instructionCount > maxTurnInstructions) {
+                maxTurnInstructions = instructionCount;
+            }
+            if (microseconds > maxTurnMicroseconds) {
+                maxTurnMicroseconds = microseconds;
+            }
+        }
+        turnStartInstructions = instructions;
+        turnStartNanos = now;
+        turnInstructions = 0L;
+        turnMicroseconds = 0L;
+    }
+
+    public long getTurns() {
+        return turns;
+    }
+
+    public long getTurnInstructions() {
+        return turnInstructions;
+    }
+
+    public long getTurnMicroseconds() {
+        return turnMicroseconds;
+    }
+
+    public long getTotalInstructions() {
+        return totalInstructions + turnInstructions;
+    }
+
+    public long getMaxTurnInstructions() {
+        return maxTurnInstructions;
+    }
+
+    public long getMaxTurnMicroseconds() {
+        return maxTurnMicroseconds;
+    }
+
+    public long getExceededCount() {
+        return exceededCount;
+    }
+}
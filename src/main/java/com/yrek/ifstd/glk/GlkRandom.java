@@ -0,0 +1,40 @@
+package com.yrek.ifstd.glk;
+
+import java.util.Random;
+
+// The java.util.Random generator with its 48-bit state exposed, so
+// snapshots can write it as a long without drawing from it.
+public class GlkRandom extends Random {
+    private static final long serialVersionUID = 0L;
+    private static final long Multiplier = 0x5deece66dL;
+    private static final long Addend = 0xbL;
+    private static final long Mask = (1L << 48) - 1;
+
+    private long state;
+
+    public GlkRandom() {
+    }
+
+    @Override
+    public synchronized void setSeed(long seed) {
+        super.setSeed(seed);
+        state = (seed ^ Multiplier) & Mask;
+    }
+
+    @Override
+    protected synchronized int next(int bits) {
+        state = (state * Multiplier + Addend) & Mask;
+        return (int) (state >>> (48 - bits));
+    }
+
+    public synchronized long getState() {
+        return state;
+    }
+
+    public synchronized void setState(long state) {
+        if ((state & ~Mask) != 0) {
+            throw new IllegalArgumentException("Bad random state");
+        }
+        this.state = state;
+    }
+}
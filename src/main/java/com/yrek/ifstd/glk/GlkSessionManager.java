@@ -0,0 +1,217 @@
+package com.yrek.ifstd.glk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+// Keeps the total size of resident sessions under a budget by writing
+// the least recently used idle sessions to disk.  The Glk implementation
+// calls idle() when a session blocks in Glk.select(), and active() when
+// an event arrives for it, before returning from Glk.select().
+public class GlkSessionManager {
+    public static abstract class Session {
+        private boolean idle = false;
+
+        // Estimated heap used by the session, in bytes.
+        protected abstract long getResidentSize();
+
+        // Suspends the interpreter, writes its snapshot, and releases
+        // its state.
+        protected abstract void hibernate(DataOutput out) throws IOException;
+
+        // Rebuilds the interpreter from its snapshot and resumes it.
+        protected abstract void rehydrate(DataInput in) throws IOException;
+    }
+
+    private final File directory;
+    private final long budget;
+    private final LinkedHashMap<Session,Long> resident = new LinkedHashMap<Session,Long>(16, 0.75f, true);
+    private final HashMap<Session,File> hibernated = new HashMap<Session,File>();
+    private long residentSize = 0L;
+    private long hibernations = 0L;
+    private long rehydrations = 0L;
+    private long rehydrationMicroseconds = 0L;
+    private long maxRehydrationMicroseconds = 0L;
+
+    public GlkSessionManager(File directory, long budget) {
+        this.directory = directory;
+        this.budget = budget;
+    }
+
+    public synchronized void add(Session session) {
+        makeResident(session);
+    }
+
+    public void remove(Session session) {
+        File file;
+        synchronized (session) {
+            synchronized (this) {
+                session.idle = false;
+                Long size = resident.remove(session);
+                if (size != null) {
+                    residentSize -= size;
+                }
+                file = hibernated.remove(session);
+            }
+        }
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    public void idle(Session session) throws IOException {
+        synchronized (this) {
+            session.idle = true;
+            if (!hibernated.containsKey(session)) {
+                makeResident(session);
+            }
+        }
+        trim();
+    }
+
+    public void active(Session session) throws IOException {
+        File file;
+        synchronized (session) {
+            synchronized (this) {
+                session.idle = false;
+                file = hibernated.remove(session);
+                if (file == null) {
+                    makeResident(session);
+                    return;
+                }
+            }
+            // If rehydrate fails, the session stays hibernated, and the
+            // next call retries it.
+            long start = System.nanoTime();
+            boolean rehydrated = false;
+            try {
+                DataInputStream in = new DataInputStream(new InflaterInputStream(new BufferedInputStream(new FileInputStream(file))));
+                try {
+                    session.rehydrate(in);
+                    rehydrated = true;
+                } finally {
+                    in.close();
+                }
+            } finally {
+                long microseconds = (System.nanoTime() - start)/1000L;
+                synchronized (this) {
+                    if (rehydrated) {
+                        makeResident(session);
+                        rehydrations++;
+                        rehydrationMicroseconds += microseconds;
+                        maxRehydrationMicroseconds = Math.max(maxRehydrationMicroseconds, microseconds);
+                    } else {
+                        hibernated.put(session, file);
+                    }
+                }
+                if (rehydrated) {
+                    file.delete();
+                }
+            }
+        }
+        trim();
+    }
+
+    // Hibernates idle sessions, least recently used first, until the
+    // resident size is within the budget.
+    public void trim() throws IOException {
+        for (;;) {
+            Session session = null;
+            synchronized (this) {
+                if (residentSize <= budget) {
+                    return;
+                }
+                for (Session s : resident.keySet()) {
+                    if (s.idle) {
+                        session = s;
+                        break;
+                    }
+                }
+                if (session == null) {
+                    return;
+                }
+            }
+            synchronized (session) {
+                synchronized (this) {
+                    if (!session.idle || !resident.containsKey(session)) {
+                        continue;
+                    }
+                    residentSize -= resident.remove(session);
+                }
+                File file = null;
+                boolean written = false;
+                try {
+                    file = File.createTempFile("session", ".snp", directory);
+                    DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(new BufferedOutputStream(new FileOutputStream(file))));
+                    try {
+                        session.hibernate(out);
+                    } finally {
+                        out.close();
+                    }
+                    written = true;
+                } finally {
+                    synchronized (this) {
+                        if (written) {
+                            hibernated.put(session, file);
+                            hibernations++;
+                        } else {
+                            makeResident(session);
+                        }
+                    }
+                    if (!written && file != null) {
+                        file.delete();
+                    }
+                }
+            }
+        }
+    }
+
+    private void makeResident(Session session) {
+        long size = session.getResidentSize();
+        Long oldSize = resident.put(session, size);
+        residentSize += size - (oldSize == null ? 0L : oldSize);
+    }
+
+    public synchronized boolean isHibernated(Session session) {
+        return hibernated.containsKey(session);
+    }
+
+    public synchronized int getResidentCount() {
+        return resident.size();
+    }
+
+    public synchronized int getHibernatedCount() {
+        return hibernated.size();
+    }
+
+    public synchronized long getResidentSize() {
+        return residentSize;
+    }
+
+    public synchronized long getHibernations() {
+        return hibernations;
+    }
+
+    public synchronized long getRehydrations() {
+        return rehydrations;
+    }
+
+    public synchronized long getRehydrationMicroseconds() {
+        return rehydrationMicroseconds;
+    }
+
+    public synchronized long getMaxRehydrationMicroseconds() {
+        return maxRehydrationMicroseconds;
+    }
+}
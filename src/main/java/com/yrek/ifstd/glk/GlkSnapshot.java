@@ -0,0 +1,158 @@
+package com.yrek.ifstd.glk;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Bulk array encodings shared by the interpreter session snapshots.
+public class GlkSnapshot {
+    private static final int BufferSize = 8192;
+
+    private GlkSnapshot() {
+    }
+
+    public static void writeDelta(DataOutput out, byte[] data, int start, byte[] original) throws IOException {
+        writeDelta(out, data, start, ByteBuffer.wrap(original));
+    }
+
+    // Writes data as the XOR against original, starting at start.
+    // original is read in place from index 0 to its limit, and bytes
+    // past its limit are compared against 0.  Runs of unchanged bytes are
+    // written as a 0 followed by the run length - 1, as in Quetzal CMem
+    // chunks.
+    public static void writeDelta(DataOutput out, byte[] data, int start, ByteBuffer original) throws IOException {
+        int originalLength = original.limit();
+        byte[] buffer = new byte[Math.min(BufferSize, 2*(data.length - start) + 2)];
+        int count = 0;
+        out.writeInt(data.length);
+        out.writeInt(start);
+        int i = start;
+        while (i < data.length) {
+            if (count > buffer.length - 2) {
+                out.writeShort(count);
+                out.write(buffer, 0, count);
+                count = 0;
+            }
+            int b = data[i] ^ (i < originalLength ? original.get(i) : 0);
+            if (b != 0) {
+                buffer[count++] = (byte) b;
+                i++;
+                continue;
+            }
+            int run = 1;
+            i++;
+            while (run < 256 && i < data.length && data[i] == (i < originalLength ? original.get(i) : 0)) {
+                run++;
+                i++;
+            }
+            buffer[count++] = 0;
+            buffer[count++] = (byte) (run - 1);
+        }
+        if (count > 0) {
+            out.writeShort(count);
+            out.write(buffer, 0, count);
+        }
+        out.writeShort(0);
+    }
+
+    public static byte[] readDelta(DataInput in, byte[] original) throws IOException {
+        return readDelta(in, ByteBuffer.wrap(original));
+    }
+
+    // The data is filled in as the delta is read, so a bad length
+    // cannot make it allocate more than original plus what the delta
+    // covers.
+    public static byte[] readDelta(DataInput in, ByteBuffer original) throws IOException {
+        int length = in.readInt();
+        int start = in.readInt();
+        if (length < 0 || start < 0 || start > length) {
+            throw new IllegalArgumentException("Bad delta");
+        }
+        byte[] data = new byte[Math.min(length, original.limit())];
+        ByteBuffer copy = original.duplicate();
+        copy.position(0);
+        copy.get(data);
+        byte[] buffer = new byte[BufferSize];
+        int index = start;
+        for (int count = in.readUnsignedShort(); count > 0; count = in.readUnsignedShort()) {
+            if (count > buffer.length) {
+                throw new IllegalArgumentException("Bad delta");
+            }
+            in.readFully(buffer, 0, count);
+            for (int i = 0; i < count; i++) {
+                if (buffer[i] != 0) {
+                    if (index >= length) {
+                        throw new IllegalArgumentException("Bad delta");
+                    }
+                    if (index >= data.length) {
+                        data = Arrays.copyOf(data, (int) Math.min(length, Math.max(2L*data.length, index + 1L)));
+                    }
+                    data[index++] ^= buffer[i];
+                } else {
+                    i++;
+                    if (i >= count) {
+                        throw new IllegalArgumentException("Bad delta");
+                    }
+                    index += (buffer[i] & 255) + 1;
+                    if (index > length) {
+                        throw new IllegalArgumentException("Bad delta");
+                    }
+                }
+            }
+        }
+        if (index != length) {
+            throw new IllegalArgumentException("Bad delta");
+        }
+        if (data.length < length) {
+            data = Arrays.copyOf(data, length);
+        }
+        return data;
+    }
+
+    public static void writeInts(DataOutput out, int[] data, int start, int length) throws IOException {
+        byte[] buffer = new byte[Math.min(BufferSize, 4*length)];
+        while (length > 0) {
+            int count = Math.min(length, buffer.length/4);
+            for (int i = 0; i < count; i++) {
+                int value = data[start + i];
+                buffer[4*i] = (byte) (value >> 24);
+                buffer[4*i+1] = (byte) (value >> 16);
+                buffer[4*i+2] = (byte) (value >> 8);
+                buffer[4*i+3] = (byte) value;
+            }
+            out.write(buffer, 0, 4*count);
+            start += count;
+            length -= count;
+        }
+    }
+
+    public static void readInts(DataInput in, int[] data, int start, int length) throws IOException {
+        byte[] buffer = new byte[Math.min(BufferSize, 4*length)];
+        while (length > 0) {
+            int count = Math.min(length, buffer.length/4);
+            in.readFully(buffer, 0, 4*count);
+            for (int i = 0; i < count; i++) {
+                data[start + i] = (buffer[4*i] << 24)
+                    | ((buffer[4*i+1] & 255) << 16)
+                    | ((buffer[4*i+2] & 255) << 8)
+                    | (buffer[4*i+3] & 255);
+            }
+            start += count;
+            length -= count;
+        }
+    }
+
+    // Writes the state of random without drawing from it, so taking a
+    // snapshot does not change the numbers the game gets.
+    public static void writeRandom(DataOutput out, GlkRandom random) throws IOException {
+        out.writeLong(random.getState());
+    }
+
+    public static GlkRandom readRandom(DataInput in) throws IOException {
+        GlkRandom random = new GlkRandom();
+        random.setState(in.readLong());
+        return random;
+    }
+}
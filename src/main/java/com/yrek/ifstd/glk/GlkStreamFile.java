@@ -0,0 +1,440 @@
+package com.yrek.ifstd.glk;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+// File stream for Glk.streamOpenFile() and Glk.streamOpenFileUni().
+// Byte streams are Latin-1, and Unicode streams are UTF-32BE, with
+// positions counted in characters.  Text and binary modes are written
+// the same way, with newlines as '\n'.
+//
+// Reads and writes go through a direct buffer, which is only written
+// to the file by flush() or close(), or when it fills.  The buffers
+// are reused by later streams.
+public class GlkStreamFile extends GlkStream {
+    private static final int BufferSize = 16384;
+    private static final int MaxPooledBuffers = 8;
+    private static final ArrayList<ByteBuffer> bufferPool = new ArrayList<ByteBuffer>();
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final boolean unicode;
+    private final int unit;
+    private ByteBuffer buffer;
+    // The file position of the start of the buffer.  When writing, the
+    // buffer holds the bytes before buffer.position().  When reading,
+    // it holds the bytes before buffer.limit().
+    private long bufferStart;
+    private boolean writing = false;
+    private int inputCount = 0;
+    private int outputCount = 0;
+    private DataInputStream dataInput = null;
+    private DataOutputStream dataOutput = null;
+
+    public GlkStreamFile(File file, int mode, boolean unicode, int rock) throws IOException {
+        super(rock);
+        this.file = new RandomAccessFile(file, mode == GlkFile.ModeRead ? "r" : "rw");
+        this.channel = this.file.getChannel();
+        this.unicode = unicode;
+        this.unit = unicode ? 4 : 1;
+        if (mode == GlkFile.ModeWrite) {
+            channel.truncate(0L);
+        }
+        this.bufferStart = mode == GlkFile.ModeWriteAppend ? channel.size() : 0L;
+        this.buffer = allocateBuffer();
+        buffer.limit(0);
+    }
+
+    private static ByteBuffer allocateBuffer() {
+        synchronized (bufferPool) {
+            if (!bufferPool.isEmpty()) {
+                ByteBuffer buffer = bufferPool.remove(bufferPool.size() - 1);
+                buffer.clear();
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(BufferSize);
+    }
+
+    private static void releaseBuffer(ByteBuffer buffer) {
+        synchronized (bufferPool) {
+            if (bufferPool.size() < MaxPooledBuffers) {
+                bufferPool.add(buffer);
+            }
+        }
+    }
+
+    public boolean isUnicode() {
+        return unicode;
+    }
+
+    // Writes any buffered output to the file.
+    public void flush() throws IOException {
+        if (!writing) {
+            return;
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, bufferStart + buffer.position());
+        }
+        bufferStart += buffer.limit();
+        buffer.clear();
+        buffer.limit(0);
+        writing = false;
+    }
+
+    private void beginWrite(int count) throws IOException {
+        if (!writing) {
+            bufferStart += buffer.position();
+            buffer.clear();
+            writing = true;
+        } else if (buffer.remaining() < count) {
+            flush();
+            buffer.clear();
+            writing = true;
+        }
+    }
+
+    // Returns false if the file has fewer than count more bytes.
+    private boolean beginRead(int count) throws IOException {
+        if (writing) {
+            flush();
+        }
+        if (buffer.remaining() >= count) {
+            return true;
+        }
+        bufferStart += buffer.position();
+        buffer.compact();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, bufferStart + buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer.remaining() >= count;
+    }
+
+    private void put(int ch) throws IOException {
+        beginWrite(unit);
+        if (unicode) {
+            buffer.putInt(ch);
+        } else {
+            buffer.put((byte) ch);
+        }
+    }
+
+    private int get() throws IOException {
+        if (!beginRead(unit)) {
+            return -1;
+        }
+        return unicode ? buffer.getInt() : buffer.get() & 255;
+    }
+
+    @Override
+    public GlkStreamResult close() throws IOException {
+        try {
+            flush();
+        } finally {
+            file.close();
+            releaseBuffer(buffer);
+            buffer = null;
+        }
+        return new GlkStreamResult(inputCount, outputCount);
+    }
+
+    @Override
+    public void putChar(int ch) throws IOException {
+        outputCount++;
+        put(ch & 255);
+    }
+
+    @Override
+    public void putString(CharSequence string) throws IOException {
+        int length = string.length();
+        outputCount += length;
+        for (int i = 0; i < length; i++) {
+            put(string.charAt(i) & 255);
+        }
+    }
+
+    @Override
+    public void putBuffer(GlkByteArray buffer) throws IOException {
+        int length = buffer.getArrayLength();
+        outputCount += length;
+        if (unicode) {
+            for (int i = 0; i < length; i++) {
+                put(buffer.getByteElementAt(i) & 255);
+            }
+            return;
+        }
+        for (int i = 0; i < length; ) {
+            beginWrite(1);
+            int count = Math.min(length - i, this.buffer.remaining());
+            buffer.getBytes(i, this.buffer, count);
+            i += count;
+        }
+    }
+
+    @Override
+    public void putCharUni(int ch) throws IOException {
+        outputCount++;
+        put(unicode ? ch : GlkArrays.toByte(ch));
+    }
+
+    @Override
+    public void putStringUni(UnicodeString string) throws IOException {
+        int length = string.codePointCount();
+        outputCount += length;
+        for (int i = 0; i < length; i++) {
+            int ch = string.codePointAt(i);
+            put(unicode ? ch : GlkArrays.toByte(ch));
+        }
+    }
+
+    @Override
+    public void putBufferUni(GlkIntArray buffer) throws IOException {
+        int length = buffer.getArrayLength();
+        outputCount += length;
+        if (!unicode) {
+            for (int i = 0; i < length; i++) {
+                put(GlkArrays.toByte(buffer.getIntElementAt(i)));
+            }
+            return;
+        }
+        for (int i = 0; i < length; ) {
+            beginWrite(4);
+            int count = Math.min(length - i, this.buffer.remaining()/4);
+            buffer.getInts(i, this.buffer, count);
+            i += count;
+        }
+    }
+
+    @Override
+    public void setStyle(int style) {
+    }
+
+    @Override
+    public void setHyperlink(int linkVal) {
+    }
+
+    @Override
+    public int getChar() throws IOException {
+        int ch = get();
+        if (ch < 0) {
+            return -1;
+        }
+        inputCount++;
+        return GlkArrays.toByte(ch);
+    }
+
+    @Override
+    public int getLine(GlkByteArray buffer) throws IOException {
+        int length = buffer.getArrayLength();
+        if (length <= 0) {
+            return 0;
+        }
+        int count = 0;
+        while (count < length - 1) {
+            int ch = get();
+            if (ch < 0) {
+                break;
+            }
+            buffer.setByteElementAt(count, GlkArrays.toByte(ch));
+            count++;
+            if (ch == '\n') {
+                break;
+            }
+        }
+        buffer.setByteElementAt(count, 0);
+        inputCount += count;
+        return count;
+    }
+
+    @Override
+    public int getBuffer(GlkByteArray buffer) throws IOException {
+        int length = buffer.getArrayLength();
+        int count = 0;
+        if (unicode) {
+            for (; count < length; count++) {
+                int ch = get();
+                if (ch < 0) {
+                    break;
+                }
+                buffer.setByteElementAt(count, GlkArrays.toByte(ch));
+            }
+        } else {
+            while (count < length && beginRead(1)) {
+                int n = Math.min(length - count, this.buffer.remaining());
+                buffer.setBytes(count, this.buffer, n);
+                count += n;
+            }
+        }
+        inputCount += count;
+        return count;
+    }
+
+    @Override
+    public int getCharUni() throws IOException {
+        int ch = get();
+        if (ch < 0) {
+            return -1;
+        }
+        inputCount++;
+        return ch;
+    }
+
+    @Override
+    public int getLineUni(GlkIntArray buffer) throws IOException {
+        int length = buffer.getArrayLength();
+        if (length <= 0) {
+            return 0;
+        }
+        int count = 0;
+        while (count < length - 1) {
+            int ch = get();
+            if (ch < 0) {
+                break;
+            }
+            buffer.setIntElementAt(count, ch);
+            count++;
+            if (ch == '\n') {
+                break;
+            }
+        }
+        buffer.setIntElementAt(count, 0);
+        inputCount += count;
+        return count;
+    }
+
+    @Override
+    public int getBufferUni(GlkIntArray buffer) throws IOException {
+        int length = buffer.getArrayLength();
+        int count = 0;
+        if (unicode) {
+            while (count < length && beginRead(4)) {
+                int n = Math.min(length - count, this.buffer.remaining()/4);
+                buffer.setInts(count, this.buffer, n);
+                count += n;
+            }
+        } else {
+            for (; count < length; count++) {
+                int ch = get();
+                if (ch < 0) {
+                    break;
+                }
+                buffer.setIntElementAt(count, ch);
+            }
+        }
+        inputCount += count;
+        return count;
+    }
+
+    @Override
+    public void setPosition(int position, int seekMode) throws IOException {
+        flush();
+        long target = (long) position*unit;
+        switch (seekMode) {
+        case SeekModeCurrent:
+            target += bufferStart + buffer.position();
+            break;
+        case SeekModeEnd:
+            target += channel.size();
+            break;
+        default:
+            break;
+        }
+        target = Math.max(0L, Math.min(channel.size(), target));
+        if (target >= bufferStart && target <= bufferStart + buffer.limit()) {
+            buffer.position((int) (target - bufferStart));
+        } else {
+            bufferStart = target;
+            buffer.clear();
+            buffer.limit(0);
+        }
+    }
+
+    @Override
+    public int getPosition() throws IOException {
+        return (int) ((bufferStart + buffer.position())/unit);
+    }
+
+    // Byte views of the file, for saved games.  Reads and writes through
+    // the views are counted as characters.
+    @Override
+    public DataOutput getDataOutput() {
+        if (dataOutput == null) {
+            dataOutput = new DataOutputStream(new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    outputCount++;
+                    beginWrite(1);
+                    buffer.put((byte) b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    outputCount += len;
+                    while (len > 0) {
+                        beginWrite(1);
+                        int count = Math.min(len, buffer.remaining());
+                        buffer.put(b, off, count);
+                        off += count;
+                        len -= count;
+                    }
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    GlkStreamFile.this.flush();
+                }
+            });
+        }
+        return dataOutput;
+    }
+
+    @Override
+    public DataInput getDataInput() {
+        if (dataInput == null) {
+            dataInput = new DataInputStream(new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    if (!beginRead(1)) {
+                        return -1;
+                    }
+                    inputCount++;
+                    return buffer.get() & 255;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (len <= 0) {
+                        return 0;
+                    }
+                    if (!beginRead(1)) {
+                        return -1;
+                    }
+                    int count = Math.min(len, buffer.remaining());
+                    buffer.get(b, off, count);
+                    inputCount += count;
+                    return count;
+                }
+
+                @Override
+                public int available() throws IOException {
+                    return writing ? 0 : buffer.remaining();
+                }
+            });
+        }
+        return dataInput;
+    }
+}
@@ -4,12 +4,15 @@ import java.io.IOException;
 
 public class GlkStreamMemoryUnicode extends GlkStream {
     final GlkIntArray memory;
+    final int length;
+    int position = 0;
     int inputCount = 0;
     int outputCount = 0;
 
     public GlkStreamMemoryUnicode(GlkIntArray memory, int rock) {
         super(rock);
         this.memory = memory;
+        this.length = memory == null ? 0 : memory.getArrayLength();
     }
 
     @Override
@@ -19,52 +22,48 @@ public class GlkStreamMemoryUnicode extends GlkStream {
 
     @Override
     public void putChar(int ch) throws IOException {
-        outputCount++;
-        if (memory != null && memory.getWriteArrayIndex() < memory.getArrayLength()) {
-            memory.setIntElement(ch&255);
-        }
+        putCharUni(ch & 255);
     }
 
     @Override
     public void putString(CharSequence string) throws IOException {
+        int count = Math.min(string.length(), length - position);
         outputCount += string.length();
-        if (memory != null) {
-            for (int i = 0; i < string.length() && memory.getWriteArrayIndex() < memory.getArrayLength(); i++) {
-                memory.setIntElement(string.charAt(i) & 255);
-            }
-        }
+        GlkArrays.copy(string, 0, memory, position, count);
+        position += count;
     }
 
     @Override
     public void putBuffer(GlkByteArray buffer) throws IOException {
+        int count = Math.min(buffer.getArrayLength(), length - position);
         outputCount += buffer.getArrayLength();
-        if (memory != null) {
-            for (int i = 0; i < buffer.getArrayLength() && memory.getWriteArrayIndex() < memory.getArrayLength(); i++) {
-                memory.setIntElement(buffer.getByteElementAt(i));
-            }
-        }
+        GlkArrays.copy(buffer, 0, memory, position, count);
+        position += count;
     }
 
     @Override
     public void putCharUni(int ch) throws IOException {
         outputCount++;
-        if (memory != null && memory.getWriteArrayIndex() < memory.getArrayLength()) {
-            memory.setIntElement(ch);
+        if (position < length) {
+            memory.setIntElementAt(position, ch);
+            position++;
         }
     }
 
     @Override
     public void putStringUni(UnicodeString string) throws IOException {
-        for (int i = 0; i < string.codePointCount(); i++) {
-            putCharUni(string.codePointAt(i));
-        }
+        int count = Math.min(string.codePointCount(), length - position);
+        outputCount += string.codePointCount();
+        GlkArrays.copy(string, 0, memory, position, count);
+        position += count;
     }
 
     @Override
     public void putBufferUni(GlkIntArray buffer) throws IOException {
-        for (int i = 0; i < buffer.getArrayLength(); i++) {
-            putCharUni(buffer.getIntElementAt(i));
-        }
+        int count = Math.min(buffer.getArrayLength(), length - position);
+        outputCount += buffer.getArrayLength();
+        GlkArrays.copy(buffer, 0, memory, position, count);
+        position += count;
     }
 
     @Override
@@ -77,45 +76,83 @@ public class GlkStreamMemoryUnicode extends GlkStream {
 
     @Override
     public int getChar() throws IOException {
-        if (memory == null || memory.getReadArrayIndex() >= memory.getArrayLength()) {
-            return -1;
-        }
-        inputCount++;
-        return memory.getIntElement() & 255;
+        int ch = getCharUni();
+        return ch < 0 ? ch : GlkArrays.toByte(ch);
     }
 
     @Override
     public int getLine(GlkByteArray buffer) throws IOException {
-        throw new RuntimeException("unimplemented");
+        int bufferLength = buffer.getArrayLength();
+        if (bufferLength <= 0) {
+            return 0;
+        }
+        int count = GlkArrays.lineLength(memory, position, Math.min(bufferLength - 1, length - position));
+        GlkArrays.copy(memory, position, buffer, 0, count);
+        buffer.setByteElementAt(count, 0);
+        position += count;
+        inputCount += count;
+        return count;
     }
 
     @Override
     public int getBuffer(GlkByteArray buffer) throws IOException {
-        throw new RuntimeException("unimplemented");
+        int count = Math.min(buffer.getArrayLength(), length - position);
+        GlkArrays.copy(memory, position, buffer, 0, count);
+        position += count;
+        inputCount += count;
+        return count;
     }
 
     @Override
     public int getCharUni() throws IOException {
-        throw new RuntimeException("unimplemented");
+        if (position >= length) {
+            return -1;
+        }
+        inputCount++;
+        position++;
+        return memory.getIntElementAt(position - 1);
     }
 
     @Override
     public int getLineUni(GlkIntArray buffer) throws IOException {
-        throw new RuntimeException("unimplemented");
+        int bufferLength = buffer.getArrayLength();
+        if (bufferLength <= 0) {
+            return 0;
+        }
+        int count = GlkArrays.lineLength(memory, position, Math.min(bufferLength - 1, length - position));
+        GlkArrays.copy(memory, position, buffer, 0, count);
+        buffer.setIntElementAt(count, 0);
+        position += count;
+        inputCount += count;
+        return count;
     }
 
     @Override
     public int getBufferUni(GlkIntArray buffer) throws IOException {
-        throw new RuntimeException("unimplemented");
+        int count = Math.min(buffer.getArrayLength(), length - position);
+        GlkArrays.copy(memory, position, buffer, 0, count);
+        position += count;
+        inputCount += count;
+        return count;
     }
 
     @Override
     public void setPosition(int position, int seekMode) throws IOException {
-        throw new RuntimeException("unimplemented");
+        switch (seekMode) {
+        case SeekModeCurrent:
+            position += this.position;
+            break;
+        case SeekModeEnd:
+            position += length;
+            break;
+        default:
+            break;
+        }
+        this.position = Math.max(0, Math.min(length, position));
     }
 
     @Override
     public int getPosition() throws IOException {
-        throw new RuntimeException("unimplemented");
+        return position;
     }
 }
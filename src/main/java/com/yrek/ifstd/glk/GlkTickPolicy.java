@@ -0,0 +1,95 @@
+package com.yrek.ifstd.glk;
+
+import java.io.Serializable;
+
+// Decides when an interpreter loop calls Glk.tick().  Each interpreter
+// session needs its own instance, since the policy keeps counters.
+public final class GlkTickPolicy implements Serializable {
+    private static final long serialVersionUID = 0L;
+
+    public static final int ModeEveryTick = 0;
+    public static final int ModeInstructions = 1;
+    public static final int ModeMicroseconds = 2;
+    public static final int ModeGlkOnly = 3;
+
+    // Instructions between clock reads in ModeMicroseconds.
+    private static final long ClockSampleInstructions = 1024L;
+
+    private final int mode;
+    private final long interval;
+    private long nextInstructions = 0L;
+    private long nextNanos = 0L;
+
+    private GlkTickPolicy(int mode, long interval) {
+        if (interval < 0L) {
+            throw new IllegalArgumentException("Negative tick interval");
+        }
+        this.mode = mode;
+        this.interval = interval;
+    }
+
+    // Call Glk.tick() at every branch, call and return.
+    public static GlkTickPolicy everyTick() {
+        return new GlkTickPolicy(ModeEveryTick, 0L);
+    }
+
+    // Call Glk.tick() at the first branch, call or return after at least
+    // the given number of instructions.
+    public static GlkTickPolicy instructions(long instructions) {
+        return new GlkTickPolicy(ModeInstructions, instructions);
+    }
+
+    // Call Glk.tick() at the first branch, call or return after at least
+    // the given number of microseconds.  The clock is only read every
+    // 1024 instructions.
+    public static GlkTickPolicy microseconds(long microseconds) {
+        return new GlkTickPolicy(ModeMicroseconds, microseconds);
+    }
+
+    // Never call Glk.tick() from the interpreter loop.  The provider only
+    // gets control at Glk calls, including explicit glk_tick() calls.
+    public static GlkTickPolicy glkOnly() {
+        return new GlkTickPolicy(ModeGlkOnly, 0L);
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    public void reset() {
+        nextInstructions = 0L;
+        nextNanos = 0L;
+    }
+
+    // Called by the interpreter loop at each tick point, with a count of
+    // instructions executed so far.
+    public boolean due(long instructions) {
+        switch (mode) {
+        case ModeEveryTick:
+            return true;
+        case ModeInstructions:
+            if (instructions < nextInstructions) {
+                return false;
+            }
+            nextInstructions = instructions + interval;
+            return true;
+        case ModeMicroseconds:
+            if (instructions < nextInstructions) {
+                return false;
+            }
+            nextInstructions = instructions + ClockSampleInstructions;
+            long now = System.nanoTime();
+            if (nextNanos != 0L && now - nextNanos < 0L) {
+                return false;
+            }
+            nextNanos = now + 1000L*interval;
+            return true;
+        default:
+            return false;
+        }
+    }
+}
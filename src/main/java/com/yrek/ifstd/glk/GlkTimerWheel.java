@@ -0,0 +1,241 @@
+package com.yrek.ifstd.glk;
+
+import java.util.ArrayList;
+
+// Timer service shared by the sessions of a Glk implementation, so that
+// requestTimerEvents() does not need a thread per session.  Timers are
+// kept in a hierarchical wheel of Levels levels of Slots slots each, so
+// scheduling and cancelling are constant time.
+//
+// A timer that fires while its previous tick is still pending is not
+// delivered again: the session calls Timer.acknowledge() when it takes
+// the timer event from its queue.  Listeners are called on the wheel's
+// thread, without holding the wheel's lock.
+public class GlkTimerWheel {
+    private static final int SlotBits = 6;
+    private static final int Slots = 1 << SlotBits;
+    private static final int SlotMask = Slots - 1;
+    private static final int Levels = 4;
+    private static final long MaxTicks = (1L << (SlotBits*Levels)) - 1L;
+
+    private static GlkTimerWheel shared = null;
+
+    public interface Listener {
+        public void timer(Timer timer);
+    }
+
+    public final class Timer {
+        private final Listener listener;
+        private long interval = 0L;
+        private long dueMillis = 0L;
+        private long dueTick = 0L;
+        private int slot = -1;
+        private Timer prev = null;
+        private Timer next = null;
+        private boolean pending = false;
+
+        private Timer(Listener listener) {
+            this.listener = listener;
+        }
+
+        // Fires every intervalMillis milliseconds, or never, if
+        // intervalMillis is 0.
+        public void schedule(long intervalMillis) {
+            synchronized (GlkTimerWheel.this) {
+                unlink(this);
+                interval = Math.max(0L, intervalMillis);
+                if (interval > 0L) {
+                    dueMillis = System.currentTimeMillis() + interval;
+                    insert(this, Math.max(currentTick + 1L, tick(dueMillis)));
+                }
+            }
+        }
+
+        public void cancel() {
+            schedule(0L);
+        }
+
+        public void acknowledge() {
+            synchronized (GlkTimerWheel.this) {
+                pending = false;
+            }
+        }
+
+        public boolean isPending() {
+            synchronized (GlkTimerWheel.this) {
+                return pending;
+            }
+        }
+    }
+
+    private final long tickMillis;
+    private final long startMillis;
+    private final Timer[] slots = new Timer[Levels*Slots];
+    private long currentTick = 0L;
+    private int timerCount = 0;
+    private long firedCount = 0L;
+    private long coalescedCount = 0L;
+    private long totalLagMillis = 0L;
+    private long maxLagMillis = 0L;
+    private Thread thread = null;
+
+    public GlkTimerWheel(long tickMillis) {
+        if (tickMillis <= 0L) {
+            throw new IllegalArgumentException("Bad tick");
+        }
+        this.tickMillis = tickMillis;
+        this.startMillis = System.currentTimeMillis();
+    }
+
+    // A started wheel with 10 millisecond ticks.
+    public static synchronized GlkTimerWheel getShared() {
+        if (shared == null) {
+            shared = new GlkTimerWheel(10L);
+            shared.start();
+        }
+        return shared;
+    }
+
+    public Timer newTimer(Listener listener) {
+        return new Timer(listener);
+    }
+
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread("GlkTimerWheel") {
+            @Override
+            public void run() {
+                try {
+                    while (!isInterrupted()) {
+                        Thread.sleep(tickMillis);
+                        advance(System.currentTimeMillis());
+                    }
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    private long tick(long millis) {
+        return (millis - startMillis + tickMillis - 1L)/tickMillis;
+    }
+
+    private void insert(Timer timer, long dueTick) {
+        long delta = Math.min(dueTick - currentTick, MaxTicks);
+        timer.dueTick = currentTick + delta;
+        int level = 0;
+        while (level < Levels - 1 && delta >= 1L << (SlotBits*(level + 1))) {
+            level++;
+        }
+        int slot = level*Slots + (int) ((timer.dueTick >>> (SlotBits*level)) & SlotMask);
+        timer.slot = slot;
+        timer.prev = null;
+        timer.next = slots[slot];
+        if (timer.next != null) {
+            timer.next.prev = timer;
+        }
+        slots[slot] = timer;
+        timerCount++;
+    }
+
+    private void unlink(Timer timer) {
+        if (timer.slot < 0) {
+            return;
+        }
+        if (timer.prev == null) {
+            slots[timer.slot] = timer.next;
+        } else {
+            timer.prev.next = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.slot = -1;
+        timer.prev = null;
+        timer.next = null;
+        timerCount--;
+    }
+
+    // Fires the timers due up to nowMillis.
+    public void advance(long nowMillis) {
+        ArrayList<Timer> fired = new ArrayList<Timer>();
+        synchronized (this) {
+            long target = (nowMillis - startMillis)/tickMillis;
+            while (currentTick < target) {
+                currentTick++;
+                for (int level = 1; level < Levels && (currentTick & ((1L << (SlotBits*level)) - 1L)) == 0L; level++) {
+                    int slot = level*Slots + (int) ((currentTick >>> (SlotBits*level)) & SlotMask);
+                    Timer timer = slots[slot];
+                    while (timer != null) {
+                        Timer next = timer.next;
+                        unlink(timer);
+                        insert(timer, timer.dueTick);
+                        timer = next;
+                    }
+                }
+                int slot = (int) (currentTick & SlotMask);
+                Timer timer = slots[slot];
+                while (timer != null) {
+                    Timer next = timer.next;
+                    unlink(timer);
+                    fire(timer, nowMillis, fired);
+                    timer = next;
+                }
+            }
+        }
+        for (Timer timer : fired) {
+            timer.listener.timer(timer);
+        }
+    }
+
+    private void fire(Timer timer, long nowMillis, ArrayList<Timer> fired) {
+        long lag = Math.max(0L, nowMillis - timer.dueMillis);
+        totalLagMillis += lag;
+        maxLagMillis = Math.max(maxLagMillis, lag);
+        if (timer.pending) {
+            coalescedCount++;
+        } else {
+            firedCount++;
+            timer.pending = true;
+            fired.add(timer);
+        }
+        timer.dueMillis += timer.interval;
+        if (timer.dueMillis <= nowMillis) {
+            timer.dueMillis = nowMillis + timer.interval;
+        }
+        insert(timer, Math.max(currentTick + 1L, tick(timer.dueMillis)));
+    }
+
+    public synchronized int getTimerCount() {
+        return timerCount;
+    }
+
+    public synchronized long getFiredCount() {
+        return firedCount;
+    }
+
+    public synchronized long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    // Lag is the time from when a timer was due until its tick was
+    // processed, whether or not it was delivered.
+    public synchronized long getTotalLagMillis() {
+        return totalLagMillis;
+    }
+
+    public synchronized long getMaxLagMillis() {
+        return maxLagMillis;
+    }
+}
@@ -57,14 +57,14 @@ public abstract class GlkWindowStream extends GlkStream {
     @Override
     public void putStringUni(UnicodeString string) throws IOException {
         if (echoStream != null) {
-            throw new RuntimeException("unimplemented");
+            echoStream.putStringUni(string);
         }
     }
 
     @Override
     public void putBufferUni(GlkIntArray buffer) throws IOException {
         if (echoStream != null) {
-            throw new RuntimeException("unimplemented");
+            echoStream.putBufferUni(buffer);
         }
     }
 
@@ -1,8 +1,11 @@
 package com.yrek.ifstd.glulx;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.HashMap;
+import java.util.Map;
 
 class Acceleration implements Serializable {
     private static final long serialVersionUID = 0L;
@@ -12,6 +15,28 @@ class Acceleration implements Serializable {
     HashMap<Integer,Integer> functions = new HashMap<Integer,Integer>();
     int[] parameters = new int[9];
 
+    void writeSnapshot(DataOutput out) throws IOException {
+        out.writeInt(functions.size());
+        for (Map.Entry<Integer,Integer> e : functions.entrySet()) {
+            out.writeInt(e.getKey());
+            out.writeInt(e.getValue());
+        }
+        for (int parameter : parameters) {
+            out.writeInt(parameter);
+        }
+    }
+
+    void readSnapshot(DataInput in) throws IOException {
+        functions.clear();
+        for (int count = in.readInt(); count > 0; count--) {
+            int addr = in.readInt();
+            accelerate(in.readInt(), addr);
+        }
+        for (int i = 0; i < parameters.length; i++) {
+            parameters[i] = in.readInt();
+        }
+    }
+
     boolean gestalt(int index) {
         return index > 0 && index < table.length && table[index] != null;
     }
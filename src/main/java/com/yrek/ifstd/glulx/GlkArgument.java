@@ -1,5 +1,8 @@
 package com.yrek.ifstd.glulx;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 import com.yrek.ifstd.glk.GlkByteArray;
 import com.yrek.ifstd.glk.GlkIntArray;
 import com.yrek.ifstd.glk.GlkDispatchArgument;
@@ -206,4 +209,85 @@ class GlkArgument implements GlkDispatchArgument, GlkByteArray, GlkIntArray {
     public void setArrayLength(int arrayLength) {
         this.arrayLength = arrayLength;
     }
+
+    private int base(int index) {
+        if (value == -1) {
+            throw new IllegalArgumentException("Random access of stack");
+        }
+        return value + arrayOffset + index;
+    }
+
+    @Override
+    public void getBytes(int index, byte[] dst, int offset, int count) {
+        System.arraycopy(machine.state.memory, base(index), dst, offset, count);
+    }
+
+    @Override
+    public void setBytes(int index, byte[] src, int offset, int count) {
+        System.arraycopy(src, offset, machine.state.memory, base(index), count);
+    }
+
+    @Override
+    public void getBytes(int index, ByteBuffer dst, int count) {
+        dst.put(machine.state.memory, base(index), count);
+    }
+
+    @Override
+    public void setBytes(int index, ByteBuffer src, int count) {
+        src.get(machine.state.memory, base(index), count);
+    }
+
+    @Override
+    public void getInts(int index, int[] dst, int offset, int count) {
+        byte[] memory = machine.state.memory;
+        int addr = base(4*index);
+        for (int i = 0; i < count; i++) {
+            dst[offset + i] = State.load32(memory, addr + 4*i);
+        }
+    }
+
+    @Override
+    public void setInts(int index, int[] src, int offset, int count) {
+        byte[] memory = machine.state.memory;
+        int addr = base(4*index);
+        for (int i = 0; i < count; i++) {
+            State.store32(memory, addr + 4*i, src[offset + i]);
+        }
+    }
+
+    @Override
+    public void getInts(int index, ByteBuffer dst, int count) {
+        byte[] memory = machine.state.memory;
+        int addr = base(4*index);
+        if (dst.order() == ByteOrder.BIG_ENDIAN) {
+            dst.put(memory, addr, 4*count);
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            dst.putInt(State.load32(memory, addr + 4*i));
+        }
+    }
+
+    @Override
+    public void setInts(int index, ByteBuffer src, int count) {
+        byte[] memory = machine.state.memory;
+        int addr = base(4*index);
+        if (src.order() == ByteOrder.BIG_ENDIAN) {
+            src.get(memory, addr, 4*count);
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            State.store32(memory, addr + 4*i, src.getInt());
+        }
+    }
+
+    @Override
+    public byte[] getBackingArray() {
+        return value == -1 ? null : machine.state.memory;
+    }
+
+    @Override
+    public int getBackingOffset() {
+        return value + arrayOffset;
+    }
 }
@@ -1,14 +1,20 @@
 package com.yrek.ifstd.glulx;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Map;
 
+import com.yrek.ifstd.blorb.Blorb;
 import com.yrek.ifstd.glk.Glk;
 import com.yrek.ifstd.glk.GlkDispatch;
+import com.yrek.ifstd.glk.GlkQuota;
+import com.yrek.ifstd.glk.GlkTickPolicy;
 
 public class Glulx implements Runnable, Serializable {
     private static final long serialVersionUID = 0L;
@@ -18,23 +24,62 @@ public class Glulx implements Runnable, Serializable {
     public static PrintStream trace = null;
 
     private final Machine machine;
+    private GlkTickPolicy tickPolicy = GlkTickPolicy.everyTick();
+    private GlkQuota quota = null;
     private transient boolean suspend = false;
     private transient boolean suspended = false;
 
     public Glulx(byte[] byteData, GlkDispatch glk) throws IOException {
-        machine = new Machine(byteData, null, glk);
+        machine = new Machine(byteData, null, null, glk);
     }
 
     public Glulx(File fileData, GlkDispatch glk) throws IOException {
-        machine = new Machine(null, fileData, glk);
+        machine = new Machine(null, fileData, null, glk);
     }
 
     public Glulx(byte[] byteData, Glk glk) throws IOException {
-        machine = new Machine(byteData, null, new GlkDispatch(glk));
+        machine = new Machine(byteData, null, null, new GlkDispatch(glk));
     }
 
     public Glulx(File fileData, Glk glk) throws IOException {
-        machine = new Machine(null, fileData, new GlkDispatch(glk));
+        machine = new Machine(null, fileData, null, new GlkDispatch(glk));
+    }
+
+    // Runs the story from the remaining contents of storyData, such as
+    // a chunk of a mapped Blorb, which must not change.  Restart, save
+    // and restore read it again.  Snapshots keep one copy of it to write
+    // their deltas against.
+    public Glulx(ByteBuffer storyData, GlkDispatch glk) throws IOException {
+        machine = new Machine(null, null, storyData.slice(), glk);
+    }
+
+    public Glulx(Blorb blorb, GlkDispatch glk) throws IOException {
+        this(getStory(blorb), glk);
+    }
+
+    public Glulx(byte[] byteData, DataInput snapshot, GlkDispatch glk) throws IOException {
+        machine = new Machine(byteData, null, null, snapshot, glk);
+    }
+
+    public Glulx(File fileData, DataInput snapshot, GlkDispatch glk) throws IOException {
+        machine = new Machine(null, fileData, null, snapshot, glk);
+    }
+
+    public Glulx(ByteBuffer storyData, DataInput snapshot, GlkDispatch glk) throws IOException {
+        machine = new Machine(null, null, storyData.slice(), snapshot, glk);
+    }
+
+    public Glulx(Blorb blorb, DataInput snapshot, GlkDispatch glk) throws IOException {
+        this(getStory(blorb), snapshot, glk);
+    }
+
+    // The GLUL chunk of the Exec resource.
+    public static ByteBuffer getStory(Blorb blorb) throws IOException {
+        Blorb.Chunk chunk = blorb.getChunk(Blorb.Exec, 0);
+        if (chunk == null || chunk.getId() != Blorb.GLUL) {
+            throw new IllegalArgumentException("No Glulx story");
+        }
+        return chunk.getBuffer();
     }
 
     enum Result {
@@ -45,12 +90,25 @@ public class Glulx implements Runnable, Serializable {
     public void run() {
         suspended = false;
         suspend = false;
+        final GlkTickPolicy tickPolicy = this.tickPolicy;
+        final GlkQuota quota = this.quota;
+        tickPolicy.reset();
+        if (quota != null) {
+            quota.reset();
+        }
+        long instructions = 0L;
         for (;;) {
+            instructions++;
             switch (Insn.executeNext(machine)) {
             case Continue:
                 break;
             case Tick:
-                machine.glk.glk.tick();
+                if (tickPolicy.due(instructions)) {
+                    machine.glk.glk.tick();
+                }
+                if (quota != null && quota.exceeded(instructions, machine.glk.getSelectCount()) && quotaExceeded(quota)) {
+                    return;
+                }
                 if (suspend) {
                     synchronized (machine) {
                         suspended = true;
@@ -65,6 +123,51 @@ public class Glulx implements Runnable, Serializable {
         }
     }
 
+    // Returns true if execution should terminate.
+    private boolean quotaExceeded(GlkQuota quota) {
+        switch (quota.getAction()) {
+        case GlkQuota.ActionSuspend:
+            suspend = true;
+            return false;
+        case GlkQuota.ActionRewind:
+            try {
+                if (machine.glk.glk.streamGetCurrent() != null) {
+                    machine.glk.glk.putChar('\n');
+                    machine.glk.glk.putString(GlkQuota.Message);
+                    machine.glk.glk.putChar('\n');
+                }
+            } catch (IOException e) {
+            }
+            return !machine.restoreUndo();
+        default:
+            return true;
+        }
+    }
+
+    public void writeSnapshot(DataOutput out) throws IOException {
+        machine.writeSnapshot(out);
+    }
+
+    public long getResidentSize() {
+        return machine.getResidentSize();
+    }
+
+    public GlkTickPolicy getTickPolicy() {
+        return tickPolicy;
+    }
+
+    public void setTickPolicy(GlkTickPolicy tickPolicy) {
+        this.tickPolicy = tickPolicy == null ? GlkTickPolicy.everyTick() : tickPolicy;
+    }
+
+    public GlkQuota getQuota() {
+        return quota;
+    }
+
+    public void setQuota(GlkQuota quota) {
+        this.quota = quota;
+    }
+
     public void suspend(boolean wait) throws InterruptedException {
         suspend = true;
         if (wait) {
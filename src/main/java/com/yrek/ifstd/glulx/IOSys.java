@@ -12,6 +12,18 @@ abstract class IOSys implements Serializable {
         this.mode = mode;
     }
 
+    static IOSys create(int mode, int rock) {
+        switch (mode) {
+        case 1:
+            return new FilterIOSys(rock);
+        case 2:
+            return new GlkIOSys(rock);
+        case 0:
+        default:
+            return new NullIOSys(rock);
+        }
+    }
+
     void streamStringObject(Machine machine, int addr) {
         if (TRACE && Glulx.trace != null) {
             Glulx.trace.println();
@@ -495,12 +495,8 @@ class Insn {
                 return Result.Continue;
             case 294: // restoreundo
                 operandsS(machine);
-                for (int i = 0; i < machine.saveUndo.length; i++) {
-                    if (machine.saveUndo[i] != null && machine.saveUndo[i].pc != 0) {
-                        machine.state.copyFrom(machine.saveUndo[i], machine.protectStart, machine.protectLength);
-                        machine.saveUndo[i].pc = 0;
-                        return Result.Continue;
-                    }
+                if (machine.restoreUndo()) {
+                    return Result.Continue;
                 }
                 machine.operandS0.store(1);
                 return Result.Continue;
@@ -536,18 +532,7 @@ class Insn {
                 return Result.Continue;
             case 329: // setiosys
                 operandsL2(machine);
-                switch (machine.operandL0) {
-                case 1:
-                    machine.ioSys = new FilterIOSys(machine.operandL1);
-                    break;
-                case 2:
-                    machine.ioSys = new GlkIOSys(machine.operandL1);
-                    break;
-                case 0:
-                default:
-                    machine.ioSys = new NullIOSys(machine.operandL1);
-                    break;
-                }
+                machine.ioSys = IOSys.create(machine.operandL0, machine.operandL1);
                 return Result.Continue;
             case 336: // linearsearch
                 operandsL7S(machine);
@@ -1,26 +1,37 @@
 package com.yrek.ifstd.glulx;
 
 import java.io.ByteArrayInputStream;
+import java.io.DataInput;
 import java.io.DataInputStream;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.Serializable;
-import java.util.Random;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
+import com.yrek.ifstd.blorb.ByteBufferInputStream;
 import com.yrek.ifstd.glk.GlkDispatch;
+import com.yrek.ifstd.glk.GlkRandom;
+import com.yrek.ifstd.glk.GlkSnapshot;
 
 class Machine implements Serializable {
     private static final long serialVersionUID = 0L;
+    private static final int SnapshotMagic = 0x476c536e; // GlSn
+    private static final int SnapshotVersion = 3;
 
     final byte[] byteData;
     final File fileData;
+    // Not serializable, so a Machine loaded from a buffer can only be
+    // saved with writeSnapshot().
+    final transient ByteBuffer bufferData;
     transient GlkDispatch glk;
 
     State state;
     State[] saveUndo = new State[3];
-    Random random = new Random();
+    GlkRandom random = new GlkRandom();
     int protectStart = 0;
     int protectLength = 0;
     IOSys ioSys = new NullIOSys(0);
@@ -36,14 +47,23 @@ class Machine implements Serializable {
     transient Insn.Operand operandS0;
     transient Insn.Operand operandS1;
 
-    Machine(byte[] byteData, File fileData, GlkDispatch glk) throws IOException {
+    Machine(byte[] byteData, File fileData, ByteBuffer bufferData, GlkDispatch glk) throws IOException {
         this.byteData = byteData;
         this.fileData = fileData;
+        this.bufferData = bufferData;
         state = load();
         stringTable = StringTable.create(state, state.load32(28));
         resume(glk);
     }
 
+    Machine(byte[] byteData, File fileData, ByteBuffer bufferData, DataInput snapshot, GlkDispatch glk) throws IOException {
+        this.byteData = byteData;
+        this.fileData = fileData;
+        this.bufferData = bufferData;
+        readSnapshot(snapshot);
+        resume(glk);
+    }
+
     State load() throws IOException {
         State newState = new State();
         newState.readFile(getData(), 0, 0);
@@ -52,13 +72,98 @@ class Machine implements Serializable {
     }
 
     DataInputStream getData() throws IOException {
-        if (byteData != null) {
+        if (bufferData != null) {
+            return new DataInputStream(new ByteBufferInputStream(bufferData.duplicate()));
+        } else if (byteData != null) {
             return new DataInputStream(new ByteArrayInputStream(byteData));
         } else {
             return new DataInputStream(new FileInputStream(fileData));
         }
     }
 
+    // The original story, for snapshot and save deltas, read in place
+    // from index 0 rather than copied.  A story file is mapped.
+    ByteBuffer getStory() throws IOException {
+        if (bufferData != null) {
+            return bufferData.slice();
+        } else if (byteData != null) {
+            return ByteBuffer.wrap(byteData);
+        }
+        FileInputStream in = new FileInputStream(fileData);
+        try {
+            return in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, fileData.length());
+        } finally {
+            in.close();
+        }
+    }
+
+    void writeSnapshot(DataOutput out) throws IOException {
+        out.writeInt(SnapshotMagic);
+        out.writeInt(SnapshotVersion);
+        state.writeSnapshot(out, getStory());
+        out.writeInt(saveUndo.length);
+        for (State undo : saveUndo) {
+            out.writeBoolean(undo != null);
+            if (undo != null) {
+                undo.writeSnapshot(out, ByteBuffer.wrap(state.memory));
+            }
+        }
+        GlkSnapshot.writeRandom(out, random);
+        out.writeInt(protectStart);
+        out.writeInt(protectLength);
+        out.writeInt(ioSys.mode);
+        out.writeInt(ioSys.rock);
+        out.writeInt(stringTable.table);
+        acceleration.writeSnapshot(out);
+    }
+
+    private void readSnapshot(DataInput in) throws IOException {
+        if (in.readInt() != SnapshotMagic) {
+            throw new IllegalArgumentException("Bad magic");
+        }
+        if (in.readInt() != SnapshotVersion) {
+            throw new IllegalArgumentException("Unrecognized snapshot version");
+        }
+        state = new State();
+        state.readSnapshot(in, getStory());
+        int undoCount = in.readInt();
+        saveUndo = new State[undoCount];
+        for (int i = 0; i < undoCount; i++) {
+            if (in.readBoolean()) {
+                saveUndo[i] = new State();
+                saveUndo[i].readSnapshot(in, ByteBuffer.wrap(state.memory));
+            }
+        }
+        random = GlkSnapshot.readRandom(in);
+        protectStart = in.readInt();
+        protectLength = in.readInt();
+        int mode = in.readInt();
+        ioSys = IOSys.create(mode, in.readInt());
+        stringTable = StringTable.create(state, in.readInt());
+        acceleration.readSnapshot(in);
+    }
+
+    long getResidentSize() {
+        long size = state.memory.length + 4L*state.stack.length;
+        for (State undo : saveUndo) {
+            if (undo != null) {
+                size += undo.memory.length + 4L*undo.stack.length;
+            }
+        }
+        return size;
+    }
+
+    boolean restoreUndo() {
+        for (int i = 0; i < saveUndo.length; i++) {
+            if (saveUndo[i] != null && saveUndo[i].pc != 0) {
+                state.copyFrom(saveUndo[i], protectStart, protectLength);
+                saveUndo[i].pc = 0;
+                return true;
+            }
+        }
+        return false;
+    }
+
     void resume(GlkDispatch glk) {
         this.glk = glk;
         operandS0 = new Insn.Operand(this);
@@ -5,8 +5,11 @@ import java.io.DataOutput;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
+import com.yrek.ifstd.glk.GlkSnapshot;
+
 class State implements Serializable {
     private static final long serialVersionUID = 0L;
 
@@ -176,6 +179,32 @@ class State implements Serializable {
         }
     }
 
+    void writeSnapshot(DataOutput out, ByteBuffer original) throws IOException {
+        out.writeInt(pc);
+        out.writeInt(sp);
+        out.writeInt(fp);
+        out.writeInt(localsp);
+        out.writeInt(ramStart);
+        GlkSnapshot.writeDelta(out, memory, ramStart, original);
+        out.writeInt(stack.length);
+        GlkSnapshot.writeInts(out, stack, 0, sp/4);
+    }
+
+    void readSnapshot(DataInput in, ByteBuffer original) throws IOException {
+        pc = in.readInt();
+        sp = in.readInt();
+        fp = in.readInt();
+        localsp = in.readInt();
+        ramStart = in.readInt();
+        memory = GlkSnapshot.readDelta(in, original);
+        int stackLength = in.readInt();
+        if (sp < 0 || sp/4 > stackLength) {
+            throw new IllegalArgumentException("Bad stack");
+        }
+        stack = new int[stackLength];
+        GlkSnapshot.readInts(in, stack, 0, sp/4);
+    }
+
     State copyTo(State saveState) {
         if (saveState == null) {
             saveState = new State();
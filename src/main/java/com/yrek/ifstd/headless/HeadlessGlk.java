@@ -0,0 +1,670 @@
+package com.yrek.ifstd.headless;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import com.yrek.ifstd.glk.Glk;
+import com.yrek.ifstd.glk.GlkByteArray;
+import com.yrek.ifstd.glk.GlkDispatchMetrics;
+import com.yrek.ifstd.glk.GlkEvent;
+import com.yrek.ifstd.glk.GlkFile;
+import com.yrek.ifstd.glk.GlkGestalt;
+import com.yrek.ifstd.glk.GlkIntArray;
+import com.yrek.ifstd.glk.GlkSChannel;
+import com.yrek.ifstd.glk.GlkStream;
+import com.yrek.ifstd.glk.GlkStreamFile;
+import com.yrek.ifstd.glk.GlkStreamMemory;
+import com.yrek.ifstd.glk.GlkStreamMemoryUnicode;
+import com.yrek.ifstd.glk.GlkTimerWheel;
+import com.yrek.ifstd.glk.GlkWindow;
+import com.yrek.ifstd.glk.UnicodeString;
+
+// Glk implementation without a display, for running stories on a server.
+// The interpreter runs main() on its own thread.  Each select() publishes
+// a HeadlessGlkSnapshot of the screen, then waits for input, which other
+// threads pass in with lineInput(), charInput() and arrange().  Window
+// ids in the input calls are the ids in the snapshots.
+//
+// Saved games and other files are kept in a directory.  If there is no
+// directory, files cannot be created.
+public class HeadlessGlk implements Glk {
+    final int maxScrollback;
+    private final File directory;
+    private int width;
+    private int height;
+    HeadlessGlkWindow rootWindow = null;
+    private GlkStream currentStream = null;
+    private int windowIdCounter = 0;
+    private int timerInterval = 0;
+    private long nextTimer = 0L;
+    private GlkTimerWheel.Timer wheelTimer = null;
+    private boolean timerFired = false;
+    private long turn = 0L;
+    private boolean terminated = false;
+    private final ArrayDeque<Input> inputQueue = new ArrayDeque<Input>();
+    private volatile HeadlessGlkSnapshot snapshot = null;
+    private Listener listener = null;
+
+    // Called on the interpreter thread for every snapshot, while holding
+    // the HeadlessGlk lock.
+    public interface Listener {
+        public void snapshot(HeadlessGlkSnapshot snapshot);
+    }
+
+    private static class Input {
+        final HeadlessGlkWindow window;
+        final String line;
+        final int ch;
+        final int width;
+        final int height;
+        final boolean resync;
+
+        Input(HeadlessGlkWindow window, String line, int ch, int width, int height, boolean resync) {
+            this.window = window;
+            this.line = line;
+            this.ch = ch;
+            this.width = width;
+            this.height = height;
+            this.resync = resync;
+        }
+    }
+
+    private class Exit extends RuntimeException {
+        private static final long serialVersionUID = 0L;
+    }
+
+    // Text buffer windows keep at most maxScrollback lines, or all lines
+    // if maxScrollback is 0.
+    public HeadlessGlk(int width, int height, int maxScrollback, File directory) {
+        this.width = width;
+        this.height = height;
+        this.maxScrollback = maxScrollback;
+        this.directory = directory;
+    }
+
+    // Uses the wheel for timer events instead of timing out select().
+    // Called before main().
+    public synchronized void setTimerWheel(GlkTimerWheel timerWheel) {
+        wheelTimer = timerWheel.newTimer(new GlkTimerWheel.Listener() {
+            @Override
+            public void timer(GlkTimerWheel.Timer timer) {
+                synchronized (HeadlessGlk.this) {
+                    timerFired = true;
+                    HeadlessGlk.this.notifyAll();
+                }
+            }
+        });
+    }
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public HeadlessGlkSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    // Waits until a snapshot after the given turn has been published, and
+    // returns the latest snapshot, or null on timeout.
+    public synchronized HeadlessGlkSnapshot awaitSnapshot(long turn, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (snapshot == null || snapshot.turn <= turn) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0L) {
+                return null;
+            }
+            wait(wait);
+        }
+        return snapshot;
+    }
+
+    public synchronized void lineInput(int windowId, String line) {
+        HeadlessGlkWindow window = findWindow(windowId);
+        if ((window.lineBuffer == null && window.lineBufferUni == null) || queuedInput(window) != null) {
+            throw new IllegalArgumentException("No line input request");
+        }
+        inputQueue.add(new Input(window, line, 0, 0, 0, false));
+        notifyAll();
+    }
+
+    public synchronized void charInput(int windowId, int ch) {
+        HeadlessGlkWindow window = findWindow(windowId);
+        if ((!window.charRequest && !window.charRequestUni) || queuedInput(window) != null) {
+            throw new IllegalArgumentException("No char input request");
+        }
+        inputQueue.add(new Input(window, null, ch, 0, 0, false));
+        notifyAll();
+    }
+
+    public synchronized void arrange(int width, int height) {
+        if (width < 0 || height < 0) {
+            throw new IllegalArgumentException("Bad size");
+        }
+        inputQueue.add(new Input(null, null, 0, width, height, false));
+        notifyAll();
+    }
+
+    // Makes the interpreter publish a full snapshot when it is waiting
+    // for input.
+    public synchronized void resync() {
+        inputQueue.add(new Input(null, null, 0, 0, 0, true));
+        notifyAll();
+    }
+
+    // Makes the interpreter exit at its next select() after the input
+    // already sent.
+    public synchronized void terminate() {
+        terminated = true;
+        notifyAll();
+    }
+
+    private HeadlessGlkWindow findWindow(int windowId) {
+        HeadlessGlkWindow window = rootWindow == null ? null : rootWindow.find(windowId);
+        if (window == null) {
+            throw new IllegalArgumentException("No such window");
+        }
+        return window;
+    }
+
+    private Input queuedInput(HeadlessGlkWindow window) {
+        for (Input input : inputQueue) {
+            if (input.window == window) {
+                return input;
+            }
+        }
+        return null;
+    }
+
+    synchronized void layout() {
+        if (rootWindow != null) {
+            rootWindow.layout(0, 0, width, height);
+        }
+    }
+
+    private synchronized void publish(boolean exited, boolean full) {
+        ArrayList<HeadlessGlkSnapshot.Window> windows = new ArrayList<HeadlessGlkSnapshot.Window>();
+        if (rootWindow != null) {
+            rootWindow.snapshot(windows, full);
+        }
+        turn++;
+        snapshot = new HeadlessGlkSnapshot(turn, exited, full, width, height, windows);
+        if (listener != null) {
+            listener.snapshot(snapshot);
+        }
+        notifyAll();
+    }
+
+    @Override
+    public void main(Runnable main) throws IOException {
+        try {
+            main.run();
+        } catch (Exit e) {
+        } finally {
+            if (wheelTimer != null) {
+                wheelTimer.cancel();
+            }
+            publish(true, false);
+        }
+    }
+
+    @Override
+    public void exit() {
+        throw new Exit();
+    }
+
+    @Override
+    public void setInterruptHandler(Runnable handler) {
+    }
+
+    @Override
+    public void tick() {
+    }
+
+    @Override
+    public int gestalt(int selector, int value) {
+        switch (selector) {
+        case GlkGestalt.Version:
+            return Glk.GlkVersion;
+        case GlkGestalt.CharInput:
+        case GlkGestalt.LineInput:
+        case GlkGestalt.CharOutput:
+        case GlkGestalt.Timer:
+        case GlkGestalt.Unicode:
+        case GlkGestalt.LineInputEcho:
+            return 1;
+        default:
+            return 0;
+        }
+    }
+
+    @Override
+    public int gestaltExt(int selector, int value, GlkIntArray array) {
+        switch (selector) {
+        case GlkGestalt.CharOutput:
+            if (value == 10 || !Character.isISOControl(value)) {
+                array.setIntElement(1);
+                return GlkGestalt.CharOutput_ExactPrint;
+            } else {
+                array.setIntElement(0);
+                return GlkGestalt.CharOutput_CannotPrint;
+            }
+        default:
+            return gestalt(selector, value);
+        }
+    }
+
+    @Override
+    public synchronized GlkWindow windowGetRoot() {
+        return rootWindow;
+    }
+
+    @Override
+    public synchronized GlkWindow windowOpen(GlkWindow split, int method, int size, int winType, int rock) {
+        if ((rootWindow == null) != (split == null)) {
+            return null;
+        }
+        HeadlessGlkWindow newWindow = new HeadlessGlkWindow(this, ++windowIdCounter, winType, rock);
+        if (rootWindow == null) {
+            rootWindow = newWindow;
+        } else {
+            HeadlessGlkWindow splitWindow = (HeadlessGlkWindow) split;
+            HeadlessGlkWindow pairWindow = new HeadlessGlkWindow(this, ++windowIdCounter, GlkWindow.TypePair, 0);
+            pairWindow.parent = splitWindow.parent;
+            pairWindow.child1 = splitWindow;
+            pairWindow.child2 = newWindow;
+            pairWindow.key = newWindow;
+            pairWindow.method = method;
+            pairWindow.size = size;
+            if (pairWindow.parent == null) {
+                rootWindow = pairWindow;
+            } else if (pairWindow.parent.child1 == splitWindow) {
+                pairWindow.parent.child1 = pairWindow;
+            } else {
+                pairWindow.parent.child2 = pairWindow;
+            }
+            newWindow.parent = pairWindow;
+            splitWindow.parent = pairWindow;
+        }
+        layout();
+        return newWindow;
+    }
+
+    @Override
+    public void setWindow(GlkWindow window) {
+        streamSetCurrent(window == null ? null : window.getStream());
+    }
+
+    private File file(GlkFile file) {
+        return ((HeadlessGlkFile) file).file;
+    }
+
+    @Override
+    public GlkStream streamOpenFile(GlkFile file, int mode, int rock) throws IOException {
+        if (mode == GlkFile.ModeRead && !file.exists()) {
+            return null;
+        }
+        return new GlkStreamFile(file(file), mode, false, rock);
+    }
+
+    @Override
+    public GlkStream streamOpenFileUni(GlkFile file, int mode, int rock) throws IOException {
+        if (mode == GlkFile.ModeRead && !file.exists()) {
+            return null;
+        }
+        return new GlkStreamFile(file(file), mode, true, rock);
+    }
+
+    @Override
+    public GlkStream streamOpenMemory(GlkByteArray memory, int mode, int rock) {
+        return new GlkStreamMemory(memory, rock);
+    }
+
+    @Override
+    public GlkStream streamOpenMemoryUni(GlkIntArray memory, int mode, int rock) {
+        return new GlkStreamMemoryUnicode(memory, rock);
+    }
+
+    @Override
+    public GlkStream streamOpenResource(int resourceId, int rock) {
+        return null;
+    }
+
+    @Override
+    public GlkStream streamOpenResourceUni(int resourceId, int rock) {
+        return null;
+    }
+
+    @Override
+    public void streamSetCurrent(GlkStream stream) {
+        currentStream = stream;
+    }
+
+    @Override
+    public GlkStream streamGetCurrent() {
+        return currentStream;
+    }
+
+    @Override
+    public void putChar(int ch) throws IOException {
+        if (currentStream != null) {
+            currentStream.putChar(ch);
+        }
+    }
+
+    @Override
+    public void putString(CharSequence string) throws IOException {
+        if (currentStream != null) {
+            currentStream.putString(string);
+        }
+    }
+
+    @Override
+    public void putBuffer(GlkByteArray buffer) throws IOException {
+        if (currentStream != null) {
+            currentStream.putBuffer(buffer);
+        }
+    }
+
+    @Override
+    public void putCharUni(int ch) throws IOException {
+        if (currentStream != null) {
+            currentStream.putCharUni(ch);
+        }
+    }
+
+    @Override
+    public void putStringUni(UnicodeString string) throws IOException {
+        if (currentStream != null) {
+            currentStream.putStringUni(string);
+        }
+    }
+
+    @Override
+    public void putBufferUni(GlkIntArray buffer) throws IOException {
+        if (currentStream != null) {
+            currentStream.putBufferUni(buffer);
+        }
+    }
+
+    @Override
+    public void setStyle(int style) {
+        if (currentStream != null) {
+            currentStream.setStyle(style);
+        }
+    }
+
+    @Override
+    public void setHyperlink(int linkVal) {
+    }
+
+    @Override
+    public void styleHintSet(int winType, int style, int hint, int value) {
+    }
+
+    @Override
+    public void styleHintClear(int winType, int style, int hint) {
+    }
+
+    private String suffix(int usage) {
+        switch (usage & GlkFile.UsageTypeMask) {
+        case GlkFile.UsageSavedGame:
+            return ".glksave";
+        case GlkFile.UsageData:
+            return ".glkdata";
+        default:
+            return ".txt";
+        }
+    }
+
+    @Override
+    public GlkFile fileCreateTemp(int usage, int rock) throws IOException {
+        if (directory == null) {
+            return null;
+        }
+        return new HeadlessGlkFile(File.createTempFile("glk", suffix(usage), directory), usage, rock);
+    }
+
+    @Override
+    public GlkFile fileCreateByName(int usage, CharSequence name, int rock) throws IOException {
+        if (directory == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < name.length(); i++) {
+            char ch = name.charAt(i);
+            if (ch == '.') {
+                break;
+            } else if (Character.isLetterOrDigit(ch) || ch == '-' || ch == '_') {
+                sb.append(ch);
+            }
+        }
+        if (sb.length() == 0) {
+            sb.append("null");
+        }
+        return new HeadlessGlkFile(new File(directory, sb.toString() + suffix(usage)), usage, rock);
+    }
+
+    // There is no one to prompt, so each usage has a fixed file name.
+    @Override
+    public GlkFile fileCreateByPrompt(int usage, int mode, int rock) throws IOException {
+        switch (usage & GlkFile.UsageTypeMask) {
+        case GlkFile.UsageSavedGame:
+            return fileCreateByName(usage, "save", rock);
+        case GlkFile.UsageTranscript:
+            return fileCreateByName(usage, "transcript", rock);
+        case GlkFile.UsageInputRecord:
+            return fileCreateByName(usage, "commands", rock);
+        default:
+            return fileCreateByName(usage, "data", rock);
+        }
+    }
+
+    @Override
+    public GlkFile fileCreateFromFile(int usage, GlkFile file, int rock) throws IOException {
+        return new HeadlessGlkFile(file(file), usage, rock);
+    }
+
+    @Override
+    public GlkSChannel sChannelCreate(int rock) throws IOException {
+        return null;
+    }
+
+    @Override
+    public GlkSChannel sChannelCreateExt(int rock, int volume) throws IOException {
+        return null;
+    }
+
+    @Override
+    public int sChannelPlayMulti(GlkSChannel[] channels, int[] resourceIds, int notify) {
+        return 0;
+    }
+
+    @Override
+    public void soundLoadHint(int resourceId, boolean flag) {
+    }
+
+    @Override
+    public GlkEvent select() throws IOException {
+        publish(false, false);
+        synchronized (this) {
+            for (;;) {
+                Input input = inputQueue.poll();
+                if (input == null && terminated) {
+                    throw new Exit();
+                }
+                if (input != null && input.resync) {
+                    publish(false, true);
+                    continue;
+                }
+                if (input != null) {
+                    GlkEvent event = deliver(input);
+                    if (event != null) {
+                        return event;
+                    }
+                    continue;
+                }
+                GlkEvent event = selectTimer();
+                if (event != null) {
+                    return event;
+                }
+                GlkDispatchMetrics.beginWait();
+                try {
+                    wait(timerInterval > 0 && wheelTimer == null ? Math.max(1L, nextTimer - System.currentTimeMillis()) : 0L);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    GlkDispatchMetrics.endWait();
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized GlkEvent selectPoll() throws IOException {
+        for (Iterator<Input> i = inputQueue.iterator(); i.hasNext(); ) {
+            Input input = i.next();
+            if (input.window == null && !input.resync) {
+                i.remove();
+                return deliver(input);
+            }
+        }
+        GlkEvent event = selectTimer();
+        if (event != null) {
+            return event;
+        }
+        return new GlkEvent(GlkEvent.TypeNone, null, 0, 0);
+    }
+
+    private GlkEvent selectTimer() {
+        if (wheelTimer != null) {
+            if (!timerFired) {
+                return null;
+            }
+            timerFired = false;
+            wheelTimer.acknowledge();
+            return new GlkEvent(GlkEvent.TypeTimer, null, 0, 0);
+        }
+        if (timerInterval <= 0) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (now < nextTimer) {
+            return null;
+        }
+        nextTimer = now + timerInterval;
+        return new GlkEvent(GlkEvent.TypeTimer, null, 0, 0);
+    }
+
+    // Completes an input request.  Returns null if the request has been
+    // cancelled.
+    private GlkEvent deliver(Input input) {
+        HeadlessGlkWindow window = input.window;
+        if (window == null) {
+            width = input.width;
+            height = input.height;
+            layout();
+            return new GlkEvent(GlkEvent.TypeArrange, null, 0, 0);
+        }
+        if (input.line != null) {
+            return deliverLine(window, input.line);
+        }
+        if (window.charRequestUni) {
+            window.charRequestUni = false;
+            return new GlkEvent(GlkEvent.TypeCharInput, window, input.ch, 0);
+        }
+        if (window.charRequest) {
+            window.charRequest = false;
+            // Negative values are keycodes.
+            return new GlkEvent(GlkEvent.TypeCharInput, window, input.ch > 255 ? '?' : input.ch, 0);
+        }
+        return null;
+    }
+
+    private GlkEvent deliverLine(HeadlessGlkWindow window, String line) {
+        int[] codePoints = new int[line.codePointCount(0, line.length())];
+        for (int i = 0, index = 0; i < codePoints.length; i++) {
+            codePoints[i] = line.codePointAt(index);
+            index += Character.charCount(codePoints[i]);
+        }
+        int count;
+        if (window.lineBufferUni != null) {
+            count = Math.min(codePoints.length, window.lineBufferUni.getArrayLength());
+            window.lineBufferUni.setInts(0, codePoints, 0, count);
+            window.lineBufferUni = null;
+        } else if (window.lineBuffer != null) {
+            count = Math.min(codePoints.length, window.lineBuffer.getArrayLength());
+            byte[] bytes = new byte[count];
+            for (int i = 0; i < count; i++) {
+                bytes[i] = (byte) (codePoints[i] > 255 ? '?' : codePoints[i]);
+            }
+            window.lineBuffer.setBytes(0, bytes, 0, count);
+            window.lineBuffer = null;
+        } else {
+            return null;
+        }
+        if (window.echoLineEvent && window.winType == GlkWindow.TypeTextBuffer) {
+            int style = window.text.getStyle();
+            window.text.setStyle(GlkStream.StyleInput);
+            for (int i = 0; i < count; i++) {
+                window.put(codePoints[i]);
+            }
+            window.put('\n');
+            window.text.setStyle(style);
+        }
+        return new GlkEvent(GlkEvent.TypeLineInput, window, count, 0);
+    }
+
+    synchronized GlkEvent cancelLineEvent(HeadlessGlkWindow window) {
+        Input input = queuedInput(window);
+        if (input != null && input.line != null) {
+            inputQueue.remove(input);
+            GlkEvent event = deliverLine(window, input.line);
+            if (event != null) {
+                return event;
+            }
+        }
+        window.lineBuffer = null;
+        window.lineBufferUni = null;
+        return new GlkEvent(GlkEvent.TypeLineInput, window, 0, 0);
+    }
+
+    synchronized void cancelCharEvent(HeadlessGlkWindow window) {
+        Input input = queuedInput(window);
+        if (input != null && input.line == null) {
+            inputQueue.remove(input);
+        }
+        window.charRequest = false;
+        window.charRequestUni = false;
+    }
+
+    synchronized void cancelInput(HeadlessGlkWindow window) {
+        for (Iterator<Input> i = inputQueue.iterator(); i.hasNext(); ) {
+            if (i.next().window == window) {
+                i.remove();
+            }
+        }
+        window.lineBuffer = null;
+        window.lineBufferUni = null;
+        window.charRequest = false;
+        window.charRequestUni = false;
+    }
+
+    @Override
+    public synchronized void requestTimerEvents(int millisecs) {
+        timerInterval = millisecs;
+        nextTimer = System.currentTimeMillis() + millisecs;
+        if (wheelTimer != null) {
+            timerFired = false;
+            wheelTimer.acknowledge();
+            wheelTimer.schedule(millisecs);
+        }
+    }
+
+    @Override
+    public boolean imageGetInfo(int resourceId, int[] size) {
+        return false;
+    }
+}
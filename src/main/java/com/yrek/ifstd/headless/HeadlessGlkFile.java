@@ -0,0 +1,30 @@
+package com.yrek.ifstd.headless;
+
+import java.io.File;
+
+import com.yrek.ifstd.glk.GlkFile;
+
+public class HeadlessGlkFile extends GlkFile {
+    final File file;
+    final int usage;
+
+    HeadlessGlkFile(File file, int usage, int rock) {
+        super(rock);
+        this.file = file;
+        this.usage = usage;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public void delete() {
+        file.delete();
+    }
+
+    @Override
+    public boolean exists() {
+        return file.exists();
+    }
+}
@@ -0,0 +1,186 @@
+package com.yrek.ifstd.headless;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Just enough JSON for the remote protocol.  Objects are read as Maps,
+// arrays as Lists, and numbers as Doubles.  Malformed input throws
+// IllegalArgumentException.
+final class HeadlessGlkJson {
+    private final PushbackReader in;
+
+    HeadlessGlkJson(Reader in) {
+        this.in = new PushbackReader(in);
+    }
+
+    // Returns null at the end of the input.
+    Object read() throws IOException {
+        int ch = skipSpace();
+        if (ch < 0) {
+            return null;
+        }
+        in.unread(ch);
+        return readValue();
+    }
+
+    // Discards the rest of the current line, to resume after malformed
+    // input.
+    void skipLine() throws IOException {
+        for (int ch = in.read(); ch >= 0 && ch != '\n'; ch = in.read()) {
+        }
+    }
+
+    private int skipSpace() throws IOException {
+        for (;;) {
+            int ch = in.read();
+            if (ch < 0 || !Character.isWhitespace(ch)) {
+                return ch;
+            }
+        }
+    }
+
+    private int next() throws IOException {
+        int ch = skipSpace();
+        if (ch < 0) {
+            throw new EOFException();
+        }
+        return ch;
+    }
+
+    private Object readValue() throws IOException {
+        int ch = next();
+        switch (ch) {
+        case '{':
+            Map<String,Object> map = new HashMap<String,Object>();
+            ch = next();
+            if (ch == '}') {
+                return map;
+            }
+            for (;;) {
+                if (ch != '"') {
+                    throw new IllegalArgumentException("Bad JSON object");
+                }
+                String key = readString();
+                if (next() != ':') {
+                    throw new IllegalArgumentException("Bad JSON object");
+                }
+                map.put(key, readValue());
+                ch = next();
+                if (ch == '}') {
+                    return map;
+                } else if (ch != ',') {
+                    throw new IllegalArgumentException("Bad JSON object");
+                }
+                ch = next();
+            }
+        case '[':
+            List<Object> list = new ArrayList<Object>();
+            ch = next();
+            if (ch == ']') {
+                return list;
+            }
+            in.unread(ch);
+            for (;;) {
+                list.add(readValue());
+                ch = next();
+                if (ch == ']') {
+                    return list;
+                } else if (ch != ',') {
+                    throw new IllegalArgumentException("Bad JSON array");
+                }
+            }
+        case '"':
+            return readString();
+        default:
+            StringBuilder sb = new StringBuilder();
+            while (ch >= 0 && (Character.isLetterOrDigit(ch) || ch == '-' || ch == '+' || ch == '.')) {
+                sb.append((char) ch);
+                ch = in.read();
+            }
+            if (ch >= 0) {
+                in.unread(ch);
+            }
+            String word = sb.toString();
+            if (word.equals("true")) {
+                return Boolean.TRUE;
+            } else if (word.equals("false")) {
+                return Boolean.FALSE;
+            } else if (word.equals("null")) {
+                return null;
+            }
+            try {
+                return Double.valueOf(word);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad JSON value");
+            }
+        }
+    }
+
+    private String readString() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (;;) {
+            int ch = in.read();
+            if (ch < 0) {
+                throw new EOFException();
+            } else if (ch == '"') {
+                return sb.toString();
+            } else if (ch != '\\') {
+                sb.append((char) ch);
+                continue;
+            }
+            ch = in.read();
+            switch (ch) {
+            case 'b': sb.append('\b'); break;
+            case 'f': sb.append('\f'); break;
+            case 'n': sb.append('\n'); break;
+            case 'r': sb.append('\r'); break;
+            case 't': sb.append('\t'); break;
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(in.read(), 16);
+                    if (digit < 0) {
+                        throw new IllegalArgumentException("Bad JSON string");
+                    }
+                    value = 16*value + digit;
+                }
+                sb.append((char) value);
+                break;
+            default:
+                if (ch < 0) {
+                    throw new EOFException();
+                }
+                sb.append((char) ch);
+                break;
+            }
+        }
+    }
+
+    static void quote(StringBuilder sb, CharSequence string, int start, int end) {
+        sb.append('"');
+        for (int i = start; i < end; i++) {
+            char ch = string.charAt(i);
+            switch (ch) {
+            case '"': sb.append("\\\""); break;
+            case '\\': sb.append("\\\\"); break;
+            case '\n': sb.append("\\n"); break;
+            case '\r': sb.append("\\r"); break;
+            case '\t': sb.append("\\t"); break;
+            default:
+                if (ch < 0x20) {
+                    sb.append(String.format("\\u%04x", (int) ch));
+                } else {
+                    sb.append(ch);
+                }
+                break;
+            }
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,333 @@
+package com.yrek.ifstd.headless;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+
+import com.yrek.ifstd.glk.GlkEvent;
+import com.yrek.ifstd.glk.GlkWindow;
+
+// Serves a HeadlessGlk over a pair of character streams, such as stdin
+// and stdout, with the JSON messages of the RemGlk protocol.  Each
+// snapshot is sent as an update with its generation number, holding
+// only what changed: the text appended to buffer windows and the
+// changed lines of grid windows, and the window list when the layout
+// changes.
+//
+// Input messages are "init" and "arrange" with "metrics" holding
+// "width" and "height" in characters, "line" and "char" with "window"
+// and "value", and "refresh", which requests a full update.  If more
+// than MaxPendingUpdates updates are waiting to be written, they are
+// dropped and replaced by a full update.
+public class HeadlessGlkRemote implements HeadlessGlk.Listener {
+    public static final int MaxPendingUpdates = 64;
+
+    private static final String[] StyleNames = {
+        "normal", "emphasized", "preformatted", "header", "subheader", "alert", "note", "blockquote", "input", "user1", "user2",
+    };
+
+    private static final String[] KeyNames = {
+        "left", "right", "up", "down", "return", "delete", "escape", "tab", "pageup", "pagedown", "home", "end",
+    };
+
+    private final HeadlessGlk glk;
+    private final Reader in;
+    private final Writer out;
+    private final ArrayDeque<HeadlessGlkSnapshot> pending = new ArrayDeque<HeadlessGlkSnapshot>();
+    private boolean dropped = false;
+    private HeadlessGlkSnapshot lastSent = null;
+    private Thread writerThread = null;
+
+    public HeadlessGlkRemote(HeadlessGlk glk, Reader in, Writer out) {
+        this.glk = glk;
+        this.in = in;
+        this.out = out;
+        glk.setListener(this);
+    }
+
+    @Override
+    public void snapshot(HeadlessGlkSnapshot snapshot) {
+        synchronized (pending) {
+            if (dropped && !snapshot.full && !snapshot.exited) {
+                return;
+            }
+            if (snapshot.full) {
+                pending.clear();
+                dropped = false;
+            } else if (pending.size() >= MaxPendingUpdates) {
+                pending.clear();
+                dropped = true;
+                if (!snapshot.exited) {
+                    // The full update replaces this one.
+                    glk.resync();
+                    return;
+                }
+            }
+            pending.add(snapshot);
+            pending.notifyAll();
+        }
+    }
+
+    // Starts the thread that writes updates.  It stops after writing the
+    // update for the exit of the interpreter.
+    public synchronized void start() {
+        if (writerThread != null) {
+            return;
+        }
+        writerThread = new Thread("HeadlessGlkRemote") {
+            @Override
+            public void run() {
+                try {
+                    for (;;) {
+                        HeadlessGlkSnapshot snapshot;
+                        synchronized (pending) {
+                            while (pending.isEmpty()) {
+                                pending.wait();
+                            }
+                            snapshot = pending.poll();
+                        }
+                        write(update(lastSent, snapshot));
+                        lastSent = snapshot;
+                        if (snapshot.exited) {
+                            return;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                } catch (IOException e) {
+                    glk.terminate();
+                }
+            }
+        };
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    // Reads input messages until the end of the input, then makes the
+    // interpreter exit.  Bad messages are answered with errors, and after
+    // malformed JSON, the rest of its line is skipped.
+    public void run() throws IOException {
+        start();
+        HeadlessGlkJson json = new HeadlessGlkJson(in);
+        try {
+            for (;;) {
+                Object message;
+                try {
+                    message = json.read();
+                } catch (IllegalArgumentException e) {
+                    error(e);
+                    json.skipLine();
+                    continue;
+                }
+                if (message == null) {
+                    return;
+                }
+                try {
+                    input(message);
+                } catch (IllegalArgumentException e) {
+                    error(e);
+                }
+            }
+        } finally {
+            glk.terminate();
+        }
+    }
+
+    private void error(IllegalArgumentException e) throws IOException {
+        String error = String.valueOf(e.getMessage());
+        StringBuilder sb = new StringBuilder("{\"type\":\"error\",\"message\":");
+        HeadlessGlkJson.quote(sb, error, 0, error.length());
+        write(sb.append("}").toString());
+    }
+
+    private void write(String message) throws IOException {
+        synchronized (out) {
+            out.write(message);
+            out.write('\n');
+            out.flush();
+        }
+    }
+
+    private void input(Object message) {
+        if (!(message instanceof Map)) {
+            throw new IllegalArgumentException("Bad message");
+        }
+        Map<?,?> map = (Map<?,?>) message;
+        Object type = map.get("type");
+        if ("init".equals(type) || "arrange".equals(type)) {
+            Map<?,?> metrics = (Map<?,?>) get(map, "metrics", Map.class);
+            glk.arrange(number(metrics, "width"), number(metrics, "height"));
+        } else if ("line".equals(type)) {
+            glk.lineInput(number(map, "window"), (String) get(map, "value", String.class));
+        } else if ("char".equals(type)) {
+            glk.charInput(number(map, "window"), keycode((String) get(map, "value", String.class)));
+        } else if ("refresh".equals(type)) {
+            glk.resync();
+        } else {
+            throw new IllegalArgumentException("Unrecognized message type");
+        }
+    }
+
+    private Object get(Map<?,?> map, String key, Class<?> type) {
+        Object value = map.get(key);
+        if (!type.isInstance(value)) {
+            throw new IllegalArgumentException("Bad " + key);
+        }
+        return value;
+    }
+
+    private int number(Map<?,?> map, String key) {
+        return ((Double) get(map, key, Double.class)).intValue();
+    }
+
+    private int keycode(String value) {
+        for (int i = 0; i < KeyNames.length; i++) {
+            if (KeyNames[i].equals(value)) {
+                return GlkEvent.KeycodeLeft - i;
+            }
+        }
+        if (value.startsWith("func")) {
+            try {
+                int n = Integer.parseInt(value.substring(4));
+                if (n >= 1 && n <= 12) {
+                    return GlkEvent.KeycodeFunc1 + 1 - n;
+                }
+            } catch (NumberFormatException e) {
+            }
+        }
+        if (value.length() > 0 && value.codePointCount(0, value.length()) == 1) {
+            return value.codePointAt(0);
+        }
+        return GlkEvent.KeycodeUnknown;
+    }
+
+    static String update(HeadlessGlkSnapshot last, HeadlessGlkSnapshot snapshot) {
+        StringBuilder sb = new StringBuilder("{\"type\":\"update\",\"gen\":").append(snapshot.turn);
+        if (last == null || snapshot.full || !sameLayout(last, snapshot)) {
+            sb.append(",\"windows\":[");
+            String separator = "";
+            for (HeadlessGlkSnapshot.Window w : snapshot.windows) {
+                if (w.type == GlkWindow.TypePair) {
+                    continue;
+                }
+                sb.append(separator).append("{\"id\":").append(w.id).append(",\"type\":\"").append(typeName(w.type)).append("\",\"rock\":").append(w.rock);
+                sb.append(",\"left\":").append(w.left).append(",\"top\":").append(w.top).append(",\"width\":").append(w.width).append(",\"height\":").append(w.height);
+                if (w.type == GlkWindow.TypeTextGrid) {
+                    sb.append(",\"gridwidth\":").append(w.width).append(",\"gridheight\":").append(w.height);
+                }
+                sb.append("}");
+                separator = ",";
+            }
+            sb.append("]");
+        }
+        sb.append(",\"content\":[");
+        String separator = "";
+        for (HeadlessGlkSnapshot.Window w : snapshot.windows) {
+            if (w.type == GlkWindow.TypeTextBuffer && (w.cleared || w.text.length() > 0)) {
+                sb.append(separator).append("{\"id\":").append(w.id);
+                if (w.cleared) {
+                    sb.append(",\"clear\":true");
+                }
+                sb.append(",\"text\":[");
+                int start = 0;
+                for (;;) {
+                    int end = w.text.indexOf('\n', start);
+                    if (end < 0) {
+                        end = w.text.length();
+                    }
+                    if (start > 0) {
+                        sb.append(",");
+                    }
+                    sb.append("{");
+                    if (start == 0 && !w.cleared) {
+                        sb.append("\"append\":true");
+                        if (end > start) {
+                            sb.append(",");
+                        }
+                    }
+                    if (end > start) {
+                        sb.append("\"content\":");
+                        content(sb, w, start, end);
+                    }
+                    sb.append("}");
+                    if (end >= w.text.length()) {
+                        break;
+                    }
+                    start = end + 1;
+                }
+                sb.append("]}");
+                separator = ",";
+            } else if (w.type == GlkWindow.TypeTextGrid && w.getChangedLineCount() > 0) {
+                sb.append(separator).append("{\"id\":").append(w.id).append(",\"lines\":[");
+                for (int i = 0; i < w.getChangedLineCount(); i++) {
+                    int line = w.getChangedLine(i);
+                    sb.append(i > 0 ? "," : "").append("{\"line\":").append(line).append(",\"content\":");
+                    content(sb, w, line*w.width, (line + 1)*w.width);
+                    sb.append("}");
+                }
+                sb.append("]}");
+                separator = ",";
+            }
+        }
+        sb.append("],\"input\":[");
+        separator = "";
+        for (HeadlessGlkSnapshot.Window w : snapshot.windows) {
+            if (w.lineInput || w.charInput) {
+                sb.append(separator).append("{\"id\":").append(w.id).append(",\"gen\":").append(snapshot.turn).append(",\"type\":\"").append(w.lineInput ? "line" : "char").append("\"}");
+                separator = ",";
+            }
+        }
+        sb.append("]");
+        if (snapshot.exited) {
+            sb.append(",\"exit\":true");
+        }
+        return sb.append("}").toString();
+    }
+
+    private static void content(StringBuilder sb, HeadlessGlkSnapshot.Window w, int start, int end) {
+        sb.append("[");
+        for (int run = w.getRunIndex(start); run < w.getRunCount() && start < end; run++) {
+            int runEnd = Math.min(end, w.getRunEnd(run));
+            if (runEnd <= start) {
+                continue;
+            }
+            int style = w.getRunStyle(run);
+            sb.append(sb.charAt(sb.length() - 1) == '}' ? "," : "").append("{\"style\":\"").append(style >= 0 && style < StyleNames.length ? StyleNames[style] : "normal").append("\",\"text\":");
+            HeadlessGlkJson.quote(sb, w.text, start, runEnd);
+            sb.append("}");
+            start = runEnd;
+        }
+        sb.append("]");
+    }
+
+    private static String typeName(int type) {
+        switch (type) {
+        case GlkWindow.TypeTextBuffer:
+            return "buffer";
+        case GlkWindow.TypeTextGrid:
+            return "grid";
+        case GlkWindow.TypeGraphics:
+            return "graphics";
+        default:
+            return "blank";
+        }
+    }
+
+    private static boolean sameLayout(HeadlessGlkSnapshot last, HeadlessGlkSnapshot snapshot) {
+        List<HeadlessGlkSnapshot.Window> a = last.windows;
+        List<HeadlessGlkSnapshot.Window> b = snapshot.windows;
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            HeadlessGlkSnapshot.Window wa = a.get(i);
+            HeadlessGlkSnapshot.Window wb = b.get(i);
+            if (wa.id != wb.id || wa.left != wb.left || wa.top != wb.top || wa.width != wb.width || wa.height != wb.height) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,113 @@
+package com.yrek.ifstd.headless;
+
+import java.util.Collections;
+import java.util.List;
+
+// The screen after a turn, published by HeadlessGlk.select().
+public final class HeadlessGlkSnapshot {
+    public static final class Window {
+        public final int id;
+        public final int type;
+        public final int rock;
+        public final int parentId;
+        public final int left;
+        public final int top;
+        public final int width;
+        public final int height;
+        // Text buffer windows: true if the window was cleared during
+        // the turn.  text is the output of the turn.
+        // Text grid windows: text is the whole grid, height lines of
+        // width characters, without separators.
+        public final boolean cleared;
+        public final String text;
+        // (start, style) pairs, with starts relative to text.
+        private final int[] runs;
+        public final int cursorX;
+        public final int cursorY;
+        // Text grid windows: the lines changed during the turn.
+        private final int[] changedLines;
+        public final boolean lineInput;
+        public final boolean charInput;
+
+        Window(int id, int type, int rock, int parentId, int left, int top, int width, int height, boolean cleared, String text, int[] runs, int[] changedLines, int cursorX, int cursorY, boolean lineInput, boolean charInput) {
+            this.id = id;
+            this.type = type;
+            this.rock = rock;
+            this.parentId = parentId;
+            this.left = left;
+            this.top = top;
+            this.width = width;
+            this.height = height;
+            this.cleared = cleared;
+            this.text = text;
+            this.runs = runs;
+            this.changedLines = changedLines;
+            this.cursorX = cursorX;
+            this.cursorY = cursorY;
+            this.lineInput = lineInput;
+            this.charInput = charInput;
+        }
+
+        public int getRunCount() {
+            return runs.length/2;
+        }
+
+        public int getRunStart(int index) {
+            return runs[2*index];
+        }
+
+        public int getRunEnd(int index) {
+            return 2*index + 2 < runs.length ? runs[2*index + 2] : text.length();
+        }
+
+        public int getRunStyle(int index) {
+            return runs[2*index + 1];
+        }
+
+        public int getChangedLineCount() {
+            return changedLines.length;
+        }
+
+        public int getChangedLine(int index) {
+            return changedLines[index];
+        }
+
+        // Returns the index of the first run that covers start.
+        public int getRunIndex(int start) {
+            int index = 0;
+            while (2*index + 2 < runs.length && runs[2*index + 2] <= start) {
+                index++;
+            }
+            return index;
+        }
+    }
+
+    // The generation number, incremented for each snapshot.
+    public final long turn;
+    public final boolean exited;
+    // If true, the text of the buffer windows is all of their scrollback,
+    // and all grid lines are marked as changed.
+    public final boolean full;
+    public final int width;
+    public final int height;
+    // The root window first, then the rest of the tree in preorder.
+    public final List<Window> windows;
+
+    HeadlessGlkSnapshot(long turn, boolean exited, boolean full, int width, int height, List<Window> windows) {
+        this.turn = turn;
+        this.exited = exited;
+        this.full = full;
+        this.width = width;
+        this.height = height;
+        this.windows = Collections.unmodifiableList(windows);
+    }
+
+    public Window getWindow(int id) {
+        for (Window window : windows) {
+            if (window.id == id) {
+                return window;
+            }
+        }
+        return null;
+    }
+}
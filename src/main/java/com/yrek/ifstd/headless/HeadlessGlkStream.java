@@ -0,0 +1,88 @@
+package com.yrek.ifstd.headless;
+
+import java.io.IOException;
+
+import com.yrek.ifstd.glk.GlkByteArray;
+import com.yrek.ifstd.glk.GlkIntArray;
+import com.yrek.ifstd.glk.GlkWindowStream;
+import com.yrek.ifstd.glk.UnicodeString;
+
+public class HeadlessGlkStream extends GlkWindowStream {
+    private final HeadlessGlkWindow headlessWindow;
+    private final byte[] bytes = new byte[256];
+    private final int[] ints = new int[256];
+    int outputCount = 0;
+
+    HeadlessGlkStream(HeadlessGlkWindow window) {
+        super(window);
+        this.headlessWindow = window;
+    }
+
+    @Override
+    public void putChar(int ch) throws IOException {
+        super.putChar(ch);
+        outputCount++;
+        headlessWindow.put(ch & 255);
+    }
+
+    @Override
+    public void putString(CharSequence string) throws IOException {
+        super.putString(string);
+        int length = string.length();
+        outputCount += length;
+        for (int i = 0; i < length; i++) {
+            headlessWindow.put(string.charAt(i) & 255);
+        }
+    }
+
+    @Override
+    public void putBuffer(GlkByteArray buffer) throws IOException {
+        super.putBuffer(buffer);
+        int length = buffer.getArrayLength();
+        outputCount += length;
+        for (int i = 0; i < length; i += bytes.length) {
+            int count = Math.min(length - i, bytes.length);
+            buffer.getBytes(i, bytes, 0, count);
+            for (int j = 0; j < count; j++) {
+                headlessWindow.put(bytes[j] & 255);
+            }
+        }
+    }
+
+    @Override
+    public void putCharUni(int ch) throws IOException {
+        super.putCharUni(ch);
+        outputCount++;
+        headlessWindow.put(ch);
+    }
+
+    @Override
+    public void putStringUni(UnicodeString string) throws IOException {
+        super.putStringUni(string);
+        int length = string.codePointCount();
+        outputCount += length;
+        for (int i = 0; i < length; i++) {
+            headlessWindow.put(string.codePointAt(i));
+        }
+    }
+
+    @Override
+    public void putBufferUni(GlkIntArray buffer) throws IOException {
+        super.putBufferUni(buffer);
+        int length = buffer.getArrayLength();
+        outputCount += length;
+        for (int i = 0; i < length; i += ints.length) {
+            int count = Math.min(length - i, ints.length);
+            buffer.getInts(i, ints, 0, count);
+            for (int j = 0; j < count; j++) {
+                headlessWindow.put(ints[j]);
+            }
+        }
+    }
+
+    @Override
+    public void setStyle(int style) {
+        super.setStyle(style);
+        headlessWindow.setStyle(style);
+    }
+}
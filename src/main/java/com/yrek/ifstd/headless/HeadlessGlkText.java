@@ -0,0 +1,119 @@
+package com.yrek.ifstd.headless;
+
+import java.util.Arrays;
+
+// Text buffer window contents: the characters, and the styles as runs
+// of (start, style) pairs.  Once there are more than maxLines lines,
+// the oldest lines are dropped in batches, so at most 5/4 maxLines
+// lines are kept.
+final class HeadlessGlkText {
+    private final int maxLines;
+    private char[] chars = new char[256];
+    private int length = 0;
+    private int[] runs = new int[16];
+    private int runCount = 0;
+    private int lines = 0;
+    private int style = 0;
+    // Start of the output since the last snapshot.
+    private int mark = 0;
+
+    HeadlessGlkText(int maxLines) {
+        this.maxLines = maxLines;
+    }
+
+    void setStyle(int style) {
+        this.style = style;
+    }
+
+    int getStyle() {
+        return style;
+    }
+
+    void append(int ch) {
+        if (length + 2 > chars.length) {
+            chars = Arrays.copyOf(chars, 2*chars.length);
+        }
+        if (runCount == 0 || runs[2*runCount - 1] != style) {
+            if (2*runCount + 2 > runs.length) {
+                runs = Arrays.copyOf(runs, 2*runs.length);
+            }
+            runs[2*runCount] = length;
+            runs[2*runCount + 1] = style;
+            runCount++;
+        }
+        if (ch >= Character.MIN_SUPPLEMENTARY_CODE_POINT && ch <= Character.MAX_CODE_POINT) {
+            length += Character.toChars(ch, chars, length);
+        } else {
+            chars[length++] = (char) ch;
+        }
+        if (ch == '\n') {
+            lines++;
+            if (maxLines > 0 && lines > maxLines + maxLines/4) {
+                trim();
+            }
+        }
+    }
+
+    private void trim() {
+        int drop = lines - maxLines;
+        int cut = 0;
+        while (drop > 0) {
+            if (chars[cut++] == '\n') {
+                drop--;
+            }
+        }
+        System.arraycopy(chars, cut, chars, 0, length - cut);
+        length -= cut;
+        lines = maxLines;
+        mark = Math.max(0, mark - cut);
+        int first = 0;
+        while (first + 1 < runCount && runs[2*first + 2] <= cut) {
+            first++;
+        }
+        System.arraycopy(runs, 2*first, runs, 0, 2*(runCount - first));
+        runCount -= first;
+        runs[0] = 0;
+        for (int i = 1; i < runCount; i++) {
+            runs[2*i] -= cut;
+        }
+    }
+
+    void clear() {
+        length = 0;
+        runCount = 0;
+        lines = 0;
+        mark = 0;
+    }
+
+    int length() {
+        return length;
+    }
+
+    int getMark() {
+        return mark;
+    }
+
+    void setMark() {
+        mark = length;
+    }
+
+    String getText(int start) {
+        return new String(chars, start, length - start);
+    }
+
+    // The runs covering the text from start, relative to start.
+    int[] getRuns(int start) {
+        int first = 0;
+        while (first + 1 < runCount && runs[2*first + 2] <= start) {
+            first++;
+        }
+        if (start >= length) {
+            return new int[0];
+        }
+        int[] result = Arrays.copyOfRange(runs, 2*first, 2*runCount);
+        for (int i = 0; i < result.length; i += 2) {
+            result[i] = Math.max(0, result[i] - start);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,440 @@
+package com.yrek.ifstd.headless;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import com.yrek.ifstd.glk.GlkByteArray;
+import com.yrek.ifstd.glk.GlkEvent;
+import com.yrek.ifstd.glk.GlkIntArray;
+import com.yrek.ifstd.glk.GlkStreamResult;
+import com.yrek.ifstd.glk.GlkWindow;
+import com.yrek.ifstd.glk.GlkWindowArrangement;
+import com.yrek.ifstd.glk.GlkWindowSize;
+import com.yrek.ifstd.glk.GlkWindowStream;
+
+public class HeadlessGlkWindow extends GlkWindow {
+    final HeadlessGlk glk;
+    final int id;
+    final int winType;
+    final HeadlessGlkStream stream;
+    HeadlessGlkWindow parent = null;
+    HeadlessGlkWindow child1 = null;
+    HeadlessGlkWindow child2 = null;
+    HeadlessGlkWindow key = null;
+    int method = 0;
+    int size = 0;
+    int left = 0;
+    int top = 0;
+    int width = 0;
+    int height = 0;
+
+    // Text buffer windows
+    final HeadlessGlkText text;
+    boolean cleared = false;
+
+    // Text grid windows
+    char[] gridChars = new char[0];
+    byte[] gridStyles = new byte[0];
+    boolean[] gridChanged = new boolean[0];
+    int gridStyle = 0;
+    int cursorX = 0;
+    int cursorY = 0;
+
+    // Input requests, guarded by glk.
+    GlkByteArray lineBuffer = null;
+    GlkIntArray lineBufferUni = null;
+    boolean charRequest = false;
+    boolean charRequestUni = false;
+    boolean echoLineEvent = true;
+
+    HeadlessGlkWindow(HeadlessGlk glk, int id, int winType, int rock) {
+        super(rock);
+        this.glk = glk;
+        this.id = id;
+        this.winType = winType;
+        this.stream = winType == TypePair ? null : new HeadlessGlkStream(this);
+        this.text = winType == TypeTextBuffer ? new HeadlessGlkText(glk.maxScrollback) : null;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    void layout(int left, int top, int width, int height) {
+        this.left = left;
+        this.top = top;
+        if (winType == TypeTextGrid && (width != this.width || height != this.height)) {
+            char[] chars = new char[width*height];
+            byte[] styles = new byte[width*height];
+            Arrays.fill(chars, ' ');
+            for (int y = Math.min(height, this.height) - 1; y >= 0; y--) {
+                System.arraycopy(gridChars, y*this.width, chars, y*width, Math.min(width, this.width));
+                System.arraycopy(gridStyles, y*this.width, styles, y*width, Math.min(width, this.width));
+            }
+            gridChars = chars;
+            gridStyles = styles;
+            gridChanged = new boolean[height];
+            Arrays.fill(gridChanged, true);
+        }
+        this.width = width;
+        this.height = height;
+        if (winType != TypePair) {
+            return;
+        }
+        boolean vertical = (method & GlkWindowArrangement.MethodDirMask) == GlkWindowArrangement.MethodAbove || (method & GlkWindowArrangement.MethodDirMask) == GlkWindowArrangement.MethodBelow;
+        int total = vertical ? height : width;
+        int split;
+        if ((method & GlkWindowArrangement.MethodDivisionMask) == GlkWindowArrangement.MethodProportional) {
+            split = total*size/100;
+        } else {
+            split = key == null ? 0 : size;
+        }
+        split = Math.max(0, Math.min(total, split));
+        switch (method & GlkWindowArrangement.MethodDirMask) {
+        case GlkWindowArrangement.MethodLeft:
+            child2.layout(left, top, split, height);
+            child1.layout(left + split, top, width - split, height);
+            break;
+        case GlkWindowArrangement.MethodRight:
+            child1.layout(left, top, width - split, height);
+            child2.layout(left + width - split, top, split, height);
+            break;
+        case GlkWindowArrangement.MethodAbove:
+            child2.layout(left, top, width, split);
+            child1.layout(left, top + split, width, height - split);
+            break;
+        default:
+            child1.layout(left, top, width, height - split);
+            child2.layout(left, top + height - split, width, split);
+            break;
+        }
+    }
+
+    void put(int ch) {
+        switch (winType) {
+        case TypeTextBuffer:
+            text.append(ch);
+            break;
+        case TypeTextGrid:
+            if (ch == '\n') {
+                cursorX = 0;
+                cursorY++;
+                break;
+            }
+            // Glk cursor positions are unsigned, so a negative row is past
+            // the bottom edge and a negative column is past the right edge.
+            if (cursorY < 0) {
+                break;
+            }
+            if (cursorX < 0 || cursorX >= width) {
+                cursorX = 0;
+                cursorY++;
+            }
+            if (cursorY < height) {
+                gridChars[cursorY*width + cursorX] = ch > 0xffff ? '?' : (char) ch;
+                gridStyles[cursorY*width + cursorX] = (byte) gridStyle;
+                gridChanged[cursorY] = true;
+                cursorX++;
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    void setStyle(int style) {
+        if (winType == TypeTextBuffer) {
+            text.setStyle(style);
+        } else {
+            gridStyle = style;
+        }
+    }
+
+    void snapshot(List<HeadlessGlkSnapshot.Window> windows, boolean full) {
+        String snapshotText = "";
+        int[] runs = new int[0];
+        int[] changedLines = new int[0];
+        if (winType == TypeTextBuffer) {
+            int start = full ? 0 : text.getMark();
+            snapshotText = text.getText(start);
+            runs = text.getRuns(start);
+        } else if (winType == TypeTextGrid) {
+            snapshotText = new String(gridChars);
+            runs = gridRuns();
+            int count = 0;
+            for (int i = 0; i < height; i++) {
+                if (full || gridChanged[i]) {
+                    count++;
+                }
+            }
+            changedLines = new int[count];
+            count = 0;
+            for (int i = 0; i < height; i++) {
+                if (full || gridChanged[i]) {
+                    changedLines[count++] = i;
+                }
+            }
+            Arrays.fill(gridChanged, false);
+        }
+        windows.add(new HeadlessGlkSnapshot.Window(id, winType, getRock(), parent == null ? 0 : parent.id, left, top, width, height, full || cleared, snapshotText, runs, changedLines, cursorX, cursorY, lineBuffer != null || lineBufferUni != null, charRequest || charRequestUni));
+        if (winType == TypeTextBuffer) {
+            text.setMark();
+            cleared = false;
+        }
+        if (child1 != null) {
+            child1.snapshot(windows, full);
+            child2.snapshot(windows, full);
+        }
+    }
+
+    private int[] gridRuns() {
+        int count = 0;
+        for (int i = 0; i < gridStyles.length; i++) {
+            if (i == 0 || gridStyles[i] != gridStyles[i-1]) {
+                count++;
+            }
+        }
+        int[] runs = new int[2*count];
+        count = 0;
+        for (int i = 0; i < gridStyles.length; i++) {
+            if (i == 0 || gridStyles[i] != gridStyles[i-1]) {
+                runs[2*count] = i;
+                runs[2*count + 1] = gridStyles[i];
+                count++;
+            }
+        }
+        return runs;
+    }
+
+    HeadlessGlkWindow find(int id) {
+        if (this.id == id) {
+            return this;
+        }
+        if (child1 == null) {
+            return null;
+        }
+        HeadlessGlkWindow window = child1.find(id);
+        return window != null ? window : child2.find(id);
+    }
+
+    @Override
+    public GlkWindowStream getStream() {
+        return stream;
+    }
+
+    @Override
+    public GlkStreamResult close() throws IOException {
+        // The window tree is read by input threads and snapshots.
+        synchronized (glk) {
+            closeTree();
+            HeadlessGlkWindow sibling = (HeadlessGlkWindow) getSibling();
+            if (sibling == null) {
+                glk.rootWindow = null;
+            } else {
+                parent.destroy();
+                sibling.parent = parent.parent;
+                if (parent.parent == null) {
+                    glk.rootWindow = sibling;
+                } else if (parent.parent.child1 == parent) {
+                    parent.parent.child1 = sibling;
+                } else {
+                    parent.parent.child2 = sibling;
+                }
+            }
+            glk.layout();
+        }
+        return new GlkStreamResult(0, stream == null ? 0 : stream.outputCount);
+    }
+
+    private void closeTree() {
+        if (child1 != null) {
+            child1.closeTree();
+            child2.closeTree();
+        }
+        for (HeadlessGlkWindow p = parent; p != null; p = p.parent) {
+            if (p.key == this) {
+                p.key = null;
+            }
+        }
+        glk.cancelInput(this);
+        destroy();
+    }
+
+    @Override
+    public GlkWindowSize getSize() {
+        return new GlkWindowSize(width, height);
+    }
+
+    @Override
+    public void setArrangement(int method, int size, GlkWindow key) {
+        if (winType != TypePair) {
+            return;
+        }
+        synchronized (glk) {
+            this.method = method;
+            this.size = size;
+            if (key != null) {
+                this.key = (HeadlessGlkWindow) key;
+            }
+            glk.layout();
+        }
+    }
+
+    @Override
+    public GlkWindowArrangement getArrangement() {
+        return new GlkWindowArrangement(method, size, key);
+    }
+
+    @Override
+    public int getType() {
+        return winType;
+    }
+
+    @Override
+    public GlkWindow getParent() {
+        return parent;
+    }
+
+    @Override
+    public GlkWindow getSibling() {
+        if (parent == null) {
+            return null;
+        }
+        return this == parent.child1 ? parent.child2 : parent.child1;
+    }
+
+    @Override
+    public void clear() {
+        switch (winType) {
+        case TypeTextBuffer:
+            text.clear();
+            cleared = true;
+            break;
+        case TypeTextGrid:
+            Arrays.fill(gridChars, ' ');
+            Arrays.fill(gridStyles, (byte) 0);
+            Arrays.fill(gridChanged, true);
+            cursorX = 0;
+            cursorY = 0;
+            break;
+        default:
+            break;
+        }
+    }
+
+    @Override
+    public void moveCursor(int x, int y) {
+        cursorX = x;
+        cursorY = y;
+    }
+
+    @Override
+    public int getCursorX() {
+        return cursorX;
+    }
+
+    @Override
+    public int getCursorY() {
+        return cursorY;
+    }
+
+    @Override
+    public boolean styleDistinguish(int style1, int style2) {
+        return style1 != style2;
+    }
+
+    @Override
+    public Integer styleMeasure(int style, int hint) {
+        return null;
+    }
+
+    @Override
+    public void requestLineEvent(GlkByteArray buffer, int initLength) {
+        synchronized (glk) {
+            lineBuffer = buffer;
+        }
+    }
+
+    @Override
+    public void requestLineEventUni(GlkIntArray buffer, int initLength) {
+        synchronized (glk) {
+            lineBufferUni = buffer;
+        }
+    }
+
+    @Override
+    public void requestCharEvent() {
+        synchronized (glk) {
+            charRequest = true;
+        }
+    }
+
+    @Override
+    public void requestCharEventUni() {
+        synchronized (glk) {
+            charRequestUni = true;
+        }
+    }
+
+    @Override
+    public void requestMouseEvent() {
+    }
+
+    @Override
+    public void requestHyperlinkEvent() {
+    }
+
+    @Override
+    public GlkEvent cancelLineEvent() {
+        return glk.cancelLineEvent(this);
+    }
+
+    @Override
+    public void cancelCharEvent() {
+        glk.cancelCharEvent(this);
+    }
+
+    @Override
+    public void cancelMouseEvent() {
+    }
+
+    @Override
+    public void cancelHyperlinkEvent() {
+    }
+
+    @Override
+    public boolean drawImage(int resourceId, int val1, int val2) throws IOException {
+        return false;
+    }
+
+    @Override
+    public boolean drawScaledImage(int resourceId, int val1, int val2, int width, int height) throws IOException {
+        return false;
+    }
+
+    @Override
+    public void flowBreak() {
+    }
+
+    @Override
+    public void eraseRect(int left, int top, int width, int height) {
+    }
+
+    @Override
+    public void fillRect(int color, int left, int top, int width, int height) {
+    }
+
+    @Override
+    public void setBackgroundColor(int color) {
+    }
+
+    @Override
+    public void setEchoLineEvent(boolean echoLineEvent) {
+        this.echoLineEvent = echoLineEvent;
+    }
+
+    @Override
+    public void setTerminatorsLineEvent(int[] keycodes) {
+    }
+}
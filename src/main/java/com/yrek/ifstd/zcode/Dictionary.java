@@ -1,23 +1,28 @@
 package com.yrek.ifstd.zcode;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-
+// An index of the dictionary table at address: the encoded words in an
+// open addressing table from key to entry address, and the word
+// separators in a bitset.  The index is built once, and State drops it
+// when a store lands in the bytes it was built from.
 class Dictionary {
     private final State state;
-    private final HashMap<Long,Integer> table = new HashMap<Long,Integer>();
-    private final HashSet<Integer> wordChars = new HashSet<Integer>();
+    final int address;
+    // The end of the entries.
+    final int end;
+    private final long[] separators = new long[4];
+    private final long[] keys;
+    // The entry addresses, 0 for empty slots.
+    private final int[] entries;
+    private final int mask;
+    private final Word word = new Word();
 
-    Dictionary(State state) {
+    Dictionary(State state, int address) {
         this.state = state;
-        init(state, state.read16(State.DICTIONARY), table, wordChars);
-    }
-
-    private static void init(State state, int address, HashMap<Long,Integer> table, HashSet<Integer> wordChars) {
+        this.address = address;
         for (int i = state.read8(address); i > 0; i--) {
             address++;
-            wordChars.add(state.read8(address));
+            int ch = state.read8(address);
+            separators[ch >> 6] |= 1L << ch;
         }
         address++;
         int entryLength = state.read8(address);
@@ -26,94 +31,116 @@ class Dictionary {
             entryCount = 65536 - entryCount;
         }
         address += 3;
-        if (state.version < 4) {
-            for (int i = 0; i < entryCount; i++) {
-                table.put(((long) state.read16(address)) << 16 | (long) state.read16(address+2), address);
-                address += entryLength;
+        int size = 16;
+        while (size < 2*entryCount) {
+            size *= 2;
+        }
+        keys = new long[size];
+        entries = new int[size];
+        mask = size - 1;
+        for (int i = 0; i < entryCount; i++) {
+            long key;
+            if (state.version < 4) {
+                key = ((long) state.read16(address)) << 16 | (long) state.read16(address+2);
+            } else {
+                key = ((long) state.read16(address)) << 32 | ((long) state.read16(address+2)) << 16 | (long) state.read16(address+4);
             }
-        } else {
-            for (int i = 0; i < entryCount; i++) {
-                table.put(((long) state.read16(address)) << 32 | ((long) state.read16(address+2)) << 16 | (long) state.read16(address+4), address);
-                address += entryLength;
+            // Later entries replace earlier ones with the same key.
+            int slot = slot(key);
+            while (entries[slot] != 0 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
             }
+            keys[slot] = key;
+            entries[slot] = address;
+            address += entryLength;
         }
+        this.end = address;
     }
 
-    void parse(int bufferAddress, int bufferLength, int parseAddress) {
-        parse(state, table, wordChars, bufferAddress, bufferLength, parseAddress, false);
+    private int slot(long key) {
+        return (int) ((key * 0x9e3779b97f4a7c15L) >>> 40) & mask;
     }
 
-    void parse(int userDictionary, int bufferAddress, int bufferLength, int parseAddress, boolean flag) {
-        if (userDictionary == 0) {
-            parse(state, table, wordChars, bufferAddress, bufferLength, parseAddress, false);
-            return;
+    // Returns the entry address, or 0 if the word is not in the dictionary.
+    int lookup(long key) {
+        for (int slot = slot(key); entries[slot] != 0; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return entries[slot];
+            }
         }
-        HashMap<Long,Integer> table = new HashMap<Long,Integer>();
-        HashSet<Integer> wordChars = new HashSet<Integer>();
-        init(state, userDictionary, table, wordChars);
-        parse(state, table, wordChars, bufferAddress, bufferLength, parseAddress, flag);
+        return 0;
     }
 
-    private static void parse(final State state, HashMap<Long,Integer> table, HashSet<Integer> wordChars, final int bufferAddress, int bufferLength, int parseAddress, boolean flag) {
-        ArrayList<Integer> starts = new ArrayList<Integer>();
-        ArrayList<Integer> ends = new ArrayList<Integer>();
+    boolean isSeparator(int ch) {
+        return (separators[ch >> 6] & (1L << ch)) != 0;
+    }
+
+    void parse(int bufferAddress, int bufferLength, int parseAddress) {
+        parse(bufferAddress, bufferLength, parseAddress, false);
+    }
+
+    void parse(int bufferAddress, int bufferLength, int parseAddress, boolean flag) {
+        int max = state.read8(parseAddress);
+        int count = 0;
+        int start = -1;
         for (int i = 0; i < bufferLength; i++) {
             int ch = state.read8(bufferAddress+i);
-            if (starts.size() == ends.size()) {
-                if (ch == 32) {
-                } else if (wordChars.contains(ch)) {
-                    starts.add(i);
-                    ends.add(i+1);
-                } else {
-                    starts.add(i);
+            if (ch == 32) {
+                if (start >= 0) {
+                    store(count++, max, bufferAddress, start, i, parseAddress, flag);
+                    start = -1;
                 }
-            } else {
-                if (ch == 32) {
-                    ends.add(i);
-                } else if (wordChars.contains(ch)) {
-                    ends.add(i);
-                    starts.add(i);
-                    ends.add(i+1);
+            } else if (isSeparator(ch)) {
+                if (start >= 0) {
+                    store(count++, max, bufferAddress, start, i, parseAddress, flag);
+                    start = -1;
                 }
+                store(count++, max, bufferAddress, i, i+1, parseAddress, flag);
+            } else if (start < 0) {
+                start = i;
             }
         }
-        if (starts.size() > ends.size()) {
-            ends.add(bufferLength);
+        if (start >= 0) {
+            store(count++, max, bufferAddress, start, bufferLength, parseAddress, flag);
         }
-        int count = Math.min(starts.size(), state.read8(parseAddress));
-        state.store8(parseAddress+1,count);
-        int textHeader = state.version < 5 ? 1 : 2;
-        for (int i = 0; i < count; i++) {
-            final int start = starts.get(i);
-            final int end = ends.get(i);
-            long encoded = ZSCII.encode(state, new CharSequence() {
-                @Override public int length() {
-                    return end - start;
-                }
-                @Override public char charAt(int index) {
-                    return (char) state.read8(bufferAddress+start+index);
-                }
-                @Override public CharSequence subSequence(int i, int j) {
-                    throw new AssertionError();
-                }
-                @Override public String toString() {
-                    StringBuilder sb = new StringBuilder();
-                    for (int i = start; i < end; i++) {
-                        sb.append((char) state.read8(bufferAddress+i));
-                    }
-                    return sb.toString();
-                }
-            });
-            Integer entry = table.get(encoded);
-            if (entry != null) {
-                state.store16(parseAddress+2+4*i, entry);
-                state.store8(parseAddress+4+4*i, end-start);
-                state.store8(parseAddress+5+4*i, start+textHeader);
-            } else if (!flag) {
-                state.store16(parseAddress+2+4*i, 0);
-                state.store8(parseAddress+4+4*i, end-start);
-                state.store8(parseAddress+5+4*i, start+textHeader);
+        state.store8(parseAddress+1, Math.min(count, max));
+    }
+
+    private void store(int index, int max, int bufferAddress, int start, int end, int parseAddress, boolean flag) {
+        if (index >= max) {
+            return;
+        }
+        word.address = bufferAddress + start;
+        word.length = end - start;
+        int entry = lookup(ZSCII.encode(state, word));
+        if (entry != 0 || !flag) {
+            int textHeader = state.version < 5 ? 1 : 2;
+            state.store16(parseAddress+2+4*index, entry);
+            state.store8(parseAddress+4+4*index, end-start);
+            state.store8(parseAddress+5+4*index, start+textHeader);
+        }
+    }
+
+    // The word being encoded, read from the text buffer in place.
+    private class Word implements CharSequence {
+        int address;
+        int length;
+
+        @Override public int length() {
+            return length;
+        }
+        @Override public char charAt(int index) {
+            return (char) state.read8(address+index);
+        }
+        @Override public CharSequence subSequence(int i, int j) {
+            throw new AssertionError();
+        }
+        @Override public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < length; i++) {
+                sb.append(charAt(i));
             }
+            return sb.toString();
         }
     }
 }
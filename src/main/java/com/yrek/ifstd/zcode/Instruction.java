@@ -272,8 +272,8 @@ abstract class Instruction {
             @Override Result execute(Machine machine, int store, boolean cond, int branch, int oldPc) throws IOException {
                 int a0 = machine.operands[0].getValue();
                 int a1 = machine.operands[1].getValue();
-                while (machine.state.frame.index > a1) {
-                    machine.state.frame = machine.state.frame.parent;
+                while (machine.state.frameIndex() > a1) {
+                    machine.state.dropFrame();
                 }
                 return retVal(machine, a0);
             }
@@ -478,10 +478,10 @@ abstract class Instruction {
         },
         new Instruction("save", false, null) {
             @Override AdditionalOperands additionalOperands(int version) {
-                return version > 4 ? AdditionalOperands.Store : AdditionalOperands.Branch;
+                return version >= 4 ? AdditionalOperands.Store : AdditionalOperands.Branch;
             }
             @Override Result execute(Machine machine, int store, boolean cond, int branch, int oldPc) throws IOException {
-                return doSave(machine, store, cond, branch);
+                return doSave(machine, store, cond, branch, oldPc);
             }
         },
         new Instruction("restore", false, null) {
@@ -494,13 +494,13 @@ abstract class Instruction {
         },
         new Instruction("restart", false, AdditionalOperands.None) {
             @Override Result execute(Machine machine, int store, boolean cond, int branch, int oldPc) throws IOException {
-                machine.state.copyFrom(machine.load(), false, true);
+                machine.state.copyFrom(machine.load(), true);
                 return Result.Continue;
             }
         },
         new Instruction("ret_popped", false, AdditionalOperands.None) {
             @Override Result execute(Machine machine, int store, boolean cond, int branch, int oldPc) throws IOException {
-                return retVal(machine, machine.state.frame.pop());
+                return retVal(machine, machine.state.pop());
             }
         },
         new Instruction("pop/catch", false, null) {
@@ -509,10 +509,10 @@ abstract class Instruction {
             }
             @Override Result execute(Machine machine, int store, boolean cond, int branch, int oldPc) throws IOException {
                 if (machine.state.version < 5) {
-                    machine.state.frame.pop();
+                    machine.state.pop();
                     return Result.Continue;
                 }
-                machine.state.storeVar(store, machine.state.frame.index);
+                machine.state.storeVar(store, machine.state.frameIndex());
                 return Result.Continue;
             }
         },
@@ -605,7 +605,7 @@ abstract class Instruction {
                 machine.mainWindow.requestLineEvent(machine.state.getBuffer(bufferAddress, machine.state.read8(a0)), 0);
                 GlkEvent event;
                 for (;;) {
-                    event = machine.glk.glk.select();
+                    event = machine.glk.select();
                     if (event.type == GlkEvent.TypeLineInput) {
                         break;
                     } else if (machine.suspending) {
@@ -681,7 +681,7 @@ abstract class Instruction {
         },
         new Instruction("push", false, AdditionalOperands.None) {
             @Override Result execute(Machine machine, int store, boolean cond, int branch, int oldPc) throws IOException {
-                machine.state.frame.push(machine.operands[0].getValue());
+                machine.state.push(machine.operands[0].getValue());
                 return Result.Continue;
             }
         },
@@ -691,7 +691,7 @@ abstract class Instruction {
             }
             @Override Result execute(Machine machine, int store, boolean cond, int branch, int oldPc) throws IOException {
                 if (machine.state.version != 6) {
-                    machine.state.overwriteVar(machine.operands[0].getValue(), machine.state.frame.pop());
+                    machine.state.overwriteVar(machine.operands[0].getValue(), machine.state.pop());
                     return Result.Continue;
                 }
                 throw new RuntimeException("unimplemented");
@@ -873,7 +873,7 @@ abstract class Instruction {
                 machine.mainWindow.requestCharEvent();
                 GlkEvent event;
                 for (;;) {
-                    event = machine.glk.glk.select();
+                    event = machine.glk.select();
                     if (event.type == GlkEvent.TypeCharInput) {
                         break;
                     } else if (machine.suspending) {
@@ -964,7 +964,7 @@ abstract class Instruction {
                         }
                     }
                 }
-                machine.state.getDictionary().parse(a2, bufferAddress, bufferLength, a1, a3 != 0);
+                machine.state.getDictionary(a2).parse(bufferAddress, bufferLength, a1, a3 != 0);
                 return Result.Continue;
             }
         },
@@ -1042,7 +1042,7 @@ abstract class Instruction {
         new Instruction("check_arg_count", false, AdditionalOperands.Branch) {
             @Override Result execute(Machine machine, int store, boolean cond, int branch, int oldPc) throws IOException {
                 int a0 = machine.operands[0].getValue();
-                if (((machine.state.frame.args & (1 << (a0 - 1))) != 0) == cond) {
+                if (((machine.state.frameArgs() & (1 << (a0 - 1))) != 0) == cond) {
                     return doBranch(machine, branch);
                 }
                 return Result.Continue;
@@ -1056,7 +1056,7 @@ abstract class Instruction {
                 for (Operand operand : machine.operands) {
                     operand.getValue();
                 }
-                return doSave(machine, store, cond, branch);
+                return doSave(machine, store, cond, branch, oldPc);
             }
         },
         new Instruction("restore", false, AdditionalOperands.Store) {
@@ -1110,35 +1110,16 @@ abstract class Instruction {
         },
         new Instruction("save_undo", false, AdditionalOperands.Store) {
             @Override Result execute(Machine machine, int store, boolean cond, int branch, int oldPc) throws IOException {
-                State undoState;
-                if (machine.undoStateIndex >= machine.undoStates.length) {
-                    undoState = machine.undoStates[0];
-                    for (int i = 0; i < machine.undoStates.length-1; i++) {
-                        machine.undoStates[i] = machine.undoStates[i+1];
-                    }
-                    machine.undoStates[machine.undoStates.length-1] = undoState;
-                } else {
-                    undoState = machine.undoStates[machine.undoStateIndex];
-                    if (undoState == null) {
-                        undoState = new State();
-                    }
-                    machine.undoStates[machine.undoStateIndex] = undoState;
-                    machine.undoStateIndex++;
-                }
-                undoState.copyFrom(machine.state, true, false);
-                undoState.storeVar(store, 2);
+                machine.undo.save(machine.state, store);
                 machine.state.storeVar(store, 1);
                 return Result.Continue;
             }
         },
         new Instruction("restore_undo", false, AdditionalOperands.Store) {
             @Override Result execute(Machine machine, int store, boolean cond, int branch, int oldPc) throws IOException {
-                if (machine.undoStateIndex <= 0) {
+                if (!machine.restoreUndo()) {
                     machine.state.storeVar(store, 0);
-                    return Result.Continue;
                 }
-                machine.undoStateIndex--;
-                machine.state.copyFrom(machine.undoStates[machine.undoStateIndex], true, false);
                 return Result.Continue;
             }
         },
@@ -1445,11 +1426,7 @@ abstract class Instruction {
             break;
         case LiteralString:
             machine.string.setLength(0);
-            ZSCII.decode(machine.string, state, state.pc);
-            while (state.read8(state.pc) < 128) {
-                state.pc += 2;
-            }
-            state.pc += 2;
+            machine.string.append(state.literal(state.pc));
             break;
         }
         if (TRACE) {
@@ -1577,11 +1554,9 @@ abstract class Instruction {
     }
 
     private static Result retVal(Machine machine, int val) {
-        StackFrame frame = machine.state.frame;
-        machine.state.frame = frame.parent;
-        machine.state.pc = frame.returnAddress;
-        if (frame.result >= 0) {
-            machine.state.storeVar(frame.result, val);
+        int result = machine.state.popFrame();
+        if (result >= 0) {
+            machine.state.storeVar(result, val);
         }
         return Result.Tick;
     }
@@ -1595,37 +1570,40 @@ abstract class Instruction {
             return Result.Tick;
         }
         addr = machine.state.unpack(addr, true);
-        StackFrame frame = new StackFrame(machine.state.frame, machine.state.pc, result, 127 >> (7-argc), machine.state.read8(addr));
+        int count = machine.state.read8(addr) & 15;
+        int locals = machine.state.pushFrame(machine.state.pc, result, 127 >> (7-argc), count);
+        int[] stack = machine.state.stack;
         addr++;
         if (machine.state.version < 5) {
-            for (int i = 0; i < frame.locals.length; i++) {
-                frame.locals[i] = machine.state.read16(addr);
+            for (int i = 0; i < count; i++) {
+                stack[locals + i] = machine.state.read16(addr);
                 addr += 2;
             }
         }
-        switch (Math.min(argc, frame.locals.length)) {
-        default: frame.locals[6] = a7; /*FALLTHROUGH*/
-        case 6: frame.locals[5] = a6; /*FALLTHROUGH*/
-        case 5: frame.locals[4] = a5; /*FALLTHROUGH*/
-        case 4: frame.locals[3] = a4; /*FALLTHROUGH*/
-        case 3: frame.locals[2] = a3; /*FALLTHROUGH*/
-        case 2: frame.locals[1] = a2; /*FALLTHROUGH*/
-        case 1: frame.locals[0] = a1; /*FALLTHROUGH*/
+        switch (Math.min(argc, count)) {
+        default: stack[locals + 6] = a7; /*FALLTHROUGH*/
+        case 6: stack[locals + 5] = a6; /*FALLTHROUGH*/
+        case 5: stack[locals + 4] = a5; /*FALLTHROUGH*/
+        case 4: stack[locals + 3] = a4; /*FALLTHROUGH*/
+        case 3: stack[locals + 2] = a3; /*FALLTHROUGH*/
+        case 2: stack[locals + 1] = a2; /*FALLTHROUGH*/
+        case 1: stack[locals + 0] = a1; /*FALLTHROUGH*/
         case 0:
         }
-        machine.state.frame = frame;
         machine.state.pc = addr;
         return Result.Tick;
     }
 
-    private static Result doSave(Machine machine, int store, boolean cond, int branch) throws IOException {
+    // As in Quetzal, the saved PC is that of the store byte, or before
+    // version 4, the branch byte.
+    private static Result doSave(Machine machine, int store, boolean cond, int branch, int oldPc) throws IOException {
         GlkFile file = machine.glk.glk.fileCreateByPrompt(GlkFile.UsageSavedGame, GlkFile.ModeWrite, 0);
         GlkStream stream = null;
         if (file != null) {
             stream = machine.glk.glk.streamOpenFile(file, GlkFile.ModeWrite, 0);
         }
         if (stream == null) {
-            if (machine.state.version <= 4) {
+            if (machine.state.version <= 3) {
                 if (!cond) {
                     doBranch(machine, branch);
                 }
@@ -1634,22 +1612,21 @@ abstract class Instruction {
             }
             return Result.Continue;
         }
+        int pc = machine.state.pc;
         try {
-            if (machine.state.version <= 4) {
-                if (cond) {
-                    doBranch(machine, branch);
-                }
-                machine.state.writeSave(stream.getDataOutput());
-            } else {
-                State saveState = new State();
-                saveState.copyFrom(machine.state, true, false);
-                saveState.storeVar(store, 2);
-                saveState.writeSave(stream.getDataOutput());
-                machine.state.storeVar(store, 1);
-            }
+            machine.state.pc = machine.state.version <= 3 ? oldPc + 1 : pc - 1;
+            machine.state.writeSave(stream.getDataOutput(), machine.getStory());
         } finally {
+            machine.state.pc = pc;
             stream.close();
         }
+        if (machine.state.version <= 3) {
+            if (cond) {
+                return doBranch(machine, branch);
+            }
+        } else {
+            machine.state.storeVar(store, 1);
+        }
         return Result.Continue;
     }
 
@@ -1666,7 +1643,7 @@ abstract class Instruction {
             return Result.Continue;
         }
         try {
-            if (!machine.state.loadSave(stream.getDataInput(), true)) {
+            if (!machine.state.loadSave(stream.getDataInput(), machine.getStory(), true)) {
                 if (machine.state.version >= 4) {
                     machine.state.storeVar(store, 0);
                 }
@@ -1675,6 +1652,28 @@ abstract class Instruction {
         } finally {
             stream.close();
         }
+        // Resume at the save instruction's store or branch byte.
+        if (machine.state.version >= 4) {
+            machine.state.storeVar(machine.state.read8(machine.state.pc), 2);
+            machine.state.pc++;
+            return Result.Continue;
+        }
+        int branch = machine.state.read8(machine.state.pc);
+        machine.state.pc++;
+        boolean cond = (branch & 128) != 0;
+        branch &= 127;
+        if ((branch & 64) != 0) {
+            branch &= 63;
+        } else {
+            branch = (branch << 8) | machine.state.read8(machine.state.pc);
+            machine.state.pc++;
+            if (branch >= 8192) {
+                branch -= 16384;
+            }
+        }
+        if (cond) {
+            return doBranch(machine, branch);
+        }
         return Result.Continue;
     }
 
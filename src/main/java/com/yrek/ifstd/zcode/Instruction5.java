@@ -403,6 +403,9 @@ class Instruction5 {
         case 142:
             return insnLOAD(machine, operandL(machine));
         case 143:
+            if (machine.state.version < 5) {
+                return legacy(machine);
+            }
             return insnCALL_1N(machine, operandL(machine));
         case 144:
             return insnJZ(machine, operandS(machine));
@@ -435,6 +438,9 @@ class Instruction5 {
         case 158:
             return insnLOAD(machine, operandS(machine));
         case 159:
+            if (machine.state.version < 5) {
+                return legacy(machine);
+            }
             return insnCALL_1N(machine, operandS(machine));
         case 160:
             return insnJZ(machine, operandV(machine));
@@ -467,6 +473,9 @@ class Instruction5 {
         case 174:
             return insnLOAD(machine, operandV(machine));
         case 175:
+            if (machine.state.version < 5) {
+                return legacy(machine);
+            }
             return insnCALL_1N(machine, operandV(machine));
         case 176:
             return insnRTRUE(machine);
@@ -480,24 +489,39 @@ class Instruction5 {
             return Instruction.Result.Continue; // NOP
         case 181:
         case 182:
+            if (machine.state.version < 5) {
+                return legacy(machine);
+            }
             throw new IllegalArgumentException();
         case 183:
             return insnRESTART(machine);
         case 184:
             return insnRET_POPPED(machine);
         case 185:
+            if (machine.state.version < 5) {
+                return legacy(machine);
+            }
             return insnCATCH(machine);
         case 186:
             return insnQUIT(machine);
         case 187:
             return insnNEW_LINE(machine);
         case 188:
+            if (machine.state.version < 5) {
+                return legacy(machine);
+            }
             return Instruction.Result.Continue; // SHOW_STATUS -> NOP
         case 189:
             return insnVERIFY(machine);
         case 190:
+            if (machine.state.version < 5) {
+                return legacy(machine);
+            }
             return insnEXTENDED(machine);
         case 191:
+            if (machine.state.version < 5) {
+                return legacy(machine);
+            }
             return insnPIRACY(machine);
         case 192:
             throw new IllegalArgumentException();
@@ -599,6 +623,9 @@ class Instruction5 {
             operandsVAR(machine);
             return insnPUT_PROP(machine);
         case 228:
+            if (machine.state.version < 5) {
+                return legacy(machine);
+            }
             int oldPc = machine.state.pc-1;
             return insnREAD(machine, operandsVAR(machine), oldPc);
         case 229:
@@ -617,41 +644,77 @@ class Instruction5 {
             operandsVAR(machine);
             return insnPULL(machine);
         case 234:
+            if (machine.state.version < 5) {
+                return legacy(machine);
+            }
             operandsVAR(machine);
             return insnSPLIT_WINDOW(machine);
         case 235:
+            if (machine.state.version < 5) {
+                return legacy(machine);
+            }
             operandsVAR(machine);
             return insnSET_WINDOW(machine);
         case 236:
             return insnCALL_VS(machine, operandsVAR2(machine));
         case 237:
+            if (machine.state.version < 5) {
+                return legacy(machine);
+            }
             operandsVAR(machine);
             return insnERASE_WINDOW(machine);
         case 238:
+            if (machine.state.version < 5) {
+                return legacy(machine);
+            }
             operandsVAR(machine);
             return insnERASE_LINE(machine);
         case 239:
+            if (machine.state.version < 5) {
+                return legacy(machine);
+            }
             operandsVAR(machine);
             return insnSET_CURSOR(machine);
         case 240:
+            if (machine.state.version < 5) {
+                return legacy(machine);
+            }
             operandsVAR(machine);
             return insnGET_CURSOR(machine);
         case 241:
+            if (machine.state.version < 5) {
+                return legacy(machine);
+            }
             operandsVAR(machine);
             return insnSET_TEXT_STYLE(machine);
         case 242:
+            if (machine.state.version < 5) {
+                return legacy(machine);
+            }
             operandsVAR(machine);
             return insnBUFFER_MODE(machine);
         case 243:
+            if (machine.state.version < 5) {
+                return legacy(machine);
+            }
             operandsVAR(machine);
             return insnOUTPUT_STREAM(machine);
         case 244:
+            if (machine.state.version < 5) {
+                return legacy(machine);
+            }
             operandsVAR(machine);
             return insnINPUT_STREAM(machine);
         case 245:
+            if (machine.state.version < 5) {
+                return legacy(machine);
+            }
             operandsVAR(machine);
             return insnSOUND_EFFECT(machine);
         case 246:
+            if (machine.state.version < 5) {
+                return legacy(machine);
+            }
             oldPc = machine.state.pc-1;
             operandsVAR(machine);
             return insnREAD_CHAR(machine,oldPc);
@@ -680,6 +743,13 @@ class Instruction5 {
         }
     }
 
+    // Opcodes that are different before version 5, and the input and
+    // screen model opcodes, are left to Instruction for versions 1-4.
+    private static Instruction.Result legacy(Machine machine) throws IOException {
+        machine.state.pc--;
+        return Instruction.executeNext(machine);
+    }
+
     private static void operandsSS(Machine machine) {
         machine.operand[0] = machine.state.read8(machine.state.pc++);
         machine.operand[1] = machine.state.read8(machine.state.pc++);
@@ -799,19 +869,13 @@ class Instruction5 {
     private static void literalString(Machine machine) throws IOException {
         final State state = machine.state;
         machine.string.setLength(0);
-        ZSCII.decode(machine.string, state, state.pc);
-        while (state.read8(state.pc) < 128) {
-            state.pc += 2;
-        }
-        state.pc += 2;
+        machine.string.append(state.literal(state.pc));
     }
 
     private static Instruction.Result retVal(Machine machine, int val) {
-        StackFrame frame = machine.state.frame;
-        machine.state.frame = frame.parent;
-        machine.state.pc = frame.returnAddress;
-        if (frame.result >= 0) {
-            machine.state.storeVar(frame.result, val);
+        int result = machine.state.popFrame();
+        if (result >= 0) {
+            machine.state.storeVar(result, val);
         }
         return Instruction.Result.Tick;
     }
@@ -825,19 +889,26 @@ class Instruction5 {
             return Instruction.Result.Tick;
         }
         addr = machine.state.unpack(addr, true);
-        StackFrame frame = new StackFrame(machine.state.frame, machine.state.pc, result, 127 >> (7-argc), machine.state.read8(addr));
+        int count = machine.state.read8(addr) & 15;
+        int locals = machine.state.pushFrame(machine.state.pc, result, 127 >> (7-argc), count);
+        int[] stack = machine.state.stack;
         addr++;
-        switch (Math.min(argc, frame.locals.length)) {
-        default: frame.locals[6] = a7; /*FALLTHROUGH*/
-        case 6: frame.locals[5] = a6; /*FALLTHROUGH*/
-        case 5: frame.locals[4] = a5; /*FALLTHROUGH*/
-        case 4: frame.locals[3] = a4; /*FALLTHROUGH*/
-        case 3: frame.locals[2] = a3; /*FALLTHROUGH*/
-        case 2: frame.locals[1] = a2; /*FALLTHROUGH*/
-        case 1: frame.locals[0] = a1; /*FALLTHROUGH*/
+        if (machine.state.version < 5) {
+            for (int i = 0; i < count; i++) {
+                stack[locals + i] = machine.state.read16(addr);
+                addr += 2;
+            }
+        }
+        switch (Math.min(argc, count)) {
+        default: stack[locals + 6] = a7; /*FALLTHROUGH*/
+        case 6: stack[locals + 5] = a6; /*FALLTHROUGH*/
+        case 5: stack[locals + 4] = a5; /*FALLTHROUGH*/
+        case 4: stack[locals + 3] = a4; /*FALLTHROUGH*/
+        case 3: stack[locals + 2] = a3; /*FALLTHROUGH*/
+        case 2: stack[locals + 1] = a2; /*FALLTHROUGH*/
+        case 1: stack[locals + 0] = a1; /*FALLTHROUGH*/
         case 0:
         }
-        machine.state.frame = frame;
         machine.state.pc = addr;
         return Instruction.Result.Tick;
     }
@@ -1098,8 +1169,8 @@ class Instruction5 {
     }
 
     private static Instruction.Result insnTHROW(Machine machine) {
-        while (machine.state.frame.index > machine.operand[1]) {
-            machine.state.frame = machine.state.frame.parent;
+        while (machine.state.frameIndex() > machine.operand[1]) {
+            machine.state.dropFrame();
         }
         return retVal(machine, machine.operand[0]);
     }
@@ -1252,16 +1323,16 @@ class Instruction5 {
     }
 
     private static Instruction.Result insnRESTART(Machine machine) throws IOException {
-        machine.state.copyFrom(machine.load(), false, true);
+        machine.state.copyFrom(machine.load(), true);
         return Instruction.Result.Continue;
     }
 
     private static Instruction.Result insnRET_POPPED(Machine machine) {
-        return retVal(machine, machine.state.frame.pop());
+        return retVal(machine, machine.state.pop());
     }
 
     private static Instruction.Result insnCATCH(Machine machine) {
-        store(machine.state, machine.state.frame.index);
+        store(machine.state, machine.state.frameIndex());
         return Instruction.Result.Continue;
     }
 
@@ -1371,7 +1442,7 @@ class Instruction5 {
         machine.mainWindow.requestLineEvent(machine.state.getBuffer(bufferAddress, machine.state.read8(a0)), 0);
         GlkEvent event;
         for (;;) {
-            event = machine.glk.glk.select();
+            event = machine.glk.select();
             if (event.type == GlkEvent.TypeLineInput) {
                 break;
             } else if (machine.suspending) {
@@ -1435,12 +1506,12 @@ class Instruction5 {
     }
 
     private static Instruction.Result insnPUSH(Machine machine) {
-        machine.state.frame.push(machine.operand[0]);
+        machine.state.push(machine.operand[0]);
         return Instruction.Result.Continue;
     }
 
     private static Instruction.Result insnPULL(Machine machine) {
-        machine.state.overwriteVar(machine.operand[0], machine.state.frame.pop());
+        machine.state.overwriteVar(machine.operand[0], machine.state.pop());
         return Instruction.Result.Continue;
     }
 
@@ -1591,7 +1662,7 @@ class Instruction5 {
         machine.mainWindow.requestCharEvent();
         GlkEvent event;
         for (;;) {
-            event = machine.glk.glk.select();
+            event = machine.glk.select();
             if (event.type == GlkEvent.TypeCharInput) {
                 break;
             } else if (machine.suspending) {
@@ -1655,7 +1726,7 @@ class Instruction5 {
         int a3 = argc > 3 ? machine.operand[3] : 0;
         int bufferAddress = a0+2;
         int bufferLength = machine.state.read8(bufferAddress-1);
-        machine.state.getDictionary().parse(a2, bufferAddress, bufferLength, a1, a3 != 0);
+        machine.state.getDictionary(a2).parse(bufferAddress, bufferLength, a1, a3 != 0);
         return Instruction.Result.Continue;
     }
 
@@ -1728,7 +1799,7 @@ class Instruction5 {
     }
 
     private static Instruction.Result insnCHECK_ARG_COUNT(Machine machine) {
-        return branch(machine, (machine.state.frame.args & (1 << (machine.operand[0] - 1))) != 0);
+        return branch(machine, (machine.state.frameArgs() & (1 << (machine.operand[0] - 1))) != 0);
     }
 
     private static Instruction.Result insnSAVE(Machine machine) throws IOException {
@@ -1741,15 +1812,13 @@ class Instruction5 {
             store(machine.state, 0);
             return Instruction.Result.Continue;
         }
+        // The saved PC is that of the store byte, as in Quetzal.
         try {
-            State saveState = new State();
-            saveState.copyFrom(machine.state, true, false);
-            store(saveState, 2);
-            saveState.writeSave(stream.getDataOutput());
-            store(machine.state, 1);
+            machine.state.writeSave(stream.getDataOutput(), machine.getStory());
         } finally {
             stream.close();
         }
+        store(machine.state, 1);
         return Instruction.Result.Continue;
     }
 
@@ -1764,13 +1833,14 @@ class Instruction5 {
             return Instruction.Result.Continue;
         }
         try {
-            if (!machine.state.loadSave(stream.getDataInput(), true)) {
+            if (!machine.state.loadSave(stream.getDataInput(), machine.getStory(), true)) {
                 store(machine.state, 0);
                 return Instruction.Result.Continue;
             }
         } finally {
             stream.close();
         }
+        store(machine.state, 2);
         return Instruction.Result.Continue;
     }
 
@@ -1793,34 +1863,16 @@ class Instruction5 {
     }
 
     private static Instruction.Result insnSAVE_UNDO(Machine machine) {
-        State undoState;
-        if (machine.undoStateIndex >= machine.undoStates.length) {
-            undoState = machine.undoStates[0];
-            for (int i = 0; i < machine.undoStates.length-1; i++) {
-                machine.undoStates[i] = machine.undoStates[i+1];
-            }
-            machine.undoStates[machine.undoStates.length-1] = undoState;
-        } else {
-            undoState = machine.undoStates[machine.undoStateIndex];
-            if (undoState == null) {
-                undoState = new State();
-            }
-            machine.undoStates[machine.undoStateIndex] = undoState;
-            machine.undoStateIndex++;
-        }
-        undoState.copyFrom(machine.state, true, false);
-        store(undoState, 2);
-        store(machine.state, 1);
+        int result = machine.state.read8(machine.state.pc++);
+        machine.undo.save(machine.state, result);
+        machine.state.storeVar(result, 1);
         return Instruction.Result.Continue;
     }
 
     private static Instruction.Result insnRESTORE_UNDO(Machine machine) {
-        if (machine.undoStateIndex <= 0) {
+        if (!machine.restoreUndo()) {
             store(machine.state, 0);
-            return Instruction.Result.Continue;
         }
-        machine.undoStateIndex--;
-        machine.state.copyFrom(machine.undoStates[machine.undoStateIndex], true, false);
         return Instruction.Result.Continue;
     }
 
@@ -0,0 +1,78 @@
+package com.yrek.ifstd.zcode;
+
+import java.io.IOException;
+
+// The decoded inline text of print and print_ret instructions, by
+// address, so that loops printing the same text do not decode it each
+// time.  Text in static and high memory cannot change.  The bytes of
+// dynamic memory that cached text depends on (the text itself, the
+// abbreviation table entries and strings it uses, and the alphabet and
+// unicode tables) are marked, and State drops the cache when any of them
+// is written.
+class Literals {
+    private static final int Size = 1024;
+
+    private final State state;
+    private final int staticMemory;
+    private final int[] addresses = new int[Size];
+    private final int[] ends = new int[Size];
+    private final String[] strings = new String[Size];
+    private final long[] watched;
+    private final StringBuilder sb = new StringBuilder();
+
+    Literals(State state) {
+        this.state = state;
+        this.staticMemory = Math.min(state.read16(State.STATIC_MEMORY), state.ram.length);
+        this.watched = new long[(staticMemory + 63) >> 6];
+        if (state.version >= 5) {
+            int alphabetTable = state.read16(State.ALPHABET_TABLE);
+            if (alphabetTable != 0) {
+                watch(alphabetTable, 78);
+            }
+            int ext = state.read16(State.EXTRA_HEADERS);
+            if (ext != 0 && state.read16(ext + State.EXTRA_HEADERS_SIZE*2) >= State.EXTRA_HEADERS_UNICODE_TABLE) {
+                watch(ext + State.EXTRA_HEADERS_UNICODE_TABLE*2, 2);
+                int unicodeTable = state.read16(ext + State.EXTRA_HEADERS_UNICODE_TABLE*2);
+                if (unicodeTable != 0) {
+                    watch(unicodeTable, 1 + 2*state.read8(unicodeTable));
+                }
+            }
+        }
+    }
+
+    // Returns the text at address and sets pc to the end of it.
+    String get(int address) throws IOException {
+        int index = (address ^ (address >>> 10)) & (Size - 1);
+        if (addresses[index] == address && strings[index] != null) {
+            state.pc = ends[index];
+            return strings[index];
+        }
+        sb.setLength(0);
+        ZSCII.decode(sb, state, address, this);
+        int end = address;
+        while (state.read8(end) < 128) {
+            end += 2;
+        }
+        end += 2;
+        String string = sb.toString();
+        addresses[index] = address;
+        ends[index] = end;
+        strings[index] = string;
+        state.pc = end;
+        return string;
+    }
+
+    void watch(int address, int length) {
+        int end = Math.min(address + length, staticMemory);
+        for (int i = address; i < end; i++) {
+            watched[i >> 6] |= 1L << i;
+        }
+        if (end > state.literalWatchLimit) {
+            state.literalWatchLimit = end;
+        }
+    }
+
+    boolean isWatched(int address) {
+        return address < staticMemory && (watched[address >> 6] & (1L << address)) != 0;
+    }
+}
@@ -1,18 +1,24 @@
 package com.yrek.ifstd.zcode;
 
 import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.Serializable;
-import java.util.Random;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
+import com.yrek.ifstd.blorb.ByteBufferInputStream;
 import com.yrek.ifstd.glk.GlkDispatch;
 import com.yrek.ifstd.glk.GlkEvent;
 import com.yrek.ifstd.glk.GlkFile;
 import com.yrek.ifstd.glk.GlkGestalt;
+import com.yrek.ifstd.glk.GlkRandom;
 import com.yrek.ifstd.glk.GlkSChannel;
+import com.yrek.ifstd.glk.GlkSnapshot;
 import com.yrek.ifstd.glk.GlkStream;
 import com.yrek.ifstd.glk.GlkWindow;
 import com.yrek.ifstd.glk.GlkWindowSize;
@@ -20,9 +26,16 @@ import com.yrek.ifstd.glk.GlkWindowStream;
 
 class Machine implements Serializable {
     private static final long serialVersionUID = 0L;
+    private static final int SnapshotMagic = 0x5a436e53; // ZCnS
+    private static final int SnapshotVersion = 4;
+    private static final int UndoDepth = 2;
+    private static final long UndoBytes = 1L << 20;
 
     final byte[] byteData;
     final File fileData;
+    // Not serializable, so a Machine loaded from a buffer can only be
+    // saved with writeSnapshot().
+    final transient ByteBuffer bufferData;
 
     transient GlkDispatch glk;
     transient GlkWindow mainWindow;
@@ -32,9 +45,8 @@ class Machine implements Serializable {
     transient boolean suspending;
 
     State state;
-    State[] undoStates = new State[2];
-    int undoStateIndex = 0;
-    Random random = new Random();
+    UndoStack undo = new UndoStack(UndoDepth, UndoBytes);
+    GlkRandom random = new GlkRandom();
     int currentWindow;
     boolean stream1 = true;
     int stream3Index = 0;
@@ -48,13 +60,22 @@ class Machine implements Serializable {
     transient StringBuilder string;
     transient int[] operand;
 
-    Machine(byte[] byteData, File fileData, GlkDispatch glk) throws IOException {
+    Machine(byte[] byteData, File fileData, ByteBuffer bufferData, GlkDispatch glk) throws IOException {
         this.byteData = byteData;
         this.fileData = fileData;
+        this.bufferData = bufferData;
         this.glk = glk;
         state = load();
     }
 
+    Machine(byte[] byteData, File fileData, ByteBuffer bufferData, DataInput snapshot, GlkDispatch glk) throws IOException {
+        this.byteData = byteData;
+        this.fileData = fileData;
+        this.bufferData = bufferData;
+        this.glk = glk;
+        readSnapshot(snapshot);
+    }
+
     void initGlk(int foregroundColor, int backgroundColor) throws IOException {
         for (GlkWindow window : glk.windowList()) {
             switch (window.getType()) {
@@ -134,19 +155,95 @@ class Machine implements Serializable {
 
     State load() throws IOException {
         State newState = new State();
-        newState.load(getData());
+        if (bufferData != null) {
+            newState.load(bufferData.duplicate());
+        } else if (byteData != null) {
+            newState.load(ByteBuffer.wrap(byteData));
+        } else {
+            newState.load(getData());
+        }
         newState.init(screenWidth, screenHeight);
         return newState;
     }
 
     InputStream getData() throws IOException {
-        if (byteData != null) {
+        if (bufferData != null) {
+            return new ByteBufferInputStream(bufferData.duplicate());
+        } else if (byteData != null) {
             return new ByteArrayInputStream(byteData);
         } else {
             return new FileInputStream(fileData);
         }
     }
 
+    // The original story, for snapshot and save deltas, read in place
+    // from index 0 rather than copied.  A story file is mapped.
+    ByteBuffer getStory() throws IOException {
+        if (bufferData != null) {
+            return bufferData.slice();
+        } else if (byteData != null) {
+            return ByteBuffer.wrap(byteData);
+        }
+        FileInputStream in = new FileInputStream(fileData);
+        try {
+            return in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, fileData.length());
+        } finally {
+            in.close();
+        }
+    }
+
+    void writeSnapshot(DataOutput out) throws IOException {
+        out.writeInt(SnapshotMagic);
+        out.writeInt(SnapshotVersion);
+        state.writeSnapshot(out, getStory());
+        undo.writeSnapshot(out, state.ram);
+        GlkSnapshot.writeRandom(out, random);
+        out.writeInt(currentWindow);
+        out.writeBoolean(stream1);
+        out.writeInt(stream3Index);
+        for (int i = 0; i < stream3Index; i++) {
+            out.writeInt(stream3[i].table);
+            out.writeUTF(stream3[i].sb.toString());
+        }
+        out.writeInt(upperWindowInitialHeight);
+        out.writeInt(upperWindowCurrentHeight);
+        out.writeInt(upperWindowTargetHeight);
+    }
+
+    private void readSnapshot(DataInput in) throws IOException {
+        if (in.readInt() != SnapshotMagic) {
+            throw new IllegalArgumentException("Bad magic");
+        }
+        if (in.readInt() != SnapshotVersion) {
+            throw new IllegalArgumentException("Unrecognized snapshot version");
+        }
+        state = new State();
+        state.readSnapshot(in, getStory());
+        undo.readSnapshot(in, state.ram);
+        random = GlkSnapshot.readRandom(in);
+        currentWindow = in.readInt();
+        stream1 = in.readBoolean();
+        stream3Index = in.readInt();
+        if (stream3Index < 0 || stream3Index > stream3.length) {
+            throw new IllegalArgumentException("Bad stream 3 index");
+        }
+        for (int i = 0; i < stream3Index; i++) {
+            stream3[i] = new Stream3(in.readInt());
+            stream3[i].sb.append(in.readUTF());
+        }
+        upperWindowInitialHeight = in.readInt();
+        upperWindowCurrentHeight = in.readInt();
+        upperWindowTargetHeight = in.readInt();
+    }
+
+    long getResidentSize() {
+        return state.ram.length + undo.getSize();
+    }
+
+    boolean restoreUndo() {
+        return undo.restore(state);
+    }
+
     void handleEvent(GlkEvent event) {
         if (event.type == GlkEvent.TypeArrange) {
             GlkWindowSize windowSize = mainWindow.getSize();
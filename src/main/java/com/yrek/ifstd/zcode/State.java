@@ -6,9 +6,12 @@ import java.io.DataOutput;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import com.yrek.ifstd.glk.GlkByteArray;
 import com.yrek.ifstd.glk.GlkDispatch;
+import com.yrek.ifstd.glk.GlkSnapshot;
 
 class State implements Serializable {
     private static final long serialVersionUID = 0L;
@@ -57,12 +60,37 @@ class State implements Serializable {
     public static int INTERPRETER_VERSION_VALUE = 49;
     public static int REVISION_NUMBER_VALUE = 0x101;
 
+    // Each frame on the stack is the parent frame pointer, the frame
+    // index, the return address, the result variable (-1 for none), the
+    // argument bits and the number of locals, followed by the locals and
+    // then the frame's evaluation stack, up to sp.
+    static final int FRAME_PARENT = 0;
+    static final int FRAME_INDEX = 1;
+    static final int FRAME_RETURN_ADDRESS = 2;
+    static final int FRAME_RESULT = 3;
+    static final int FRAME_ARGS = 4;
+    static final int FRAME_LOCAL_COUNT = 5;
+    static final int FRAME_LOCALS = 6;
+
     byte[] ram;
     int pc;
-    StackFrame frame;
+    int[] stack;
+    int fp;
+    int sp;
     int version;
     int globalVarTable;
+    private static final int UserDictionaryCacheSize = 4;
+
     private transient Dictionary dictionary;
+    // The user dictionaries of tokenise, most recently used first.
+    private transient Dictionary[] userDictionaries;
+    private transient Literals literals;
+    // Stores below this may change cached literal text.
+    transient int literalWatchLimit;
+    // The bytes of dynamic memory that cached dictionary indexes were
+    // built from, and the end of the last of them.
+    private transient long[] dictionaryWatched;
+    transient int dictionaryWatchLimit;
 
     void load(InputStream in) throws IOException {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -76,12 +104,29 @@ class State implements Serializable {
             out.write(buffer, 0, len);
         }
         ram = out.toByteArray();
+        loadHeader();
+    }
+
+    // Copies the remaining contents of data into ram.
+    void load(ByteBuffer data) {
+        version = data.hasRemaining() ? data.get(data.position()) & 255 : 0;
+        if (version < 1 || version > 8) {
+            throw new IllegalArgumentException("Unrecognized Z-machine version: "+version);
+        }
+        ram = new byte[data.remaining()];
+        data.get(ram);
+        loadHeader();
+    }
+
+    private void loadHeader() {
+        clearLiterals();
+        clearDictionaries();
         pc = read16(INITIAL_PC);
         if (version != 6) {
-            frame = new StackFrame(null, 0, 0, 0, 0);
+            initStack(0);
         } else {
             pc = unpack(pc, true);
-            frame = new StackFrame(null, 0, 0, 0, read8(pc));
+            initStack(read8(pc) & 15);
             pc++;
         }
         globalVarTable = read16(GLOBAL_VAR_TABLE);
@@ -112,13 +157,16 @@ class State implements Serializable {
         //... FOREGROUND_COLOR
     }
 
-    boolean loadSave(DataInput in, boolean preserveFlags) throws IOException {
+    // Static and high memory are taken from story, and dynamic memory
+    // is read from a CMem chunk, the XOR against story, or from a UMem
+    // chunk, which may also hold the rest of memory.
+    boolean loadSave(DataInput in, ByteBuffer story, boolean preserveFlags) throws IOException {
         if (in.readInt() != 0x464f524d) { // FORM
             return false;
         }
         int size = in.readInt();
         byte[] readRam = null;
-        StackFrame readFrame = null;
+        State readStack = null;
         int readPc = 0;
         boolean gotHd = false;
         boolean gotMem = false;
@@ -138,6 +186,10 @@ class State implements Serializable {
         int count = 0;
         while (count < size) {
             int id = in.readInt();
+            if (count == 0 && id == 0x49465a53) { // IFZS
+                count = 4;
+                continue;
+            }
             int len = in.readInt();
             count += 8 + ((len + 1)/2)*2;
             switch (id) {
@@ -160,8 +212,11 @@ class State implements Serializable {
                     return false;
                 }
                 gotMem = true;
-                readRam = new byte[len];
-                in.readFully(readRam);
+                if (len > ram.length) {
+                    return false;
+                }
+                readRam = copyStory(story);
+                in.readFully(readRam, 0, len);
                 if (len % 2 != 0) {
                     in.readByte();
                 }
@@ -171,13 +226,23 @@ class State implements Serializable {
                     return false;
                 }
                 gotMem = true;
-                throw new RuntimeException("not implemented");
+                byte[] cmem = new byte[len];
+                in.readFully(cmem);
+                if (len % 2 != 0) {
+                    in.readByte();
+                }
+                readRam = copyStory(story);
+                if (!decompress(readRam, Math.min(read16(STATIC_MEMORY), ram.length), cmem, len)) {
+                    return false;
+                }
+                break;
             case 0x53746b73: // Stks
                 if (gotStks) {
                     return false;
                 }
                 gotStks = true;
-                readFrame = StackFrame.read(in, len);
+                readStack = new State();
+                readStack.readFrames(in, len);
                 break;
             default:
                 in.skipBytes(((len+1)/2)*2);
@@ -188,18 +253,37 @@ class State implements Serializable {
             return false;
         }
         ram = readRam;
-        frame = readFrame;
+        clearLiterals();
+        clearDictionaries();
+        stack = readStack.stack;
+        fp = readStack.fp;
+        sp = readStack.sp;
         pc = readPc;
         return true;
     }
 
-    void writeSave(DataOutput out) throws IOException {
+    // Memory as it is in story, padded or cut to the length of ram.
+    private byte[] copyStory(ByteBuffer story) {
+        byte[] copy = new byte[ram.length];
+        ByteBuffer in = story.duplicate();
+        in.position(0);
+        in.get(copy, 0, Math.min(copy.length, in.limit()));
+        return copy;
+    }
+
+    // Dynamic memory is written as a CMem chunk, the XOR against story.
+    // The caller sets pc to the save instruction's store or branch byte.
+    void writeSave(DataOutput out, ByteBuffer story) throws IOException {
+        int dynamic = Math.min(read16(STATIC_MEMORY), ram.length);
+        byte[] cmem = new byte[2*dynamic + 2];
+        int cmemLength = compress(story, ram, dynamic, cmem);
         out.writeInt(0x464f524d); // FORM
-        int size = 0;
+        int size = 4; // IFZS
         size += 8 + 14; // IFhd
-        size += 8 + ((ram.length + 1)/2)*2; // UMem
-        size += 8 + ((frame.totalSaveSize()+1)/2)*2; // Stks
+        size += 8 + ((cmemLength + 1)/2)*2; // CMem
+        size += 8 + framesSaveSize(); // Stks
         out.writeInt(size);
+        out.writeInt(0x49465a53); // IFZS
         out.writeInt(0x49466864); // IFhd
         out.writeInt(13);
         out.writeShort(read16(RELEASE_NUMBER));
@@ -210,16 +294,163 @@ class State implements Serializable {
         out.write(pc >> 16);
         out.writeShort(pc);
         out.write(0);
-        out.writeInt(0x554d656d); // UMem
-        out.writeInt(ram.length);
-        out.write(ram, 0, ram.length);
-        if ((ram.length % 2) != 0) {
+        out.writeInt(0x434d656d); // CMem
+        out.writeInt(cmemLength);
+        out.write(cmem, 0, cmemLength);
+        if ((cmemLength % 2) != 0) {
             out.write(0);
         }
-        frame.save(out);
+        writeFrames(out);
+    }
+
+    // Writes the XOR of data against original into buffer, which must
+    // hold 2*length bytes, and returns the number of bytes written.
+    // Bytes past the end of original are compared against 0.  Runs of
+    // unchanged bytes are written as a 0 followed by the run length - 1,
+    // as in Quetzal CMem chunks, and a final run is left out.
+    static int compress(byte[] original, byte[] data, int length, byte[] buffer) {
+        return compress(ByteBuffer.wrap(original), data, length, buffer);
+    }
+
+    static int compress(ByteBuffer original, byte[] data, int length, byte[] buffer) {
+        int originalLength = original.limit();
+        int count = 0;
+        int i = 0;
+        while (i < length) {
+            int b = data[i] ^ (i < originalLength ? original.get(i) : 0);
+            if (b != 0) {
+                buffer[count++] = (byte) b;
+                i++;
+                continue;
+            }
+            int run = 1;
+            i++;
+            while (i < length && data[i] == (i < originalLength ? original.get(i) : 0)) {
+                run++;
+                i++;
+            }
+            if (i >= length) {
+                break;
+            }
+            for (; run > 256; run -= 256) {
+                buffer[count++] = 0;
+                buffer[count++] = (byte) 255;
+            }
+            buffer[count++] = 0;
+            buffer[count++] = (byte) (run - 1);
+        }
+        return count;
+    }
+
+    // Applies count bytes of delta written by compress() to the first
+    // length bytes of data.  Returns false if delta runs past length.
+    static boolean decompress(byte[] data, int length, byte[] delta, int count) {
+        int index = 0;
+        for (int i = 0; i < count; i++) {
+            if (delta[i] != 0) {
+                if (index >= length) {
+                    return false;
+                }
+                data[index++] ^= delta[i];
+            } else {
+                i++;
+                if (i >= count) {
+                    return false;
+                }
+                index += (delta[i] & 255) + 1;
+            }
+        }
+        return index <= length;
+    }
+
+    private int[] framePointers() {
+        int[] frames = new int[stack[fp + FRAME_INDEX] + 1];
+        for (int f = fp; f >= 0; f = stack[f + FRAME_PARENT]) {
+            frames[stack[f + FRAME_INDEX]] = f;
+        }
+        return frames;
+    }
+
+    private int framesSaveSize() {
+        return 8*(stack[fp + FRAME_INDEX] + 1) + 2*(sp - FRAME_LOCALS*(stack[fp + FRAME_INDEX] + 1));
+    }
+
+    private void writeFrames(DataOutput out) throws IOException {
+        out.writeInt(0x53746b73); // Stks
+        out.writeInt(framesSaveSize());
+        int[] frames = framePointers();
+        for (int i = 0; i < frames.length; i++) {
+            int f = frames[i];
+            int returnAddress = stack[f + FRAME_RETURN_ADDRESS];
+            int result = stack[f + FRAME_RESULT];
+            int locals = stack[f + FRAME_LOCAL_COUNT];
+            int evalStack = f + FRAME_LOCALS + locals;
+            int end = i + 1 < frames.length ? frames[i + 1] : sp;
+            out.write(returnAddress >> 16);
+            out.writeShort(returnAddress);
+            out.write((result < 0 ? 16 : 0) | locals);
+            out.write(result < 0 ? 0 : result);
+            out.write(stack[f + FRAME_ARGS]);
+            out.writeShort(end - evalStack);
+            for (int j = f + FRAME_LOCALS; j < end; j++) {
+                out.writeShort(stack[j]);
+            }
+        }
+    }
+
+    private void readFrames(DataInput in, int size) throws IOException {
+        fp = -1;
+        sp = 0;
+        stack = new int[1024];
+        while (size > 0) {
+            int returnAddress = (in.readByte() & 255) << 16;
+            returnAddress |= in.readShort() & 65535;
+            int flags = in.readByte()&255;
+            int result = in.readByte()&255;
+            if ((flags & 16) != 0) {
+                result = -1;
+            }
+            int args = in.readByte()&255;
+            int count = in.readShort()&65535;
+            int locals = pushFrame(returnAddress, result, args, flags & 15);
+            for (int i = 0; i < (flags & 15); i++) {
+                stack[locals + i] = in.readShort()&65535;
+            }
+            for (int i = 0; i < count; i++) {
+                push(in.readShort()&65535);
+            }
+            size -= 8 + 2*(flags & 15) + 2*count;
+        }
+        if (fp < 0) {
+            throw new IllegalArgumentException("No stack frames");
+        }
     }
 
-    void copyFrom(State state, boolean deepCopyStack, boolean preserveFlags) {
+    void writeSnapshot(DataOutput out, ByteBuffer original) throws IOException {
+        out.writeInt(pc);
+        GlkSnapshot.writeDelta(out, ram, 0, original);
+        out.writeInt(fp);
+        out.writeInt(sp);
+        GlkSnapshot.writeInts(out, stack, 0, sp);
+    }
+
+    void readSnapshot(DataInput in, ByteBuffer original) throws IOException {
+        pc = in.readInt();
+        ram = GlkSnapshot.readDelta(in, original);
+        clearLiterals();
+        clearDictionaries();
+        fp = in.readInt();
+        sp = in.readInt();
+        if (fp < 0 || sp < fp + FRAME_LOCALS) {
+            throw new IllegalArgumentException("Bad stack");
+        }
+        stack = new int[Math.max(1024, Integer.highestOneBit(sp)*2)];
+        GlkSnapshot.readInts(in, stack, 0, sp);
+        version = read8(VERSION);
+        globalVarTable = read16(GLOBAL_VAR_TABLE);
+    }
+
+    void copyFrom(State state, boolean preserveFlags) {
         preserveFlags = preserveFlags && ram != null;
         int preserve = 0;
         if (preserveFlags) {
@@ -229,15 +460,18 @@ class State implements Serializable {
             ram = new byte[state.ram.length];
         }
         System.arraycopy(state.ram, 0, ram, 0, ram.length);
+        clearLiterals();
+        clearDictionaries();
         if (preserveFlags) {
             store8(FLAGS2, (read8(FLAGS2) & 252) | preserve);
         }
         pc = state.pc;
-        if (!deepCopyStack) {
-            frame = state.frame;
-        } else {
-            frame = new StackFrame(state.frame);
+        if (stack == null || stack.length < state.sp) {
+            stack = new int[state.stack.length];
         }
+        System.arraycopy(state.stack, 0, stack, 0, state.sp);
+        fp = state.fp;
+        sp = state.sp;
         globalVarTable = read16(GLOBAL_VAR_TABLE);
     }
 
@@ -251,11 +485,121 @@ class State implements Serializable {
 
     void store8(int location, int value) {
         ram[location] = (byte) value;
+        if (location < literalWatchLimit && literals.isWatched(location)) {
+            clearLiterals();
+        }
+        if (location < dictionaryWatchLimit && isDictionaryWatched(location, location+1)) {
+            clearDictionaries();
+        }
     }
 
     void store16(int location, int value) {
         ram[location] = (byte) (value >> 8);
         ram[location+1] = (byte) value;
+        if (location < literalWatchLimit && (literals.isWatched(location) || literals.isWatched(location+1))) {
+            clearLiterals();
+        }
+        if (location < dictionaryWatchLimit && isDictionaryWatched(location, location+2)) {
+            clearDictionaries();
+        }
+    }
+
+    void restoreDynamicMemory(byte[] memory) {
+        System.arraycopy(memory, 0, ram, 0, memory.length);
+        clearLiterals();
+        clearDictionaries();
+    }
+
+    // Returns the text of a print or print_ret instruction at address,
+    // and sets pc to the end of it.
+    String literal(int address) throws IOException {
+        if (literals == null) {
+            literals = new Literals(this);
+        }
+        return literals.get(address);
+    }
+
+    private void clearLiterals() {
+        literals = null;
+        literalWatchLimit = 0;
+    }
+
+    private void clearDictionaries() {
+        dictionary = null;
+        userDictionaries = null;
+        dictionaryWatched = null;
+        dictionaryWatchLimit = 0;
+    }
+
+    private void initStack(int locals) {
+        if (stack == null) {
+            stack = new int[1024];
+        }
+        fp = -1;
+        sp = 0;
+        pushFrame(0, 0, 0, locals);
+    }
+
+    // Returns the index in stack of the first local, which are 0.
+    int pushFrame(int returnAddress, int result, int args, int locals) {
+        int f = sp;
+        sp = f + FRAME_LOCALS + locals;
+        if (sp >= stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(2*stack.length, sp + 1));
+        }
+        stack[f + FRAME_PARENT] = fp;
+        stack[f + FRAME_INDEX] = fp < 0 ? 0 : stack[fp + FRAME_INDEX] + 1;
+        stack[f + FRAME_RETURN_ADDRESS] = returnAddress;
+        stack[f + FRAME_RESULT] = result;
+        stack[f + FRAME_ARGS] = args;
+        stack[f + FRAME_LOCAL_COUNT] = locals;
+        Arrays.fill(stack, f + FRAME_LOCALS, sp, 0);
+        fp = f;
+        return f + FRAME_LOCALS;
+    }
+
+    // Sets pc to the return address and returns the result variable.
+    int popFrame() {
+        int result = stack[fp + FRAME_RESULT];
+        pc = stack[fp + FRAME_RETURN_ADDRESS];
+        dropFrame();
+        return result;
+    }
+
+    void dropFrame() {
+        sp = fp;
+        fp = stack[fp + FRAME_PARENT];
+    }
+
+    int frameIndex() {
+        return stack[fp + FRAME_INDEX];
+    }
+
+    int frameArgs() {
+        return stack[fp + FRAME_ARGS];
+    }
+
+    void push(int val) {
+        if (sp >= stack.length) {
+            stack = Arrays.copyOf(stack, 2*stack.length);
+        }
+        stack[sp] = val;
+        sp++;
+    }
+
+    int pop() {
+        if (sp <= fp + FRAME_LOCALS + stack[fp + FRAME_LOCAL_COUNT]) {
+            return 0;
+        }
+        sp--;
+        return stack[sp];
+    }
+
+    int peek() {
+        if (sp <= fp + FRAME_LOCALS + stack[fp + FRAME_LOCAL_COUNT]) {
+            return 0;
+        }
+        return stack[sp-1];
     }
 
     int unpack(int address, boolean forRoutine) {
@@ -279,11 +623,11 @@ class State implements Serializable {
 
     int readVar(int var) {
         if (var == 0) {
-            return frame.pop();
+            return pop();
         } else if (var < 0 || var >= 256) {
             return 0;
         } else if (var < 16) {
-            return frame.locals[var - 1];
+            return stack[fp + FRAME_LOCALS + var - 1];
         } else {
             return read16(globalVarTable + 2*(var - 16));
         }
@@ -291,11 +635,11 @@ class State implements Serializable {
 
     int peekVar(int var) {
         if (var == 0) {
-            return frame.peek();
+            return peek();
         } else if (var < 0 || var >= 256) {
             return 0;
         } else if (var < 16) {
-            return frame.locals[var - 1];
+            return stack[fp + FRAME_LOCALS + var - 1];
         } else {
             return read16(globalVarTable + 2*(var - 16));
         }
@@ -303,11 +647,11 @@ class State implements Serializable {
 
     String traceVar(int var) {
         if (var == 0) {
-            return String.format("(-SP)=%x",frame.peek());
+            return String.format("(-SP)=%x",peek());
         } else if (var < 0 || var >= 256) {
             return String.format("?=%x",var);
         } else if (var < 16) {
-            return String.format("l%x=%x",var,frame.locals[var-1]);
+            return String.format("l%x=%x",var,stack[fp + FRAME_LOCALS + var - 1]);
         } else {
             return String.format("g%x=%x",var-16,read16(globalVarTable + 2*(var - 16)));
         }
@@ -315,10 +659,10 @@ class State implements Serializable {
 
     void storeVar(int var, int val) {
         if (var == 0) {
-            frame.push(val);
+            push(val);
         } else if (var < 0 || var >= 256) {
         } else if (var < 16) {
-            frame.locals[var-1] = val;
+            stack[fp + FRAME_LOCALS + var - 1] = val;
         } else {
             store16(globalVarTable + 2*(var - 16), val);
         }
@@ -326,11 +670,11 @@ class State implements Serializable {
 
     void overwriteVar(int var, int val) {
         if (var == 0) {
-            frame.pop();
-            frame.push(val);
+            pop();
+            push(val);
         } else if (var < 0 || var >= 256) {
         } else if (var < 16) {
-            frame.locals[var-1] = val;
+            stack[fp + FRAME_LOCALS + var - 1] = val;
         } else {
             store16(globalVarTable + 2*(var - 16), val);
         }
@@ -707,13 +1051,94 @@ class State implements Serializable {
             }
             @Override public void setArrayLength(int length) {
             }
+            @Override public void getBytes(int index, byte[] dst, int offset, int count) {
+                System.arraycopy(ram, addr+index, dst, offset, count);
+            }
+            @Override public void setBytes(int index, byte[] src, int offset, int count) {
+                System.arraycopy(src, offset, ram, addr+index, count);
+                if (addr+index < literalWatchLimit) {
+                    clearLiterals();
+                }
+                if (addr+index < dictionaryWatchLimit && isDictionaryWatched(addr+index, addr+index+count)) {
+                    clearDictionaries();
+                }
+            }
+            @Override public void getBytes(int index, ByteBuffer dst, int count) {
+                dst.put(ram, addr+index, count);
+            }
+            @Override public void setBytes(int index, ByteBuffer src, int count) {
+                src.get(ram, addr+index, count);
+                if (addr+index < literalWatchLimit) {
+                    clearLiterals();
+                }
+                if (addr+index < dictionaryWatchLimit && isDictionaryWatched(addr+index, addr+index+count)) {
+                    clearDictionaries();
+                }
+            }
+            @Override public byte[] getBackingArray() {
+                return ram;
+            }
+            @Override public int getBackingOffset() {
+                return addr;
+            }
         };
     }
 
     Dictionary getDictionary() {
         if (dictionary == null) {
-            dictionary = new Dictionary(this);
+            dictionary = watch(new Dictionary(this, read16(DICTIONARY)));
+        }
+        return dictionary;
+    }
+
+    // Returns the main dictionary if address is 0.
+    Dictionary getDictionary(int address) {
+        if (address == 0) {
+            return getDictionary();
+        }
+        if (userDictionaries == null) {
+            userDictionaries = new Dictionary[UserDictionaryCacheSize];
+        }
+        int i = 0;
+        while (i < userDictionaries.length - 1 && userDictionaries[i] != null && userDictionaries[i].address != address) {
+            i++;
+        }
+        Dictionary userDictionary = userDictionaries[i];
+        if (userDictionary == null || userDictionary.address != address) {
+            userDictionary = watch(new Dictionary(this, address));
+        }
+        System.arraycopy(userDictionaries, 0, userDictionaries, 1, i);
+        userDictionaries[0] = userDictionary;
+        return userDictionary;
+    }
+
+    // Dictionaries in static memory cannot change.  Each dictionary in
+    // dynamic memory marks only its own bytes, so stores to arrays
+    // between dictionaries do not drop the indexes.
+    private Dictionary watch(Dictionary dictionary) {
+        int staticMemory = Math.min(read16(STATIC_MEMORY), ram.length);
+        int end = Math.min(dictionary.end, staticMemory);
+        if (dictionary.address < end) {
+            if (dictionaryWatched == null) {
+                dictionaryWatched = new long[(staticMemory + 63) >> 6];
+            }
+            for (int i = dictionary.address; i < end; i++) {
+                dictionaryWatched[i >> 6] |= 1L << i;
+            }
+            if (end > dictionaryWatchLimit) {
+                dictionaryWatchLimit = end;
+            }
         }
         return dictionary;
     }
+
+    private boolean isDictionaryWatched(int start, int end) {
+        end = Math.min(end, dictionaryWatchLimit);
+        for (int i = start; i < end; i++) {
+            if ((dictionaryWatched[i >> 6] & (1L << i)) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
@@ -0,0 +1,188 @@
+package com.yrek.ifstd.zcode;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import com.yrek.ifstd.glk.GlkSnapshot;
+
+// The states saved by save_undo.  Static and high memory cannot change,
+// so only dynamic memory and the stack are kept.  The dynamic memory of
+// the newest state is kept whole, and each older state is kept as the
+// XOR against the state after it, compressed as in Quetzal CMem chunks.
+//
+// The oldest states are dropped when there are more than maxDepth, or
+// when they take more than maxBytes, but the newest is always kept.
+class UndoStack implements Serializable {
+    private static final long serialVersionUID = 0L;
+
+    private static final class Entry implements Serializable {
+        private static final long serialVersionUID = 0L;
+
+        int pc;
+        int fp;
+        int sp;
+        int[] stack;
+        // The variable that save_undo stores 2 into when restored.
+        int result;
+        // Null for the newest state.
+        byte[] delta;
+    }
+
+    private int maxDepth;
+    private long maxBytes;
+    private final ArrayList<Entry> entries = new ArrayList<Entry>();
+    private byte[] memory = null;
+    private long size = 0L;
+    private transient byte[] buffer;
+
+    UndoStack(int maxDepth, long maxBytes) {
+        setLimits(maxDepth, maxBytes);
+    }
+
+    void setLimits(int maxDepth, long maxBytes) {
+        if (maxDepth < 0 || maxBytes < 0L) {
+            throw new IllegalArgumentException("Negative undo limit");
+        }
+        this.maxDepth = maxDepth;
+        this.maxBytes = maxBytes;
+        trim();
+    }
+
+    int getDepth() {
+        return entries.size();
+    }
+
+    // The bytes held by the saved states.
+    long getSize() {
+        return size;
+    }
+
+    void clear() {
+        entries.clear();
+        memory = null;
+        size = 0L;
+    }
+
+    void save(State state, int result) {
+        if (maxDepth == 0) {
+            return;
+        }
+        int length = Math.min(state.read16(State.STATIC_MEMORY), state.ram.length);
+        if (entries.isEmpty() || memory.length != length) {
+            clear();
+            memory = new byte[length];
+            size += length;
+        } else {
+            Entry last = entries.get(entries.size() - 1);
+            if (buffer == null || buffer.length < 2*length) {
+                buffer = new byte[2*length];
+            }
+            last.delta = Arrays.copyOf(buffer, State.compress(memory, state.ram, length, buffer));
+            size += last.delta.length;
+        }
+        System.arraycopy(state.ram, 0, memory, 0, length);
+        Entry entry = new Entry();
+        entry.pc = state.pc;
+        entry.fp = state.fp;
+        entry.sp = state.sp;
+        entry.stack = Arrays.copyOf(state.stack, state.sp);
+        entry.result = result;
+        entries.add(entry);
+        size += 4L*entry.sp;
+        trim();
+    }
+
+    // Returns false if there is no saved state.
+    boolean restore(State state) {
+        if (entries.isEmpty()) {
+            return false;
+        }
+        Entry entry = entries.remove(entries.size() - 1);
+        size -= 4L*entry.sp;
+        state.restoreDynamicMemory(memory);
+        if (state.stack.length < entry.sp) {
+            state.stack = new int[Math.max(2*state.stack.length, entry.sp)];
+        }
+        System.arraycopy(entry.stack, 0, state.stack, 0, entry.sp);
+        state.pc = entry.pc;
+        state.fp = entry.fp;
+        state.sp = entry.sp;
+        state.storeVar(entry.result, 2);
+        if (entries.isEmpty()) {
+            size -= memory.length;
+            memory = null;
+        } else {
+            Entry last = entries.get(entries.size() - 1);
+            State.decompress(memory, memory.length, last.delta, last.delta.length);
+            size -= last.delta.length;
+            last.delta = null;
+        }
+        return true;
+    }
+
+    private void trim() {
+        while (entries.size() > 1 && (entries.size() > maxDepth || size > maxBytes)) {
+            Entry entry = entries.remove(0);
+            size -= entry.delta.length + 4L*entry.sp;
+        }
+        if (entries.size() > maxDepth) {
+            clear();
+        }
+    }
+
+    void writeSnapshot(DataOutput out, byte[] ram) throws IOException {
+        out.writeInt(maxDepth);
+        out.writeLong(maxBytes);
+        out.writeInt(entries.size());
+        for (Entry entry : entries) {
+            out.writeInt(entry.pc);
+            out.writeInt(entry.fp);
+            out.writeInt(entry.sp);
+            GlkSnapshot.writeInts(out, entry.stack, 0, entry.sp);
+            out.writeInt(entry.result);
+            if (entry.delta != null) {
+                out.writeInt(entry.delta.length);
+                out.write(entry.delta);
+            }
+        }
+        if (memory != null) {
+            GlkSnapshot.writeDelta(out, memory, 0, ram);
+        }
+    }
+
+    void readSnapshot(DataInput in, byte[] ram) throws IOException {
+        clear();
+        setLimits(in.readInt(), in.readLong());
+        int count = in.readInt();
+        if (count < 0 || count > maxDepth) {
+            throw new IllegalArgumentException("Bad undo count");
+        }
+        for (int i = 0; i < count; i++) {
+            Entry entry = new Entry();
+            entry.pc = in.readInt();
+            entry.fp = in.readInt();
+            entry.sp = in.readInt();
+            if (entry.sp < 0 || entry.fp < 0 || entry.fp >= entry.sp) {
+                throw new IllegalArgumentException("Bad undo stack");
+            }
+            entry.stack = new int[entry.sp];
+            GlkSnapshot.readInts(in, entry.stack, 0, entry.sp);
+            entry.result = in.readInt();
+            size += 4L*entry.sp;
+            if (i < count - 1) {
+                entry.delta = new byte[in.readInt()];
+                in.readFully(entry.delta);
+                size += entry.delta.length;
+            }
+            entries.add(entry);
+        }
+        if (count > 0) {
+            memory = GlkSnapshot.readDelta(in, ram);
+            size += memory.length;
+        }
+    }
+}
@@ -1,24 +1,70 @@
 package com.yrek.ifstd.zcode;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 
+import com.yrek.ifstd.blorb.Blorb;
 import com.yrek.ifstd.glk.GlkDispatch;
+import com.yrek.ifstd.glk.GlkQuota;
+import com.yrek.ifstd.glk.GlkStream;
+import com.yrek.ifstd.glk.GlkTickPolicy;
 
 public class ZCode implements Runnable, Serializable {
     private static final long serialVersionUID = 0L;
     private final Machine machine;
+    private GlkTickPolicy tickPolicy = GlkTickPolicy.everyTick();
+    private GlkQuota quota = null;
     private boolean suspending = false;
     private boolean suspended = false;
 
     public ZCode(byte[] byteData, GlkDispatch glk) throws IOException {
-        machine = new Machine(byteData, null, glk);
+        machine = new Machine(byteData, null, null, glk);
     }
 
     public ZCode(File fileData, GlkDispatch glk) throws IOException {
-        machine = new Machine(null, fileData, glk);
+        machine = new Machine(null, fileData, null, glk);
+    }
+
+    // Runs the story from the remaining contents of storyData, such as
+    // a chunk of a mapped Blorb, which must not change.  Restart and
+    // verify read it again.  Saves and snapshots keep one copy of it to
+    // write their deltas against.
+    public ZCode(ByteBuffer storyData, GlkDispatch glk) throws IOException {
+        machine = new Machine(null, null, storyData.slice(), glk);
+    }
+
+    public ZCode(Blorb blorb, GlkDispatch glk) throws IOException {
+        this(getStory(blorb), glk);
+    }
+
+    public ZCode(byte[] byteData, DataInput snapshot, GlkDispatch glk) throws IOException {
+        machine = new Machine(byteData, null, null, snapshot, glk);
+    }
+
+    public ZCode(File fileData, DataInput snapshot, GlkDispatch glk) throws IOException {
+        machine = new Machine(null, fileData, null, snapshot, glk);
+    }
+
+    public ZCode(ByteBuffer storyData, DataInput snapshot, GlkDispatch glk) throws IOException {
+        machine = new Machine(null, null, storyData.slice(), snapshot, glk);
+    }
+
+    public ZCode(Blorb blorb, DataInput snapshot, GlkDispatch glk) throws IOException {
+        this(getStory(blorb), snapshot, glk);
+    }
+
+    // The ZCOD chunk of the Exec resource.
+    public static ByteBuffer getStory(Blorb blorb) throws IOException {
+        Blorb.Chunk chunk = blorb.getChunk(Blorb.Exec, 0);
+        if (chunk == null || chunk.getId() != Blorb.ZCOD) {
+            throw new IllegalArgumentException("No Z-code story");
+        }
+        return chunk.getBuffer();
     }
 
     public ZCode initGlk(int foregroundColor, int backgroundColor) throws IOException {
@@ -31,15 +77,28 @@ public class ZCode implements Runnable, Serializable {
         suspended = false;
         suspending = false;
         machine.initForRun();
+        final GlkTickPolicy tickPolicy = this.tickPolicy;
+        final GlkQuota quota = this.quota;
+        tickPolicy.reset();
+        if (quota != null) {
+            quota.reset();
+        }
+        long instructions = 0L;
         try {
             switch (machine.state.version) {
-            case 5: case 7: case 8:
+            case 1: case 2: case 3: case 4: case 5: case 7: case 8:
                 for (;;) {
+                    instructions++;
                     switch (Instruction5.executeNext(machine)) {
                     case Continue:
                         break;
                     case Tick:
-                        machine.glk.glk.tick();
+                        if (tickPolicy.due(instructions)) {
+                            machine.glk.glk.tick();
+                        }
+                        if (quota != null && quota.exceeded(instructions, machine.glk.getSelectCount()) && quotaExceeded(quota)) {
+                            return;
+                        }
                         if (suspending) {
                             synchronized (machine) {
                                 suspended = true;
@@ -54,11 +113,17 @@ public class ZCode implements Runnable, Serializable {
                 }
             default:
                 for (;;) {
+                    instructions++;
                     switch (Instruction.executeNext(machine)) {
                     case Continue:
                         break;
                     case Tick:
-                        machine.glk.glk.tick();
+                        if (tickPolicy.due(instructions)) {
+                            machine.glk.glk.tick();
+                        }
+                        if (quota != null && quota.exceeded(instructions, machine.glk.getSelectCount()) && quotaExceeded(quota)) {
+                            return;
+                        }
                         if (suspending) {
                             synchronized (machine) {
                                 suspended = true;
@@ -77,6 +142,57 @@ public class ZCode implements Runnable, Serializable {
         }
     }
 
+    // Returns true if execution should terminate.
+    private boolean quotaExceeded(GlkQuota quota) throws IOException {
+        switch (quota.getAction()) {
+        case GlkQuota.ActionSuspend:
+            suspending = true;
+            machine.suspending = true;
+            return false;
+        case GlkQuota.ActionRewind:
+            GlkStream stream = machine.getOutputStream();
+            if (stream != null) {
+                stream.putChar('\n');
+                stream.putString(GlkQuota.Message);
+                stream.putChar('\n');
+            }
+            return !machine.restoreUndo();
+        default:
+            return true;
+        }
+    }
+
+    public void writeSnapshot(DataOutput out) throws IOException {
+        machine.writeSnapshot(out);
+    }
+
+    public long getResidentSize() {
+        return machine.getResidentSize();
+    }
+
+    // The number of save_undo states kept, and the bytes they may take,
+    // though the newest is kept whatever its size.  The defaults are 2
+    // states and 1MB.
+    public void setUndoLimits(int maxDepth, long maxBytes) {
+        machine.undo.setLimits(maxDepth, maxBytes);
+    }
+
+    public GlkTickPolicy getTickPolicy() {
+        return tickPolicy;
+    }
+
+    public void setTickPolicy(GlkTickPolicy tickPolicy) {
+        this.tickPolicy = tickPolicy == null ? GlkTickPolicy.everyTick() : tickPolicy;
+    }
+
+    public GlkQuota getQuota() {
+        return quota;
+    }
+
+    public void setQuota(GlkQuota quota) {
+        this.quota = quota;
+    }
+
     public void suspend(boolean wait) throws InterruptedException {
         suspending = true;
         machine.suspending = true;
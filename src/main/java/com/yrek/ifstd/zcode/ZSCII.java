@@ -45,6 +45,12 @@ class ZSCII {
     };
 
     public static void decode(Appendable result, State state, int offset) throws IOException {
+        decode(result, state, offset, null);
+    }
+
+    // Marks the text and abbreviation table entries read in literals,
+    // if not null.
+    static void decode(Appendable result, State state, int offset, Literals literals) throws IOException {
         byte[] alphabetTable;
         int alphabetTableOffset = 0;
         switch (state.version) {
@@ -70,6 +76,9 @@ class ZSCII {
         int zsciiState = 0;
         int zsciiCode = 0;
         for (;;) {
+            if (literals != null) {
+                literals.watch(offset, 2);
+            }
             chunk[0] = (state.ram[offset] >> 2) & 31;
             chunk[1] = ((state.ram[offset] << 3) & 31) | ((state.ram[offset+1] >> 5) & 7);
             chunk[2] = state.ram[offset+1] & 31;
@@ -87,7 +96,11 @@ class ZSCII {
                     continue;
                 }
                 if (abbreviation != 0) {
-                    decode(result, state, 2*state.read16(state.read16(State.ABBREVIATION_TABLE) + 64*(abbreviation - 1) + 2*chunk[i]));
+                    int entry = state.read16(State.ABBREVIATION_TABLE) + 64*(abbreviation - 1) + 2*chunk[i];
+                    if (literals != null) {
+                        literals.watch(entry, 2);
+                    }
+                    decode(result, state, 2*state.read16(entry), literals);
                     abbreviation = 0;
                     continue;
                 }
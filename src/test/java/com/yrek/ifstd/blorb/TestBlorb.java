@@ -1,9 +1,27 @@
 package com.yrek.ifstd.blorb;
 
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.imageio.ImageIO;
 
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
 
 public class TestBlorb {
@@ -19,6 +37,54 @@ public class TestBlorb {
         testBlorb(Blorb.from(bytes));
     }
 
+    @Test
+    public void testMappedBlorb() throws Exception {
+        File file = new File(getClass().getResource("/Alabaster.gblorb").toURI());
+        testBlorb(Blorb.map(new File(getClass().getResource("/BeingSteve.zblorb").toURI())));
+        final Blorb fileBlorb = Blorb.from(file);
+        final Blorb mappedBlorb = Blorb.map(file);
+        Thread[] threads = new Thread[4];
+        final Throwable[] failure = new Throwable[1];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (Blorb.Chunk chunk : mappedBlorb.chunks()) {
+                            ByteBuffer buffer = chunk.getBuffer();
+                            Assert.assertTrue(buffer.isReadOnly());
+                            Assert.assertEquals(chunk.getLength(), buffer.remaining());
+                            byte[] bytes = new byte[buffer.remaining()];
+                            buffer.get(bytes);
+                            Assert.assertTrue(Arrays.equals(bytes, chunk.getContents()));
+                        }
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertNull(failure[0]);
+        int count = 0;
+        for (Blorb.Chunk chunk : fileBlorb.chunks()) {
+            for (Blorb.Chunk mappedChunk : mappedBlorb.chunks()) {
+                if (mappedChunk.start == chunk.start) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    mappedChunk.write(out);
+                    Assert.assertTrue(Arrays.equals(chunk.getContents(), out.toByteArray()));
+                    count++;
+                }
+            }
+        }
+        Assert.assertEquals(29, count);
+        fileBlorb.close();
+        mappedBlorb.close();
+    }
+
     private void testBlorb(Blorb blorb) throws Exception {
         int count = 0;
         HashMap<Integer,Integer> chunks = new HashMap<Integer,Integer>();
@@ -79,4 +145,313 @@ public class TestBlorb {
             Assert.assertEquals(Blorb.Pict, resources.get(i).getUsage());
         }
     }
+
+    @Test
+    public void testResourceIndex() throws Exception {
+        File file = new File(getClass().getResource("/Alabaster.gblorb").toURI());
+        Blorb lazy = Blorb.map(file);
+        Blorb full = Blorb.map(file);
+        full.init();
+        for (Blorb blorb : new Blorb[] { lazy, full }) {
+            Assert.assertEquals(Blorb.GLUL, blorb.getChunk(Blorb.Exec, 0).getId());
+            Assert.assertNull(blorb.getResource(Blorb.Exec, 1));
+            Assert.assertNull(blorb.getResource(Blorb.Snd, 3));
+            for (int i = 3; i < 27; i++) {
+                Blorb.Resource resource = blorb.getResource(Blorb.Pict, i);
+                Assert.assertEquals(i, resource.getNumber());
+                Assert.assertSame(resource.getChunk(), blorb.getChunk(Blorb.Pict, i));
+            }
+        }
+        Assert.assertEquals(full.getChunk(Blorb.Pict, 17).start, lazy.getChunk(Blorb.Pict, 17).start);
+        Assert.assertEquals(full.getChunk(Blorb.Pict, 17).getLength(), lazy.getChunk(Blorb.Pict, 17).getLength());
+        Blorb.Chunk chunk = lazy.getChunk(Blorb.Pict, 17);
+        int count = 0;
+        for (Blorb.Chunk c : lazy.chunks()) {
+            count++;
+        }
+        Assert.assertEquals(29, count);
+        Assert.assertSame(chunk, lazy.getChunk(Blorb.Pict, 17));
+        lazy.close();
+        full.close();
+    }
+
+    @Test
+    public void testTransfer() throws Exception {
+        File file = new File(getClass().getResource("/Alabaster.gblorb").toURI());
+        File tmp = File.createTempFile("testTransfer", null);
+        tmp.deleteOnExit();
+        byte[] fileBytes = new byte[(int) file.length()];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        raf.readFully(fileBytes);
+        raf.close();
+        for (Blorb blorb : new Blorb[] { Blorb.from(file), Blorb.map(file), Blorb.from(fileBytes) }) {
+            Blorb.Chunk chunk = blorb.getChunk(Blorb.Pict, 17);
+            byte[] contents = chunk.getContents();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Assert.assertEquals(contents.length, chunk.transferTo(Channels.newChannel(out)));
+            Assert.assertTrue(Arrays.equals(contents, out.toByteArray()));
+            out.reset();
+            Assert.assertEquals(100L, chunk.transferTo(10L, 100L, Channels.newChannel(out)));
+            Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(contents, 10, 110), out.toByteArray()));
+            out.reset();
+            Assert.assertEquals(5L, chunk.transferTo(contents.length - 5, 100L, Channels.newChannel(out)));
+            Assert.assertEquals(0L, chunk.transferTo(contents.length, 100L, Channels.newChannel(out)));
+            blorb.close();
+        }
+
+        // The largest chunk, through a stream and a file channel.
+        Blorb blorb = Blorb.map(file);
+        Blorb.Chunk chunk = largestChunk(blorb);
+        for (int method = 0; method < 2; method++) {
+            FileOutputStream out = new FileOutputStream(tmp);
+            if (method == 0) {
+                chunk.write(out);
+            } else {
+                Assert.assertEquals(chunk.getLength(), chunk.transferTo(out.getChannel()));
+            }
+            out.close();
+            byte[] bytes = new byte[chunk.getLength()];
+            FileInputStream in = new FileInputStream(tmp);
+            Assert.assertEquals(bytes.length, in.read(bytes));
+            in.close();
+            Assert.assertTrue(Arrays.equals(chunk.getContents(), bytes));
+        }
+        blorb.close();
+    }
+
+    private static Blorb.Chunk largestChunk(Blorb blorb) throws Exception {
+        Blorb.Chunk chunk = null;
+        for (Blorb.Chunk c : blorb.chunks()) {
+            if (chunk == null || c.getLength() > chunk.getLength()) {
+                chunk = c;
+            }
+        }
+        return chunk;
+    }
+
+    // Run with -Dbenchmark=true.
+    @Test
+    public void benchmarkTransfer() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        File file = new File(getClass().getResource("/Alabaster.gblorb").toURI());
+        File tmp = File.createTempFile("benchmarkTransfer", null);
+        tmp.deleteOnExit();
+        Blorb blorb = Blorb.map(file);
+        Blorb.Chunk chunk = largestChunk(blorb);
+        int iterations = Math.max(10, (64 << 20)/chunk.getLength());
+        long[] nanos = new long[2];
+        for (int round = 0; round < 2; round++) {
+            for (int method = 0; method < 2; method++) {
+                FileOutputStream out = new FileOutputStream(tmp);
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    if (method == 0) {
+                        chunk.write(out);
+                    } else {
+                        chunk.transferTo(out.getChannel());
+                    }
+                }
+                out.close();
+                nanos[method] = System.nanoTime() - start;
+                Assert.assertEquals((long) iterations*chunk.getLength(), tmp.length());
+            }
+        }
+        System.out.println(String.format("Chunk export %d x %d bytes: write(OutputStream) %.1fMB/s, transferTo(channel) %.1fMB/s", iterations, chunk.getLength(), 1000.0*iterations*chunk.getLength()/nanos[0], 1000.0*iterations*chunk.getLength()/nanos[1]));
+        blorb.close();
+        tmp.delete();
+    }
+
+    @Test
+    public void testImageMetadata() throws Exception {
+        Blorb blorb = Blorb.map(new File(getClass().getResource("/Alabaster.gblorb").toURI()));
+        int count = 0;
+        for (Blorb.Resource resource : blorb.resources()) {
+            if (resource.getUsage() != Blorb.Pict) {
+                Assert.assertEquals(-1, resource.getImageWidth());
+                continue;
+            }
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(resource.getChunk().getContents()));
+            int[] size = new int[2];
+            Assert.assertTrue(blorb.getImageSize(resource.getNumber(), size));
+            Assert.assertEquals(image.getWidth(), size[0]);
+            Assert.assertEquals(image.getHeight(), size[1]);
+            Assert.assertNull(resource.getResolution());
+            count++;
+        }
+        Assert.assertEquals(25, count);
+        Assert.assertFalse(blorb.getImageSize(100, new int[2]));
+        blorb.close();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(Blorb.FORM);
+        out.writeInt(4 + 24 + 32 + 60 + 30);
+        out.writeInt(Blorb.IFRS);
+        out.writeInt(Blorb.RIdx);
+        out.writeInt(16);
+        out.writeInt(1);
+        out.writeInt(Blorb.Pict);
+        out.writeInt(1);
+        out.writeInt(36);
+        out.writeInt(Blorb.PNG);
+        out.writeInt(24);
+        out.write(new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' });
+        out.writeInt(13);
+        out.writeInt(0x49484452);
+        out.writeInt(640);
+        out.writeInt(480);
+        out.writeInt(Blorb.Reso);
+        out.writeInt(52);
+        for (int i : new int[] { 600, 400, 300, 200, 1200, 800, 1, 1, 1, 1, 2, 2, 1 }) {
+            out.writeInt(i);
+        }
+        out.writeInt(Blorb.RDes);
+        out.writeInt(21);
+        out.writeInt(1);
+        out.writeInt(Blorb.Pict);
+        out.writeInt(1);
+        out.writeInt(5);
+        out.write("A cat".getBytes("UTF-8"));
+        out.write(0);
+        blorb = Blorb.from(bytes.toByteArray());
+        Blorb.Resource resource = blorb.getResource(Blorb.Pict, 1);
+        Assert.assertEquals(640, resource.getImageWidth());
+        Assert.assertEquals(480, resource.getImageHeight());
+        Assert.assertEquals("A cat", resource.getDescription());
+        Blorb.Resolution resolution = resource.getResolution();
+        Assert.assertEquals(600, resolution.standardWidth);
+        Assert.assertEquals(800, resolution.maxHeight);
+        Assert.assertEquals(1, resolution.minRatioNumerator);
+        Assert.assertEquals(2, resolution.minRatioDenominator);
+        Assert.assertEquals(2, resolution.maxRatioNumerator);
+        Assert.assertEquals(1, resolution.maxRatioDenominator);
+    }
+
+    @Test(timeout=10000L)
+    public void testCache() throws Exception {
+        Blorb blorb = Blorb.map(new File(getClass().getResource("/Alabaster.gblorb").toURI()));
+        final ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+        int length3 = blorb.getChunk(Blorb.Pict, 3).getLength();
+        int length4 = blorb.getChunk(Blorb.Pict, 4).getLength();
+        BlorbCache cache = new BlorbCache(length3 + length4, new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                tasks.add(task);
+            }
+        });
+        BlorbCache.Entry entry3 = cache.acquire(blorb, Blorb.Pict, 3);
+        Assert.assertSame(entry3, cache.acquire(blorb, Blorb.Pict, 3));
+        Assert.assertEquals(1L, cache.getMissCount());
+        Assert.assertEquals(1L, cache.getHitCount());
+        byte[] bytes = new byte[length3];
+        entry3.getBuffer().get(bytes);
+        Assert.assertTrue(Arrays.equals(blorb.getChunk(Blorb.Pict, 3).getContents(), bytes));
+        Assert.assertNull(cache.acquire(blorb, Blorb.Pict, 100));
+
+        cache.hint(blorb, Blorb.Pict, 4, true);
+        Assert.assertEquals(1, tasks.size());
+        cache.hint(blorb, Blorb.Pict, 4, true);
+        Assert.assertEquals(1, tasks.size());
+        tasks.get(0).run();
+        Assert.assertEquals((long) length3 + length4, cache.getSize());
+        BlorbCache.Entry entry4 = cache.acquire(blorb, Blorb.Pict, 4);
+        Assert.assertEquals(length4, entry4.getLength());
+        entry4.release();
+
+        // Picture 3 is still acquired, so picture 4 is evicted.
+        BlorbCache.Entry entry5 = cache.acquire(blorb, Blorb.Pict, 5);
+        Assert.assertEquals(1L, cache.getEvictionCount());
+        entry5.release();
+        entry3.release();
+        Assert.assertTrue(cache.getSize() <= length3 + length4);
+        entry3.release();
+        try {
+            entry3.release();
+            Assert.fail();
+        } catch (IllegalStateException e) {
+        }
+        cache.remove(blorb);
+        Assert.assertEquals(0L, cache.getSize());
+        blorb.close();
+
+        // An index entry pointing past the end of the file.
+        ByteBuffer corrupt = ByteBuffer.allocate(36);
+        corrupt.putInt(Blorb.FORM).putInt(28).putInt(Blorb.IFRS);
+        corrupt.putInt(Blorb.RIdx).putInt(16).putInt(1).putInt(Blorb.Pict).putInt(1).putInt(0x1000);
+        blorb = Blorb.from(corrupt.array());
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.acquire(blorb, Blorb.Pict, 1);
+                Assert.fail();
+            } catch (IOException e) {
+            }
+        }
+        cache.prefetch(blorb, Blorb.Pict, 1);
+        tasks.get(tasks.size() - 1).run();
+        try {
+            cache.acquire(blorb, Blorb.Pict, 1);
+            Assert.fail();
+        } catch (IOException e) {
+        }
+        Assert.assertEquals(0L, cache.getSize());
+    }
+
+    @Test
+    public void testStoryIndex() throws Exception {
+        File dir = new File(getClass().getResource("/Alabaster.gblorb").toURI()).getParentFile();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        StoryIndexer indexer = new StoryIndexer(executor, null);
+        List<StoryIndex.Entry> entries = indexer.scan(dir);
+        Assert.assertEquals(entries.size(), indexer.getReadCount());
+        File tmp = File.createTempFile("testStoryIndex", null);
+        tmp.deleteOnExit();
+        StoryIndex.write(tmp, entries);
+
+        StoryIndex index = StoryIndex.open(tmp);
+        Assert.assertEquals(entries.size(), index.size());
+        for (String name : new String[] { "Advent.ulx", "Alabaster.gblorb", "BeingSteve.zblorb", "czech.z5", "glulxercise.ulx", "praxix.z5", "sensory.blb" }) {
+            Assert.assertNotNull(name, index.find(new File(dir, name).getPath()));
+        }
+        StoryIndex.Entry alabaster = index.find(new File(dir, "Alabaster.gblorb").getPath());
+        Assert.assertEquals(Blorb.IFRS, alabaster.container);
+        Assert.assertEquals(Blorb.GLUL, alabaster.format);
+        Assert.assertEquals(25, alabaster.pictures);
+        Assert.assertEquals(0, alabaster.sounds);
+        Assert.assertTrue(alabaster.metadata.contains("<ifindex"));
+        Assert.assertTrue(alabaster.cover >= 0);
+        StoryIndex.Entry praxix = index.find(new File(dir, "praxix.z5").getPath());
+        Assert.assertEquals(0, praxix.container);
+        Assert.assertEquals(Blorb.ZCOD, praxix.format);
+        Assert.assertEquals(5, praxix.version);
+        Assert.assertEquals(1, praxix.release);
+        Assert.assertEquals("100404", praxix.serial);
+        StoryIndex.Entry glulxercise = index.find(new File(dir, "glulxercise.ulx").getPath());
+        Assert.assertEquals(Blorb.GLUL, glulxercise.format);
+        Assert.assertEquals(5, glulxercise.release);
+        Assert.assertEquals("120501", glulxercise.serial);
+        Assert.assertEquals(Blorb.ZCOD, index.find(new File(dir, "BeingSteve.zblorb").getPath()).format);
+        Assert.assertNull(index.find(new File(dir, "Advent.save").getPath()));
+
+        indexer = new StoryIndexer(executor, index);
+        Assert.assertEquals(entries.size(), indexer.scan(dir).size());
+        Assert.assertEquals(0, indexer.getReadCount());
+        Assert.assertEquals(entries.size(), indexer.getReusedCount());
+
+        // A chunk length past the end of the file does not end the scan.
+        File corrupt = File.createTempFile("testStoryIndex", ".blb");
+        corrupt.deleteOnExit();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(corrupt));
+        out.writeInt(Blorb.FORM);
+        out.writeInt(-1);
+        out.writeInt(Blorb.IFRS);
+        out.writeInt(Blorb.IFmd);
+        out.writeInt(0x80000000);
+        out.close();
+        indexer = new StoryIndexer(executor, null);
+        entries = indexer.scan(corrupt);
+        Assert.assertEquals(1, entries.size());
+        Assert.assertEquals("", entries.get(0).metadata);
+        Assert.assertEquals(0, indexer.getFailedCount());
+        executor.shutdown();
+    }
 }
@@ -1,12 +1,21 @@
 package com.yrek.ifstd.glk;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.TreeMap;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.yrek.ifstd.headless.HeadlessGlk;
+import com.yrek.ifstd.headless.HeadlessGlkRemote;
+import com.yrek.ifstd.headless.HeadlessGlkSnapshot;
 import com.yrek.ifstd.test.glk.TestGlk;
 import com.yrek.ifstd.test.glk.TestGlkArray;
 
@@ -137,4 +146,455 @@ public class Test1 {
         });
         Assert.assertEquals("<test><out s=\"windowStream2\" style=\"0\" v=\"0\"/><windows><leaf w=\"window1\"/></windows><event t=\"2\" w=\"window1\" val1=\"48\" val2=\"0\"/><windows><leaf w=\"window1\"/></windows><event t=\"3\" w=\"window1\" val1=\"4\" val2=\"0\"/><windows/></test>", out.toString());
     }
+
+    @Test
+    public void testStreamMemory() throws Exception {
+        TestGlkArray memory = new TestGlkArray(10);
+        GlkStreamMemory stream = new GlkStreamMemory(memory, 0);
+        stream.putString("ab\ncdefghijk");
+        Assert.assertEquals(10, stream.getPosition());
+        stream.setPosition(0, GlkStream.SeekModeStart);
+        TestGlkArray line = new TestGlkArray(10);
+        Assert.assertEquals(3, stream.getLine(line));
+        Assert.assertEquals('\n', line.elements[2]);
+        Assert.assertEquals(0, line.elements[3]);
+        Assert.assertEquals('c', stream.getChar());
+        stream.setPosition(-2, GlkStream.SeekModeEnd);
+        TestGlkArray buffer = new TestGlkArray(5);
+        Assert.assertEquals(2, stream.getBuffer(buffer));
+        Assert.assertEquals('h', buffer.elements[0]);
+        Assert.assertEquals(-1, stream.getChar());
+        GlkStreamResult result = stream.close();
+        Assert.assertEquals(6, result.readCount);
+        Assert.assertEquals(12, result.writeCount);
+
+        TestGlkArray memoryUni = new TestGlkArray(4);
+        GlkStreamMemoryUnicode streamUni = new GlkStreamMemoryUnicode(memoryUni, 0);
+        streamUni.putCharUni(0x263a);
+        streamUni.putString("xyz");
+        streamUni.setPosition(0, GlkStream.SeekModeStart);
+        Assert.assertEquals(0x263a, streamUni.getCharUni());
+        streamUni.setPosition(0, GlkStream.SeekModeStart);
+        Assert.assertEquals('?', streamUni.getChar());
+        Assert.assertEquals(1, streamUni.getPosition());
+    }
+
+    private static class TestObject extends GlkObject {
+        TestObject(int rock) {
+            super(rock);
+        }
+    }
+
+    @Test
+    public void testStreamFile() throws Exception {
+        File file = File.createTempFile("test", ".glk");
+        try {
+            GlkStreamFile stream = new GlkStreamFile(file, GlkFile.ModeWrite, false, 0);
+            stream.putString("ab\ncd");
+            stream.putCharUni(0x263a);
+            stream.getDataOutput().writeInt(0x12345678);
+            Assert.assertEquals(10, stream.getPosition());
+            stream.flush();
+            Assert.assertEquals(10L, file.length());
+            GlkStreamResult result = stream.close();
+            Assert.assertEquals(0, result.readCount);
+            Assert.assertEquals(10, result.writeCount);
+
+            stream = new GlkStreamFile(file, GlkFile.ModeReadWrite, false, 0);
+            TestGlkArray line = new TestGlkArray(10);
+            Assert.assertEquals(3, stream.getLine(line));
+            Assert.assertEquals('\n', line.elements[2]);
+            stream.setPosition(2, GlkStream.SeekModeCurrent);
+            Assert.assertEquals('?', stream.getChar());
+            Assert.assertEquals(0x12345678, stream.getDataInput().readInt());
+            Assert.assertEquals(-1, stream.getChar());
+            stream.setPosition(-4, GlkStream.SeekModeEnd);
+            stream.putChar('x');
+            stream.setPosition(0, GlkStream.SeekModeStart);
+            TestGlkArray buffer = new TestGlkArray(20);
+            Assert.assertEquals(10, stream.getBuffer(buffer));
+            Assert.assertEquals('x', buffer.elements[6]);
+            stream.close();
+
+            GlkStreamFile streamUni = new GlkStreamFile(file, GlkFile.ModeWrite, true, 0);
+            streamUni.putCharUni(0x263a);
+            streamUni.putString("xyz");
+            Assert.assertEquals(4, streamUni.getPosition());
+            streamUni.setPosition(1, GlkStream.SeekModeStart);
+            Assert.assertEquals('x', streamUni.getCharUni());
+            streamUni.close();
+            Assert.assertEquals(16L, file.length());
+
+            streamUni = new GlkStreamFile(file, GlkFile.ModeWriteAppend, true, 0);
+            streamUni.putCharUni('!');
+            streamUni.setPosition(0, GlkStream.SeekModeStart);
+            TestGlkArray bufferUni = new TestGlkArray(8);
+            Assert.assertEquals(5, streamUni.getBufferUni(bufferUni));
+            Assert.assertEquals(0x263a, bufferUni.elements[0]);
+            Assert.assertEquals('!', bufferUni.elements[4]);
+            streamUni.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testHeadlessGlk() throws Exception {
+        final HeadlessGlk glk = new HeadlessGlk(80, 24, 3, null);
+        final TestGlkArray line = new TestGlkArray(10);
+        final int[] result = new int[1];
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    glk.main(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                GlkWindow main = glk.windowOpen(null, 0, 0, GlkWindow.TypeTextBuffer, 1);
+                                GlkWindow status = glk.windowOpen(main, GlkWindowArrangement.MethodAbove | GlkWindowArrangement.MethodFixed, 1, GlkWindow.TypeTextGrid, 2);
+                                glk.setWindow(status);
+                                glk.putString("Room");
+                                status.moveCursor(0, -1);
+                                glk.putString("x");
+                                status.moveCursor(-1, 0);
+                                glk.putString("y");
+                                glk.setWindow(main);
+                                glk.putString("1\n2\n3\n4\n5\n");
+                                glk.setStyle(GlkStream.StyleEmphasized);
+                                glk.putString("Hi");
+                                glk.setStyle(GlkStream.StyleNormal);
+                                glk.putString(">");
+                                main.requestLineEvent(line, 0);
+                                GlkEvent event = glk.select();
+                                result[0] = event.val1;
+                            } catch (IOException e) {
+                                throw new RuntimeException(e);
+                            }
+                        }
+                    });
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        thread.start();
+        HeadlessGlkSnapshot snapshot = glk.awaitSnapshot(0L, 10000L);
+        Assert.assertEquals(1L, snapshot.turn);
+        Assert.assertEquals(3, snapshot.windows.size());
+        HeadlessGlkSnapshot.Window status = snapshot.windows.get(2);
+        Assert.assertEquals(GlkWindow.TypeTextGrid, status.type);
+        Assert.assertEquals(0, status.top);
+        Assert.assertEquals(1, status.height);
+        Assert.assertTrue(status.text.startsWith("Room "));
+        HeadlessGlkSnapshot.Window main = snapshot.windows.get(1);
+        Assert.assertEquals(1, main.top);
+        Assert.assertEquals(23, main.height);
+        Assert.assertEquals("3\n4\n5\nHi>", main.text);
+        Assert.assertEquals(3, main.getRunCount());
+        Assert.assertEquals(6, main.getRunStart(1));
+        Assert.assertEquals(8, main.getRunEnd(1));
+        Assert.assertEquals(GlkStream.StyleEmphasized, main.getRunStyle(1));
+        Assert.assertTrue(main.lineInput);
+        glk.lineInput(main.id, "look");
+        snapshot = glk.awaitSnapshot(1L, 10000L);
+        thread.join();
+        Assert.assertTrue(snapshot.exited);
+        Assert.assertEquals(4, result[0]);
+        Assert.assertEquals('k', line.elements[3]);
+        main = snapshot.getWindow(main.id);
+        Assert.assertEquals("look\n", main.text);
+        Assert.assertEquals(GlkStream.StyleInput, main.getRunStyle(0));
+    }
+
+    @Test
+    public void testHeadlessGlkRemote() throws Exception {
+        final HeadlessGlk glk = new HeadlessGlk(40, 10, 0, null);
+        StringWriter out = new StringWriter();
+        HeadlessGlkRemote remote = new HeadlessGlkRemote(glk, new StringReader("{\"type\":\"line\",\"gen\":1,\"window\":1,\"value\":\"look\"}\n{\"type\" \"line\"}\n{\"type\":\"char\",\"gen\":1,\"window\":1,\"value\":\"x\"}"), out);
+        remote.start();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    glk.main(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                GlkWindow main = glk.windowOpen(null, 0, 0, GlkWindow.TypeTextBuffer, 1);
+                                GlkWindow status = glk.windowOpen(main, GlkWindowArrangement.MethodAbove | GlkWindowArrangement.MethodFixed, 2, GlkWindow.TypeTextGrid, 2);
+                                glk.setWindow(status);
+                                status.moveCursor(1, 1);
+                                glk.putString("Room");
+                                glk.setWindow(main);
+                                glk.putString("Hello\n>");
+                                main.requestLineEvent(new TestGlkArray(10), 0);
+                                glk.select();
+                                glk.putString("Ok.\n>");
+                                main.requestLineEvent(new TestGlkArray(10), 0);
+                                glk.select();
+                            } catch (IOException e) {
+                                throw new RuntimeException(e);
+                            }
+                        }
+                    });
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        thread.start();
+        Assert.assertNotNull(glk.awaitSnapshot(0L, 10000L));
+        remote.run();
+        thread.join();
+        for (int i = 0; i < 1000 && !out.toString().contains("\"exit\":true"); i++) {
+            Thread.sleep(10L);
+        }
+        // The errors are written by the input thread, so they may come
+        // before or after the second update.
+        ArrayList<String> updates = new ArrayList<String>(Arrays.asList(out.toString().split("\n")));
+        Assert.assertTrue(updates.remove("{\"type\":\"error\",\"message\":\"No char input request\"}"));
+        Assert.assertTrue(updates.remove("{\"type\":\"error\",\"message\":\"Bad JSON object\"}"));
+        Assert.assertEquals(3, updates.size());
+        Assert.assertEquals("{\"type\":\"update\",\"gen\":1,\"windows\":[{\"id\":1,\"type\":\"buffer\",\"rock\":1,\"left\":0,\"top\":2,\"width\":40,\"height\":8},{\"id\":2,\"type\":\"grid\",\"rock\":2,\"left\":0,\"top\":0,\"width\":40,\"height\":2,\"gridwidth\":40,\"gridheight\":2}],\"content\":[{\"id\":1,\"text\":[{\"append\":true,\"content\":[{\"style\":\"normal\",\"text\":\"Hello\"}]},{\"content\":[{\"style\":\"normal\",\"text\":\">\"}]}]},{\"id\":2,\"lines\":[{\"line\":0,\"content\":[{\"style\":\"normal\",\"text\":\"                                        \"}]},{\"line\":1,\"content\":[{\"style\":\"normal\",\"text\":\" Room                                   \"}]}]}],\"input\":[{\"id\":1,\"gen\":1,\"type\":\"line\"}]}", updates.get(0));
+        Assert.assertEquals("{\"type\":\"update\",\"gen\":2,\"content\":[{\"id\":1,\"text\":[{\"append\":true,\"content\":[{\"style\":\"input\",\"text\":\"look\"}]},{\"content\":[{\"style\":\"normal\",\"text\":\"Ok.\"}]},{\"content\":[{\"style\":\"normal\",\"text\":\">\"}]}]}],\"input\":[{\"id\":1,\"gen\":2,\"type\":\"line\"}]}", updates.get(1));
+        Assert.assertEquals("{\"type\":\"update\",\"gen\":3,\"content\":[],\"input\":[{\"id\":1,\"gen\":3,\"type\":\"line\"}],\"exit\":true}", updates.get(2));
+    }
+
+    @Test
+    public void testTimerWheel() throws Exception {
+        GlkTimerWheel wheel = new GlkTimerWheel(10L);
+        final int[] counts = new int[3];
+        GlkTimerWheel.Timer[] timers = new GlkTimerWheel.Timer[3];
+        for (int i = 0; i < timers.length; i++) {
+            final int index = i;
+            timers[i] = wheel.newTimer(new GlkTimerWheel.Listener() {
+                @Override
+                public void timer(GlkTimerWheel.Timer timer) {
+                    counts[index]++;
+                }
+            });
+        }
+        long now = System.currentTimeMillis();
+        timers[0].schedule(1000L);
+        timers[1].schedule(300000L);
+        timers[2].schedule(1000L);
+        timers[2].cancel();
+        Assert.assertEquals(2, wheel.getTimerCount());
+        wheel.advance(now + 500L);
+        Assert.assertEquals(0, counts[0]);
+        wheel.advance(now + 1500L);
+        Assert.assertEquals(1, counts[0]);
+        Assert.assertTrue(timers[0].isPending());
+        wheel.advance(now + 2500L);
+        Assert.assertEquals(1, counts[0]);
+        Assert.assertEquals(1L, wheel.getCoalescedCount());
+        timers[0].acknowledge();
+        wheel.advance(now + 3500L);
+        Assert.assertEquals(2, counts[0]);
+        Assert.assertEquals(0, counts[1]);
+        wheel.advance(now + 300600L);
+        Assert.assertEquals(1, counts[1]);
+        Assert.assertEquals(0, counts[2]);
+        Assert.assertEquals(3L, wheel.getFiredCount());
+        Assert.assertTrue(wheel.getMaxLagMillis() > 0L);
+        Assert.assertEquals(2, wheel.getTimerCount());
+    }
+
+    @Test
+    public void testDispatchMetrics() throws Exception {
+        for (long nanos : new long[] { 0L, 3L, 4L, 7L, 8L, 1000L, 123456789L, Long.MAX_VALUE }) {
+            int bucket = GlkDispatchMetrics.bucket(nanos);
+            Assert.assertTrue(GlkDispatchMetrics.bucketStart(bucket) <= nanos);
+            Assert.assertTrue(bucket + 1 == GlkDispatchMetrics.Buckets || GlkDispatchMetrics.bucketStart(bucket + 1) > nanos);
+        }
+        GlkDispatchMetrics metrics = new GlkDispatchMetrics();
+        for (int i = 1; i <= 100; i++) {
+            metrics.record(0x0080, 1000L*i);
+        }
+        metrics.recordSelectWait(5000000L);
+        GlkDispatch dispatch = new GlkDispatch(new TestGlk(null, new StringWriter(), null));
+        dispatch.setMetrics(metrics);
+        try {
+            dispatch.dispatch(0x1234, new GlkDispatchArgument[0]);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+        }
+        GlkDispatchMetrics.Snapshot snapshot = metrics.snapshot();
+        Assert.assertArrayEquals(new int[] { 0x0080, -1 }, snapshot.getSelectors());
+        Assert.assertEquals(100L, snapshot.getCount(0x0080));
+        Assert.assertEquals(5050000L, snapshot.getTotalNanos(0x0080));
+        Assert.assertEquals(100000L, snapshot.getMaxNanos(0x0080));
+        long median = snapshot.getPercentileNanos(0x0080, 0.5);
+        Assert.assertTrue(median >= 50000L && median < 50000L*17/16);
+        Assert.assertEquals(100000L, snapshot.getPercentileNanos(0x0080, 1.0));
+        Assert.assertEquals(1L, snapshot.getCount(-1));
+        Assert.assertEquals(1L, snapshot.getSelectWaitCount());
+        Assert.assertEquals(5000000L, snapshot.getSelectWaitTotalNanos());
+        Assert.assertTrue(snapshot.getTotalProcessingNanos() >= 5050000L);
+        metrics.reset();
+        Assert.assertEquals(0, metrics.snapshot().getSelectors().length);
+        Assert.assertEquals(100L, snapshot.getCount(0x0080));
+
+        dispatch = new GlkDispatch(new TestGlk(null, new StringWriter(), null) {
+            @Override
+            public GlkEvent select() {
+                GlkDispatchMetrics.beginWait();
+                try {
+                    Thread.sleep(20L);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                GlkDispatchMetrics.endWait();
+                return new GlkEvent(GlkEvent.TypeNone, null, 0, 0);
+            }
+        });
+        dispatch.setMetrics(metrics);
+        dispatch.select();
+        snapshot = metrics.snapshot();
+        Assert.assertEquals(1L, snapshot.getSelectWaitCount());
+        Assert.assertTrue(snapshot.getSelectWaitTotalNanos() >= 20000000L);
+        Assert.assertEquals(1L, snapshot.getCount(0x00c0));
+        Assert.assertTrue(snapshot.getTotalNanos(0x00c0) < snapshot.getSelectWaitTotalNanos());
+    }
+
+    @Test
+    public void testObjectPool() throws Exception {
+        GlkObjectPool<TestObject> pool = new GlkObjectPool<TestObject>();
+        TestObject o1 = new TestObject(1);
+        TestObject o2 = new TestObject(2);
+        TestObject o3 = new TestObject(3);
+        int p1 = pool.add(o1);
+        int p2 = pool.add(o2);
+        int p3 = pool.add(o3);
+        Assert.assertEquals(p2, pool.add(o2));
+        Assert.assertSame(o2, pool.get(p2));
+        Assert.assertEquals(p1, pool.iterate(0));
+        Assert.assertEquals(p2, pool.iterate(p1));
+
+        pool.destroy(p2);
+        Assert.assertTrue(o2.isDestroyed());
+        Assert.assertNull(pool.get(p2));
+        Assert.assertEquals(p3, pool.iterate(p1));
+
+        TestObject o4 = new TestObject(4);
+        int p4 = pool.add(o4);
+        Assert.assertTrue(p4 != p2);
+        Assert.assertNull(pool.get(p2));
+        Assert.assertSame(o4, pool.get(p4));
+
+        o1.destroy();
+        Assert.assertEquals(p3, pool.iterate(0));
+        Assert.assertEquals(p4, pool.iterate(p3));
+        Assert.assertEquals(0, pool.iterate(p4));
+        Assert.assertEquals(2, pool.toList().size());
+
+        TreeMap<Integer,TestObject> map = new TreeMap<Integer,TestObject>();
+        pool.saveToMap(map);
+        GlkObjectPool<TestObject> restored = new GlkObjectPool<TestObject>(map);
+        Assert.assertSame(o3, restored.get(p3));
+        Assert.assertSame(o4, restored.get(p4));
+        Assert.assertNull(restored.get(p2));
+        Assert.assertEquals(p3, restored.iterate(restored.iterate(0)));
+    }
+
+    private static class TestSession extends GlkSessionManager.Session {
+        byte[] memory;
+        boolean failRehydrate = false;
+
+        TestSession(int size, int fill) {
+            memory = new byte[size];
+            Arrays.fill(memory, (byte) fill);
+        }
+
+        @Override protected long getResidentSize() {
+            return memory == null ? 0L : memory.length;
+        }
+
+        @Override protected void hibernate(DataOutput out) throws IOException {
+            out.writeInt(memory.length);
+            out.write(memory);
+            memory = null;
+        }
+
+        @Override protected void rehydrate(DataInput in) throws IOException {
+            if (failRehydrate) {
+                failRehydrate = false;
+                throw new IOException("rehydrate");
+            }
+            memory = new byte[in.readInt()];
+            in.readFully(memory);
+        }
+    }
+
+    @Test
+    public void testSessionManager() throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir"));
+        GlkSessionManager manager = new GlkSessionManager(directory, 2500L);
+        TestSession s1 = new TestSession(1000, 1);
+        TestSession s2 = new TestSession(1000, 2);
+        TestSession s3 = new TestSession(1000, 3);
+        manager.add(s1);
+        manager.add(s2);
+        manager.add(s3);
+        Assert.assertEquals(3, manager.getResidentCount());
+
+        manager.idle(s2);
+        manager.idle(s1);
+        Assert.assertEquals(2, manager.getResidentCount());
+        Assert.assertEquals(1, manager.getHibernatedCount());
+        Assert.assertTrue(manager.isHibernated(s2));
+        Assert.assertNull(s2.memory);
+
+        manager.active(s2);
+        Assert.assertEquals(1000, s2.memory.length);
+        Assert.assertEquals(2, s2.memory[999]);
+        Assert.assertTrue(manager.isHibernated(s1));
+        Assert.assertEquals(1L, manager.getRehydrations());
+        Assert.assertEquals(2L, manager.getHibernations());
+
+        manager.remove(s1);
+        manager.remove(s2);
+        manager.remove(s3);
+        Assert.assertEquals(0, manager.getResidentCount());
+        Assert.assertEquals(0, manager.getHibernatedCount());
+    }
+
+    @Test
+    public void testSessionManagerFailure() throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir"));
+        GlkSessionManager manager = new GlkSessionManager(directory, 1500L);
+        TestSession s1 = new TestSession(1000, 1);
+        TestSession s2 = new TestSession(1000, 2);
+        manager.add(s1);
+        manager.add(s2);
+        manager.idle(s1);
+        Assert.assertTrue(manager.isHibernated(s1));
+
+        s1.failRehydrate = true;
+        try {
+            manager.active(s1);
+            Assert.fail();
+        } catch (IOException e) {
+        }
+        Assert.assertTrue(manager.isHibernated(s1));
+        manager.active(s1);
+        Assert.assertEquals(1, s1.memory[999]);
+        Assert.assertFalse(manager.isHibernated(s1));
+
+        // The snapshot file cannot be created.
+        manager = new GlkSessionManager(new File(directory, "missing" + System.nanoTime()), 1500L);
+        manager.add(s1);
+        manager.add(s2);
+        try {
+            manager.idle(s1);
+            Assert.fail();
+        } catch (IOException e) {
+        }
+        Assert.assertEquals(2, manager.getResidentCount());
+        Assert.assertEquals(2000L, manager.getResidentSize());
+        Assert.assertNotNull(s1.memory);
+        manager.remove(s1);
+        manager.remove(s2);
+    }
 }
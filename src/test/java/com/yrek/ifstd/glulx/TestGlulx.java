@@ -1,5 +1,9 @@
 package com.yrek.ifstd.glulx;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
@@ -14,6 +18,10 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.yrek.ifstd.glk.GlkDispatch;
+import com.yrek.ifstd.glk.GlkEvent;
+import com.yrek.ifstd.glk.GlkQuota;
+import com.yrek.ifstd.glk.GlkTickPolicy;
 import com.yrek.ifstd.glk.GlkWindow;
 import com.yrek.ifstd.test.glk.TestGlk;
 import com.yrek.ifstd.test.glk.TestGlkStream;
@@ -126,6 +134,94 @@ public class TestGlulx {
         }, null, null);
     }
 
+    private int countTicks(String file, String input, GlkTickPolicy tickPolicy) throws Exception {
+        final int[] ticks = new int[1];
+        TestGlk glk = new TestGlk(new StringReader(input), null, new StringWriter()) {
+            @Override public void tick() {
+                ticks[0]++;
+            }
+        };
+        Glulx glulx = new Glulx(new File(getClass().getResource(file).toURI()), glk);
+        glulx.setTickPolicy(tickPolicy);
+        glulx.run();
+        return ticks[0];
+    }
+
+    @Test
+    public void adventTickPolicy() throws Exception {
+        int everyTick = countTicks("/Advent.ulx", "e\nquit\ny\n", GlkTickPolicy.everyTick());
+        int instructions = countTicks("/Advent.ulx", "e\nquit\ny\n", GlkTickPolicy.instructions(1000));
+        int glkOnly = countTicks("/Advent.ulx", "e\nquit\ny\n", GlkTickPolicy.glkOnly());
+        Assert.assertTrue(everyTick > 0);
+        Assert.assertTrue(instructions > 0);
+        Assert.assertTrue(instructions < everyTick);
+        Assert.assertEquals(0, glkOnly);
+    }
+
+    @Test
+    public void adventQuota() throws Exception {
+        GlkQuota quota = new GlkQuota(100L, 0L, GlkQuota.ActionTerminate);
+        Glulx glulx = new Glulx(new File(getClass().getResource("/Advent.ulx").toURI()), new TestGlk(new StringReader("e\nquit\ny\n"), null, new StringWriter()));
+        glulx.setQuota(quota);
+        glulx.run();
+        Assert.assertEquals(1L, quota.getExceededCount());
+        Assert.assertEquals(1L, quota.getTurns());
+
+        quota = new GlkQuota(100000000L, 0L, GlkQuota.ActionTerminate);
+        glulx = new Glulx(new File(getClass().getResource("/Advent.ulx").toURI()), new TestGlk(new StringReader("e\nquit\ny\n"), null, new StringWriter()));
+        glulx.setQuota(quota);
+        glulx.run();
+        Assert.assertEquals(0L, quota.getExceededCount());
+        Assert.assertTrue(quota.getTurns() > 0L);
+        Assert.assertTrue(quota.getMaxTurnInstructions() > 100L);
+    }
+
+    @Test
+    public void adventSnapshot() throws Exception {
+        File file = new File(getClass().getResource("/Advent.ulx").toURI());
+        String input = "e\nw\nquit\ny\n";
+        StringWriter expected = new StringWriter();
+        new Glulx(file, new TestGlk(new StringReader(input), null, expected)).run();
+
+        StringWriter out = new StringWriter();
+        final Glulx[] glulx = new Glulx[1];
+        TestGlk glk = new TestGlk(new StringReader(input), null, out) {
+            private int selects = 0;
+            @Override public GlkEvent select() throws IOException {
+                selects++;
+                if (selects == 3) {
+                    try {
+                        glulx[0].suspend(false);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return super.select();
+            }
+        };
+        GlkDispatch dispatch = new GlkDispatch(glk);
+        glulx[0] = new Glulx(file, glk);
+        glulx[0] = new Glulx(file, new DataInputStream(new ByteArrayInputStream(snapshot(glulx[0]))), dispatch);
+        glulx[0].run();
+        Assert.assertTrue(glulx[0].suspended());
+
+        byte[] snapshot = snapshot(glulx[0]);
+        Assert.assertTrue(snapshot.length < 16384);
+        Glulx restored = new Glulx(file, new DataInputStream(new ByteArrayInputStream(snapshot)), dispatch);
+        Assert.assertArrayEquals(snapshot(glulx[0]), snapshot(restored));
+        glulx[0] = restored;
+        glulx[0].run();
+        Assert.assertEquals(expected.toString(), out.toString());
+    }
+
+    private byte[] snapshot(Glulx glulx) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        glulx.writeSnapshot(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
     private static final String[] glulxerciseIntro = new String[] {
         "",
         "Glulxercise: A Glulx interpreter unit test",
@@ -1,5 +1,7 @@
 package com.yrek.ifstd.test.glk;
 
+import java.nio.ByteBuffer;
+
 import com.yrek.ifstd.glk.GlkByteArray;
 import com.yrek.ifstd.glk.GlkIntArray;
 
@@ -93,4 +95,64 @@ public class TestGlkArray implements GlkByteArray, GlkIntArray {
     public void setArrayLength(int length) {
         throw new AssertionError();
     }
+
+    @Override
+    public void getBytes(int index, byte[] dst, int offset, int count) {
+        for (int i = 0; i < count; i++) {
+            dst[offset + i] = (byte) elements[index + i];
+        }
+    }
+
+    @Override
+    public void setBytes(int index, byte[] src, int offset, int count) {
+        for (int i = 0; i < count; i++) {
+            elements[index + i] = src[offset + i] & 255;
+        }
+    }
+
+    @Override
+    public void getBytes(int index, ByteBuffer dst, int count) {
+        for (int i = 0; i < count; i++) {
+            dst.put((byte) elements[index + i]);
+        }
+    }
+
+    @Override
+    public void setBytes(int index, ByteBuffer src, int count) {
+        for (int i = 0; i < count; i++) {
+            elements[index + i] = src.get() & 255;
+        }
+    }
+
+    @Override
+    public void getInts(int index, int[] dst, int offset, int count) {
+        System.arraycopy(elements, index, dst, offset, count);
+    }
+
+    @Override
+    public void setInts(int index, int[] src, int offset, int count) {
+        System.arraycopy(src, offset, elements, index, count);
+    }
+
+    @Override
+    public void getInts(int index, ByteBuffer dst, int count) {
+        dst.asIntBuffer().put(elements, index, count);
+        dst.position(dst.position() + 4*count);
+    }
+
+    @Override
+    public void setInts(int index, ByteBuffer src, int count) {
+        src.asIntBuffer().get(elements, index, count);
+        src.position(src.position() + 4*count);
+    }
+
+    @Override
+    public byte[] getBackingArray() {
+        return null;
+    }
+
+    @Override
+    public int getBackingOffset() {
+        return 0;
+    }
 }
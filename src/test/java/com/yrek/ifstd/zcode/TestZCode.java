@@ -1,13 +1,29 @@
 package com.yrek.ifstd.zcode;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.Random;
 
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
 
+import com.yrek.ifstd.blorb.Blorb;
 import com.yrek.ifstd.glk.GlkDispatch;
+import com.yrek.ifstd.glk.GlkFile;
+import com.yrek.ifstd.glk.GlkStream;
+import com.yrek.ifstd.glk.GlkStreamFile;
+import com.yrek.ifstd.glk.GlkQuota;
+import com.yrek.ifstd.glk.GlkSnapshot;
 import com.yrek.ifstd.test.glk.TestGlk;
 
 public class TestZCode {
@@ -67,6 +83,109 @@ public class TestZCode {
         }, null, null);
     }
 
+    @Test
+    public void praxixSnapshot() throws Exception {
+        File file = new File(getClass().getResource("/praxix.z5").toURI());
+        String input = "undo\nquit\n";
+        StringWriter expected = new StringWriter();
+        new ZCode(file, new GlkDispatch(new TestGlk(new StringReader(input), null, expected))).initGlk(0,0).run();
+
+        StringWriter out = new StringWriter();
+        GlkDispatch glk = new GlkDispatch(new TestGlk(new StringReader(input), null, out));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new ZCode(file, glk).writeSnapshot(new DataOutputStream(bytes));
+        ZCode zcode = new ZCode(file, new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), glk).initGlk(0,0);
+        zcode.run();
+        Assert.assertEquals(expected.toString(), out.toString());
+    }
+
+    @Test
+    public void czechSnapshot() throws Exception {
+        File file = new File(getClass().getResource("/czech.z5").toURI());
+        StringWriter out = new StringWriter();
+        ZCode zcode = new ZCode(file, new GlkDispatch(new TestGlk(new StringReader(""), null, out))).initGlk(0,0);
+        zcode.setQuota(new GlkQuota(2000L, 0L, GlkQuota.ActionSuspend));
+        zcode.run();
+        Assert.assertTrue(zcode.suspended());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        zcode.writeSnapshot(new DataOutputStream(bytes));
+        int mark = out.getBuffer().length();
+        Assert.assertTrue(mark > 0);
+        zcode.setQuota(null);
+        zcode.run();
+        Assert.assertTrue(out.toString().endsWith("Last test: quit!\n"));
+
+        StringWriter restored = new StringWriter();
+        new ZCode(file, new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), new GlkDispatch(new TestGlk(new StringReader(""), null, restored))).initGlk(0,0).run();
+        Assert.assertEquals(out.toString().substring(mark), restored.toString());
+
+        // Taking a snapshot does not draw from the random number generator.
+        Machine machine = new Machine(null, file, null, null);
+        machine.random.setSeed(1234L);
+        machine.writeSnapshot(new DataOutputStream(new ByteArrayOutputStream()));
+        bytes = new ByteArrayOutputStream();
+        machine.writeSnapshot(new DataOutputStream(bytes));
+        Machine copy = new Machine(null, file, null, new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), null);
+        Random random = new Random(1234L);
+        for (int i = 0; i < 10; i++) {
+            int expected = random.nextInt(100);
+            Assert.assertEquals(expected, machine.random.nextInt(100));
+            Assert.assertEquals(expected, copy.random.nextInt(100));
+        }
+
+        // A delta claiming more memory than it covers is rejected without
+        // allocating it.
+        bytes = new ByteArrayOutputStream();
+        DataOutputStream delta = new DataOutputStream(bytes);
+        delta.writeInt(Integer.MAX_VALUE);
+        delta.writeInt(0);
+        delta.writeShort(0);
+        try {
+            GlkSnapshot.readDelta(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), machine.getStory());
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void praxixBuffer() throws Exception {
+        File file = new File(getClass().getResource("/praxix.z5").toURI());
+        String input = "all\nrestart\nquit\n";
+        StringWriter expected = new StringWriter();
+        new ZCode(file, new GlkDispatch(new TestGlk(new StringReader(input), null, expected))).initGlk(0,0).run();
+        ByteBuffer buffer = ByteBuffer.allocate((int) file.length() + 16);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        raf.readFully(buffer.array(), 8, (int) file.length());
+        raf.close();
+        buffer.position(8).limit(8 + (int) file.length());
+        StringWriter out = new StringWriter();
+        GlkDispatch glk = new GlkDispatch(new TestGlk(new StringReader(input), null, out));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new ZCode(buffer, glk).writeSnapshot(new DataOutputStream(bytes));
+        Assert.assertEquals(8, buffer.position());
+        new ZCode(buffer, new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), glk).initGlk(0,0).run();
+        Assert.assertEquals(expected.toString(), out.toString());
+
+        Blorb blorb = Blorb.map(new File(getClass().getResource("/BeingSteve.zblorb").toURI()));
+        // Runs until the input runs out.
+        input = "look\n";
+        expected = new StringWriter();
+        try {
+            new ZCode(blorb.getChunk(Blorb.Exec, 0).getContents(), new GlkDispatch(new TestGlk(new StringReader(input), null, expected))).initGlk(0,0).run();
+            Assert.fail();
+        } catch (RuntimeException e) {
+        }
+        out = new StringWriter();
+        try {
+            new ZCode(blorb, new GlkDispatch(new TestGlk(new StringReader(input), null, out))).initGlk(0,0).run();
+            Assert.fail();
+        } catch (RuntimeException e) {
+        }
+        Assert.assertTrue(expected.toString().length() > 100);
+        Assert.assertEquals(expected.toString(), out.toString());
+        blorb.close();
+    }
+
     @Test
     public void praxixXyzzy() throws Exception {
         testFile("/praxix.z5", praxixIntro, praxixOutro, new String[][] {
@@ -381,4 +500,604 @@ public class TestZCode {
             "Last test: quit!",
         }, new String[0], new String[0][], null, null);
     }
+
+    @Test
+    public void literalCache() throws Exception {
+        byte[] story = new byte[0x200];
+        story[State.VERSION] = 5;
+        story[State.STATIC_MEMORY] = 1;
+        // "hello" at 0x80, in dynamic memory
+        story[0x80] = 0x35;
+        story[0x81] = 0x51;
+        story[0x82] = (byte) 0xc6;
+        story[0x83] = (byte) 0x85;
+        State state = new State();
+        state.load(ByteBuffer.wrap(story));
+        Assert.assertEquals("hello", state.literal(0x80));
+        Assert.assertEquals(0x84, state.pc);
+        state.ram[0x81] = 0x52;
+        Assert.assertEquals("hello", state.literal(0x80));
+        state.store8(0x90, 1);
+        Assert.assertEquals("hello", state.literal(0x80));
+        state.store16(0x80, 0x3552);
+        Assert.assertEquals("hemlo", state.literal(0x80));
+        Assert.assertEquals(0x84, state.pc);
+    }
+
+    @Test
+    public void selfModifyingCode() throws Exception {
+        byte[] story = new byte[0x700];
+        story[State.VERSION] = 5;
+        story[State.HIGH_MEMORY] = 4;
+        story[State.INITIAL_PC] = 4;
+        story[State.GLOBAL_VAR_TABLE] = 1;
+        story[State.STATIC_MEMORY] = 6;
+        // Code in dynamic memory that changes the operand of its first
+        // instruction, then runs it again.
+        byte[] code = new byte[] {
+            // print_num 1; print_char ' '; inc g0; je g0 2 ?0x415
+            (byte) 0xe6, 0x7f, 0x01, (byte) 0xe5, 0x7f, 0x20, (byte) 0x95, 0x10, 0x41, 0x10, 0x02, (byte) 0xcb,
+            // storeb 0x402 0 3; jump 0x400
+            (byte) 0xe2, 0x17, 0x04, 0x02, 0x00, 0x03, (byte) 0x8c, (byte) 0xff, (byte) 0xed,
+            // new_line; quit
+            (byte) 0xbb, (byte) 0xba,
+        };
+        System.arraycopy(code, 0, story, 0x400, code.length);
+        StringWriter out = new StringWriter();
+        TestGlk glk = new TestGlk(new StringReader(""), null, out);
+        new ZCode(story, new GlkDispatch(glk)).initGlk(0, 0).run();
+        Assert.assertEquals("1 3 \n", out.toString());
+    }
+
+    @Test
+    public void stackSave() throws Exception {
+        File file = new File(getClass().getResource("/praxix.z5").toURI());
+        State state = new State();
+        state.load(new FileInputStream(file));
+        state.push(7);
+        int locals = state.pushFrame(0x1234, 3, 1, 2);
+        state.stack[locals] = 11;
+        state.stack[locals + 1] = 12;
+        state.push(13);
+        state.push(14);
+        state.pushFrame(0x12345, -1, 0, 0);
+        state.push(15);
+        Assert.assertEquals(2, state.frameIndex());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] story = readStory(file);
+        state.writeSave(new DataOutputStream(out), ByteBuffer.wrap(story));
+
+        State restored = new State();
+        restored.load(new FileInputStream(file));
+        Assert.assertTrue(restored.loadSave(new DataInputStream(new ByteArrayInputStream(out.toByteArray())), ByteBuffer.wrap(story), false));
+        Assert.assertEquals(state.fp, restored.fp);
+        Assert.assertEquals(state.sp, restored.sp);
+        for (int i = 0; i < state.sp; i++) {
+            Assert.assertEquals(state.stack[i], restored.stack[i]);
+        }
+        Assert.assertEquals(15, restored.pop());
+        Assert.assertEquals(0, restored.pop());
+        Assert.assertEquals(-1, restored.popFrame());
+        Assert.assertEquals(0x12345, restored.pc);
+        Assert.assertEquals(14, restored.pop());
+        Assert.assertEquals(12, restored.readVar(2));
+        Assert.assertEquals(3, restored.popFrame());
+        Assert.assertEquals(0x1234, restored.pc);
+        Assert.assertEquals(7, restored.peek());
+        Assert.assertEquals(0, restored.frameIndex());
+
+        State copy = new State();
+        copy.copyFrom(state, false);
+        Assert.assertEquals(15, copy.pop());
+        Assert.assertEquals(15, state.peek());
+    }
+
+    // A version 3 story that calls a routine count+1 times, then prints
+    // its last result.
+    private static byte[] v3Loop(int count) {
+        byte[] story = new byte[0x440];
+        story[State.VERSION] = 3;
+        story[State.HIGH_MEMORY] = 4;
+        story[State.INITIAL_PC] = 4;
+        story[State.OBJECT_TABLE] = 3;
+        story[State.GLOBAL_VAR_TABLE+1] = 0x40;
+        story[State.STATIC_MEMORY] = 3;
+        story[State.LENGTH] = 2;
+        story[State.LENGTH+1] = 0x20;
+        byte[] code = new byte[] {
+            // call 0x420 g0 -> g1
+            (byte) 0xe0, 0x2f, 0x02, 0x10, 0x10, 0x11,
+            // inc_chk g0 count ?0x40f
+            (byte) 0xc5, 0x4f, 0x10, (byte) (count >> 8), (byte) count, (byte) 0xc5,
+            // jump 0x400
+            (byte) 0x8c, (byte) 0xff, (byte) 0xf3,
+            // print_num g1; new_line; quit
+            (byte) 0xe6, (byte) 0xbf, 0x11, (byte) 0xbb, (byte) 0xba,
+        };
+        System.arraycopy(code, 0, story, 0x400, code.length);
+        byte[] routine = new byte[] {
+            // 1 local
+            0x01, 0x00, 0x00,
+            // add l0 7 -> l0; mod l0 13 -> sp; ret_popped
+            0x54, 0x01, 0x07, 0x01, 0x58, 0x01, 0x0d, 0x00, (byte) 0xb8,
+        };
+        System.arraycopy(routine, 0, story, 0x420, routine.length);
+        return story;
+    }
+
+    private static long runV3(byte[] story, boolean fast, StringWriter out) throws Exception {
+        Machine machine = new Machine(story, null, null, new GlkDispatch(new TestGlk(new StringReader(""), null, out)));
+        machine.initGlk(0, 0);
+        machine.initForRun();
+        long start = System.nanoTime();
+        while ((fast ? Instruction5.executeNext(machine) : Instruction.executeNext(machine)) != Instruction.Result.Quit) {
+        }
+        return System.nanoTime() - start;
+    }
+
+    @Test
+    public void v3Dispatch() throws Exception {
+        StringWriter out = new StringWriter();
+        TestGlk glk = new TestGlk(new StringReader(""), null, out);
+        new ZCode(v3Loop(10000), new GlkDispatch(glk)).initGlk(0, 0).run();
+        Assert.assertEquals("10\n", out.toString());
+
+        byte[] story = v3Loop(30000);
+        for (int fast = 0; fast < 2; fast++) {
+            out = new StringWriter();
+            runV3(story, fast != 0, out);
+            Assert.assertEquals("3\n", out.toString());
+        }
+    }
+
+    // Run with -Dbenchmark=true.
+    @Test
+    public void benchmarkV3Dispatch() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        byte[] story = v3Loop(30000);
+        long[] nanos = new long[] { Long.MAX_VALUE, Long.MAX_VALUE };
+        for (int round = 0; round < 60; round++) {
+            for (int fast = 0; fast < 2; fast++) {
+                StringWriter out = new StringWriter();
+                nanos[fast] = Math.min(nanos[fast], runV3(story, fast != 0, out));
+                Assert.assertEquals("3\n", out.toString());
+            }
+        }
+        // 6 instructions per iteration
+        System.out.println(String.format("Version 3 dispatch: Instruction %.1fns/insn, Instruction5 %.1fns/insn", nanos[0]/180006.0, nanos[1]/180006.0));
+    }
+
+    // Encodes lower case letters and spaces.
+    private static byte[] zstring(String text) {
+        int length = (text.length() + 2) / 3 * 3;
+        byte[] bytes = new byte[length*2/3];
+        for (int i = 0; i < length; i += 3) {
+            int word = i + 3 < length ? 0 : 0x8000;
+            for (int j = 0; j < 3; j++) {
+                int ch = i + j < text.length() ? text.charAt(i+j) : -1;
+                word |= (ch < 0 ? 5 : ch == ' ' ? 0 : ch - 'a' + 6) << (10 - 5*j);
+            }
+            bytes[2*i/3] = (byte) (word >> 8);
+            bytes[2*i/3+1] = (byte) word;
+        }
+        return bytes;
+    }
+
+    // A version 3 or 4 story that calls routines and works the stack,
+    // the object tree, properties, attributes, arrays, arithmetic,
+    // branches and strings.
+    private static byte[] oldVersionStory(int version) {
+        byte[] story = new byte[0x700];
+        int packed = version < 4 ? 2 : 4;
+        story[State.VERSION] = (byte) version;
+        story[State.HIGH_MEMORY] = 4;
+        story[State.INITIAL_PC] = 4;
+        story[State.OBJECT_TABLE+1] = 0x40;
+        story[State.GLOBAL_VAR_TABLE] = 1;
+        story[State.STATIC_MEMORY] = 2;
+        story[State.LENGTH] = (byte) ((0x700 / packed) >> 8);
+        story[State.LENGTH+1] = (byte) (0x700 / packed);
+
+        // Objects 1 box, 2 ball and 3 cube, with 2 and 3 in 1.
+        int defaults = version < 4 ? 31 : 63;
+        int objectSize = version < 4 ? 9 : 14;
+        int attributeSize = version < 4 ? 4 : 6;
+        story[0x40 + 2*4 + 1] = 99;
+        int[][] tree = new int[][] { { 0, 0, 2 }, { 1, 3, 0 }, { 1, 0, 0 } };
+        for (int i = 0; i < 3; i++) {
+            int object = 0x40 + 2*defaults + i*objectSize + attributeSize;
+            for (int j = 0; j < 3; j++) {
+                if (version < 4) {
+                    story[object + j] = (byte) tree[i][j];
+                } else {
+                    story[object + 2*j + 1] = (byte) tree[i][j];
+                }
+            }
+            story[object + (version < 4 ? 3 : 6)] = 1;
+            story[object + (version < 4 ? 4 : 7)] = (byte) (0x40 + 0x10*i);
+        }
+        int oneByte = 0x00;
+        int twoBytes = version < 4 ? 0x20 : 0x40;
+        byte[][] properties = new byte[][] {
+            // prop 5 = 0x0102, prop 3 = 7
+            { 1, 0, 0, (byte) (twoBytes|5), 1, 2, (byte) (oneByte|3), 7, 0 },
+            // prop 5 = 42
+            { 2, 0, 0, 0, 0, (byte) (twoBytes|5), 0, 42, 0 },
+            { 2, 0, 0, 0, 0, 0 },
+        };
+        String[] names = new String[] { "box", "ball", "cube" };
+        for (int i = 0; i < 3; i++) {
+            byte[] name = zstring(names[i]);
+            System.arraycopy(name, 0, properties[i], 1, name.length);
+            System.arraycopy(properties[i], 0, story, 0x140 + 0x10*i, properties[i].length);
+        }
+
+        byte[] code = new byte[] {
+            // call 0x600 5 -> g0; print_num g0; new_line
+            (byte) 0xe0, 0x1f, (byte) (0x600/packed >> 8), (byte) (0x600/packed), 0x05, 0x10,
+            (byte) 0xe6, (byte) 0xbf, 0x10, (byte) 0xbb,
+            // push 7; push 9; pop; pull g1; not g1 -> sp; print_num sp; new_line
+            (byte) 0xe8, 0x7f, 0x07, (byte) 0xe8, 0x7f, 0x09, (byte) 0xb9, (byte) 0xe9, 0x7f, 0x11,
+            (byte) 0xaf, 0x11, 0x00, (byte) 0xe6, (byte) 0xbf, 0x00, (byte) 0xbb,
+            // print_obj 2; print_char ' '; get_parent 2 -> sp; print_obj sp; new_line
+            (byte) 0x9a, 0x02, (byte) 0xe5, 0x7f, 0x20, (byte) 0x93, 0x02, 0x00, (byte) 0xaa, 0x00, (byte) 0xbb,
+            // remove_obj 2; get_child 1 -> sp ?+5; print_char 'x'; print_obj sp; new_line
+            (byte) 0x99, 0x02, (byte) 0x92, 0x01, 0x00, (byte) 0xc5, (byte) 0xe5, 0x7f, 0x78,
+            (byte) 0xaa, 0x00, (byte) 0xbb,
+            // insert_obj 2 3; jin 2 3 ?+5; print_char 'x'
+            0x0e, 0x02, 0x03, 0x06, 0x02, 0x03, (byte) 0xc5, (byte) 0xe5, 0x7f, 0x78,
+            // get_sibling 3 -> g2 ?~+5; print_char 'x'
+            (byte) 0x91, 0x03, 0x12, 0x45, (byte) 0xe5, 0x7f, 0x78,
+            // set_attr 3 10; test_attr 3 10 ?+5; print_char 'x'
+            0x0b, 0x03, 0x0a, 0x0a, 0x03, 0x0a, (byte) 0xc5, (byte) 0xe5, 0x7f, 0x78,
+            // clear_attr 3 10; test_attr 3 10 ?~+5; print_char 'x'
+            0x0c, 0x03, 0x0a, 0x0a, 0x03, 0x0a, 0x45, (byte) 0xe5, 0x7f, 0x78,
+            // get_prop 1 5 -> sp; print_num sp; print_char ' '
+            0x11, 0x01, 0x05, 0x00, (byte) 0xe6, (byte) 0xbf, 0x00, (byte) 0xe5, 0x7f, 0x20,
+            // get_prop 3 5 -> sp; print_num sp; print_char ' '
+            0x11, 0x03, 0x05, 0x00, (byte) 0xe6, (byte) 0xbf, 0x00, (byte) 0xe5, 0x7f, 0x20,
+            // put_prop 2 5 1000; get_prop 2 5 -> sp; print_num sp; print_char ' '
+            (byte) 0xe3, 0x53, 0x02, 0x05, 0x03, (byte) 0xe8,
+            0x11, 0x02, 0x05, 0x00, (byte) 0xe6, (byte) 0xbf, 0x00, (byte) 0xe5, 0x7f, 0x20,
+            // get_prop_addr 1 3 -> g2; get_prop_len g2 -> sp; print_num sp; print_char ' '
+            0x12, 0x01, 0x03, 0x12, (byte) 0xa4, 0x12, 0x00, (byte) 0xe6, (byte) 0xbf, 0x00, (byte) 0xe5, 0x7f, 0x20,
+            // loadb g2 0 -> sp; print_num sp; print_char ' '
+            0x50, 0x12, 0x00, 0x00, (byte) 0xe6, (byte) 0xbf, 0x00, (byte) 0xe5, 0x7f, 0x20,
+            // get_next_prop 1 0 -> sp; print_num sp; new_line
+            0x13, 0x01, 0x00, 0x00, (byte) 0xe6, (byte) 0xbf, 0x00, (byte) 0xbb,
+            // storew 0x180 1 -1234; loadw 0x180 1 -> sp; div sp 10 -> sp; print_num sp; print_char ' '
+            (byte) 0xe1, 0x13, 0x01, (byte) 0x80, 0x01, (byte) 0xfb, 0x2e,
+            (byte) 0xcf, 0x1f, 0x01, (byte) 0x80, 0x01, 0x00, 0x57, 0x00, 0x0a, 0x00,
+            (byte) 0xe6, (byte) 0xbf, 0x00, (byte) 0xe5, 0x7f, 0x20,
+            // loadw 0x180 1 -> sp; mod sp 10 -> sp; print_num sp; print_char ' '
+            (byte) 0xcf, 0x1f, 0x01, (byte) 0x80, 0x01, 0x00, 0x58, 0x00, 0x0a, 0x00,
+            (byte) 0xe6, (byte) 0xbf, 0x00, (byte) 0xe5, 0x7f, 0x20,
+            // and 0x0ff0 0x3c3c -> sp; print_num sp; print_char ' '
+            (byte) 0xc9, 0x0f, 0x0f, (byte) 0xf0, 0x3c, 0x3c, 0x00, (byte) 0xe6, (byte) 0xbf, 0x00, (byte) 0xe5, 0x7f, 0x20,
+            // or 1 6 -> sp; print_num sp; new_line
+            0x08, 0x01, 0x06, 0x00, (byte) 0xe6, (byte) 0xbf, 0x00, (byte) 0xbb,
+            // test 7 5 ?+5; print_char 'x'
+            0x07, 0x07, 0x05, (byte) 0xc5, (byte) 0xe5, 0x7f, 0x78,
+            // store g3 3; print_num g3; dec_chk g3 0 ?~-6; new_line
+            0x0d, 0x13, 0x03, (byte) 0xe6, (byte) 0xbf, 0x13, 0x04, 0x13, 0x00, 0x3f, (byte) 0xfa, (byte) 0xbb,
+            // inc g3; jz g3 ?+5; print_char 'x'
+            (byte) 0x95, 0x13, (byte) 0xa0, 0x13, (byte) 0xc5, (byte) 0xe5, 0x7f, 0x78,
+            // print_paddr 0x640; call 0x620 -> sp; pop; quit
+            (byte) 0x8d, (byte) (0x640/packed >> 8), (byte) (0x640/packed), (byte) 0xe0, 0x3f, (byte) (0x620/packed >> 8), (byte) (0x620/packed), 0x00,
+            (byte) 0xb9, (byte) 0xba,
+        };
+        System.arraycopy(code, 0, story, 0x400, code.length);
+        byte[] routine = new byte[] {
+            // 3 locals = 100, 3, 0
+            0x03, 0x00, 0x64, 0x00, 0x03, 0x00, 0x00,
+            // mul l0 l1 -> sp; sub sp 1 -> l2; ret l2
+            0x76, 0x01, 0x02, 0x00, 0x55, 0x00, 0x01, 0x03, (byte) 0xab, 0x03,
+        };
+        System.arraycopy(routine, 0, story, 0x600, routine.length);
+        // 0 locals; print_ret "done"
+        story[0x621] = (byte) 0xb3;
+        System.arraycopy(zstring("done"), 0, story, 0x622, 4);
+        System.arraycopy(zstring("the end "), 0, story, 0x640, 6);
+        return story;
+    }
+
+    @Test
+    public void oldVersions() throws Exception {
+        String expected = "14\n-8\nball box\ncube\n258 99 1000 1 7 5\n-123 -4 3120 7\n3210\nthe end done\n";
+        for (int version = 3; version <= 4; version++) {
+            byte[] story = oldVersionStory(version);
+            StringWriter out = new StringWriter();
+            TestGlk glk = new TestGlk(new StringReader(""), null, out);
+            new ZCode(story, new GlkDispatch(glk)).initGlk(0, 0).run();
+            Assert.assertEquals(expected, out.toString());
+            for (int fast = 0; fast < 2; fast++) {
+                out = new StringWriter();
+                runV3(story, fast != 0, out);
+                Assert.assertEquals(expected, out.toString());
+            }
+        }
+    }
+
+    @Test
+    public void userDictionary() throws Exception {
+        byte[] story = new byte[0x200];
+        story[State.VERSION] = 5;
+        story[State.STATIC_MEMORY] = 1;
+        State state = new State();
+        state.load(ByteBuffer.wrap(story));
+        // A dictionary at 0x80 in dynamic memory, separator ',', two 6 byte entries
+        state.store8(0x80, 1);
+        state.store8(0x81, ',');
+        state.store8(0x82, 6);
+        state.store16(0x83, 2);
+        long world = ZSCII.encode(state, "world");
+        long hello = ZSCII.encode(state, "hello");
+        for (int i = 0; i < 3; i++) {
+            state.store16(0x85 + 2*i, (int) (world >> (32 - 16*i)));
+            state.store16(0x8b + 2*i, (int) (hello >> (32 - 16*i)));
+        }
+        String text = "hello,world";
+        for (int i = 0; i < text.length(); i++) {
+            state.store8(0x40 + i, text.charAt(i));
+        }
+        state.store8(0x60, 4);
+
+        Dictionary dictionary = state.getDictionary(0x80);
+        Assert.assertEquals(0x91, dictionary.end);
+        dictionary.parse(0x40, text.length(), 0x60, false);
+        Assert.assertEquals(3, state.read8(0x61));
+        Assert.assertEquals(0x8b, state.read16(0x62));
+        Assert.assertEquals(5, state.read8(0x64));
+        Assert.assertEquals(2, state.read8(0x65));
+        Assert.assertEquals(0, state.read16(0x66));
+        Assert.assertEquals(0x85, state.read16(0x6a));
+        Assert.assertEquals(8, state.read8(0x6d));
+
+        state.store8(0xa0, 1);
+        Assert.assertSame(dictionary, state.getDictionary(0x80));
+        state.store8(0x85, 0);
+        Dictionary changed = state.getDictionary(0x80);
+        Assert.assertNotSame(dictionary, changed);
+        Assert.assertSame(changed, state.getDictionary(0x80));
+        state.store16(0x6a, 0xffff);
+        changed.parse(0x40, text.length(), 0x60, true);
+        Assert.assertEquals(0x8b, state.read16(0x62));
+        Assert.assertEquals(0xffff, state.read16(0x6a));
+
+        // Stores between two dictionaries keep both indexes.
+        for (int i = 0; i < 0x11; i++) {
+            state.store8(0xc0 + i, state.read8(0x80 + i));
+        }
+        Dictionary low = state.getDictionary(0x80);
+        Dictionary high = state.getDictionary(0xc0);
+        state.store16(0xa0, 1);
+        state.store8(0xbf, 1);
+        Assert.assertSame(low, state.getDictionary(0x80));
+        Assert.assertSame(high, state.getDictionary(0xc0));
+        state.store8(0xd0, 1);
+        Assert.assertNotSame(low, state.getDictionary(0x80));
+    }
+
+    @Test
+    public void undoStack() throws Exception {
+        File file = new File(getClass().getResource("/praxix.z5").toURI());
+        State state = new State();
+        state.load(new FileInputStream(file));
+        int global = state.globalVarTable;
+        int dynamic = state.read16(State.STATIC_MEMORY);
+        UndoStack undo = new UndoStack(3, 1L << 20);
+        for (int i = 1; i <= 4; i++) {
+            state.store16(global, i);
+            state.push(100 + i);
+            state.pc = 1000 + i;
+            undo.save(state, 17);
+        }
+        Assert.assertEquals(3, undo.getDepth());
+        Assert.assertTrue(undo.getSize() < dynamic + 256);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        undo.writeSnapshot(new DataOutputStream(out), state.ram);
+        UndoStack copy = new UndoStack(0, 0L);
+        copy.readSnapshot(new DataInputStream(new ByteArrayInputStream(out.toByteArray())), state.ram);
+        Assert.assertEquals(undo.getSize(), copy.getSize());
+
+        for (UndoStack u : new UndoStack[] { undo, copy }) {
+            for (int i = 4; i >= 2; i--) {
+                state.store16(global, 999);
+                state.push(999);
+                Assert.assertTrue(u.restore(state));
+                Assert.assertEquals(1000 + i, state.pc);
+                // global 1 is variable 17, where save_undo stores 2
+                Assert.assertEquals(2, state.read16(global + 2));
+                Assert.assertEquals(i, state.read16(global));
+                Assert.assertEquals(100 + i, state.peek());
+            }
+            Assert.assertFalse(u.restore(state));
+            Assert.assertEquals(0L, u.getSize());
+            for (int i = 2; i >= 1; i--) {
+                Assert.assertEquals(100 + i, state.pop());
+            }
+        }
+
+        undo.setLimits(10, 1L);
+        undo.save(state, 17);
+        undo.save(state, 17);
+        Assert.assertEquals(1, undo.getDepth());
+    }
+
+    private static byte[] readStory(File file) throws Exception {
+        byte[] story = new byte[(int) file.length()];
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.readFully(story);
+        } finally {
+            in.close();
+        }
+        return story;
+    }
+
+    @Test
+    public void quetzalSave() throws Exception {
+        File file = new File(getClass().getResource("/praxix.z5").toURI());
+        byte[] story = readStory(file);
+        State state = new State();
+        state.load(new FileInputStream(file));
+        int dynamic = state.read16(State.STATIC_MEMORY);
+        for (int i = 0x40; i < dynamic; i += 97) {
+            state.store8(i, i);
+        }
+        state.pc = 0x4321;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        state.writeSave(new DataOutputStream(out), ByteBuffer.wrap(story));
+        byte[] save = out.toByteArray();
+        Assert.assertEquals(0x464f524d, ByteBuffer.wrap(save).getInt(0));
+        Assert.assertEquals(save.length - 8, ByteBuffer.wrap(save).getInt(4));
+        Assert.assertEquals(0x49465a53, ByteBuffer.wrap(save).getInt(8));
+        Assert.assertTrue(save.length < 200);
+
+        State restored = new State();
+        restored.load(new FileInputStream(file));
+        Assert.assertTrue(restored.loadSave(new DataInputStream(new ByteArrayInputStream(save)), ByteBuffer.wrap(story), true));
+        Assert.assertEquals(0x4321, restored.pc);
+        Assert.assertArrayEquals(state.ram, restored.ram);
+
+        // UMem holding only dynamic memory, without IFZS
+        out = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(0x464f524d);
+        data.writeInt(8 + 14 + 8 + ((dynamic + 1)/2)*2 + 8 + 8);
+        data.write(save, 12, 8 + 14);
+        data.writeInt(0x554d656d);
+        data.writeInt(dynamic);
+        data.write(state.ram, 0, dynamic);
+        if (dynamic % 2 != 0) {
+            data.write(0);
+        }
+        data.writeInt(0x53746b73);
+        data.writeInt(8);
+        data.write(new byte[8]);
+        restored = new State();
+        restored.load(new FileInputStream(file));
+        Assert.assertTrue(restored.loadSave(new DataInputStream(new ByteArrayInputStream(out.toByteArray())), ByteBuffer.wrap(story), true));
+        Assert.assertArrayEquals(state.ram, restored.ram);
+        Assert.assertEquals(0, restored.frameIndex());
+    }
+
+    // Saves to and restores from one file.
+    private static class SaveGlk extends TestGlk {
+        private final File file;
+
+        SaveGlk(File file, StringWriter out) {
+            super(new StringReader(""), null, out);
+            this.file = file;
+        }
+
+        @Override
+        public GlkFile fileCreateByPrompt(int usage, int mode, int rock) {
+            return new GlkFile(rock) {
+                @Override public void delete() {
+                    file.delete();
+                }
+                @Override public boolean exists() {
+                    return file.exists();
+                }
+            };
+        }
+
+        @Override
+        public GlkStream streamOpenFile(GlkFile file, int mode, int rock) throws IOException {
+            return new GlkStreamFile(this.file, mode, false, rock);
+        }
+    }
+
+    // A story that stores 5 in g2, saves, and prints the result of the
+    // save and g2.  Starting at restore, it restores instead.
+    private static byte[] saveStory(int version, boolean restore) {
+        byte[] story = new byte[0x500];
+        story[State.VERSION] = (byte) version;
+        story[State.HIGH_MEMORY] = 4;
+        story[State.INITIAL_PC] = 4;
+        story[State.GLOBAL_VAR_TABLE] = 1;
+        story[State.STATIC_MEMORY] = 2;
+        story[State.LENGTH] = (byte) ((0x500 / (version < 4 ? 2 : 4)) >> 8);
+        story[State.LENGTH+1] = (byte) (0x500 / (version < 4 ? 2 : 4));
+        byte[] code;
+        if (version < 4) {
+            code = new byte[] {
+                // store g2 5; save ?0x408; print_char 'n'
+                0x0d, 0x12, 0x05, (byte) 0xb5, (byte) 0xc5, (byte) 0xe5, 0x7f, 0x6e,
+                // print_num g2; new_line; quit
+                (byte) 0xe6, (byte) 0xbf, 0x12, (byte) 0xbb, (byte) 0xba,
+                // restore ?0x40f; print_char 'x'; new_line; quit
+                (byte) 0xb6, (byte) 0xc2, (byte) 0xe5, 0x7f, 0x78, (byte) 0xbb, (byte) 0xba,
+            };
+        } else {
+            code = new byte[] {
+                // store g2 5; save -> g0
+                0x0d, 0x12, 0x05, (byte) 0xbe, 0x00, (byte) 0xff, 0x10,
+                // print_num g0; print_char ' '; print_num g2; new_line; quit
+                (byte) 0xe6, (byte) 0xbf, 0x10, (byte) 0xe5, 0x7f, 0x20, (byte) 0xe6, (byte) 0xbf, 0x12, (byte) 0xbb, (byte) 0xba,
+                // restore -> g1; print_num g1; new_line; quit
+                (byte) 0xbe, 0x01, (byte) 0xff, 0x11, (byte) 0xe6, (byte) 0xbf, 0x11, (byte) 0xbb, (byte) 0xba,
+            };
+        }
+        System.arraycopy(code, 0, story, 0x400, code.length);
+        if (restore) {
+            story[State.INITIAL_PC+1] = (byte) (version < 4 ? 0x0d : 0x12);
+        }
+        return story;
+    }
+
+    @Test
+    public void quetzalSavePc() throws Exception {
+        File file = File.createTempFile("save", ".sav");
+        try {
+            for (int version = 3; version <= 5; version += 2) {
+                StringWriter out = new StringWriter();
+                new ZCode(saveStory(version, false), new GlkDispatch(new SaveGlk(file, out))).initGlk(0, 0).run();
+                Assert.assertEquals(version < 4 ? "5\n" : "1 5\n", out.toString());
+                // The PC in IFhd is that of the branch or store byte.
+                byte[] save = readStory(file);
+                Assert.assertEquals(0x49466864, ByteBuffer.wrap(save).getInt(12));
+                Assert.assertEquals(version < 4 ? 0x404 : 0x406, ByteBuffer.wrap(save).getInt(30) >> 8);
+
+                out = new StringWriter();
+                new ZCode(saveStory(version, true), new GlkDispatch(new SaveGlk(file, out))).initGlk(0, 0).run();
+                Assert.assertEquals(version < 4 ? "5\n" : "2 5\n", out.toString());
+
+                // As another interpreter would write it: UMem, g2 = 7.
+                byte[] story = saveStory(version, false);
+                story[0x105] = 7;
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream data = new DataOutputStream(bytes);
+                data.writeInt(0x464f524d); // FORM
+                data.writeInt(4 + 8 + 14 + 8 + 0x200 + 8 + 8);
+                data.writeInt(0x49465a53); // IFZS
+                data.writeInt(0x49466864); // IFhd
+                data.writeInt(13);
+                data.write(new byte[10]);
+                data.write(0);
+                data.writeShort(version < 4 ? 0x404 : 0x406);
+                data.write(0);
+                data.writeInt(0x554d656d); // UMem
+                data.writeInt(0x200);
+                data.write(story, 0, 0x200);
+                data.writeInt(0x53746b73); // Stks
+                data.writeInt(8);
+                data.write(new byte[8]);
+                RandomAccessFile f = new RandomAccessFile(file, "rw");
+                try {
+                    f.setLength(0L);
+                    f.write(bytes.toByteArray());
+                } finally {
+                    f.close();
+                }
+                out = new StringWriter();
+                new ZCode(saveStory(version, true), new GlkDispatch(new SaveGlk(file, out))).initGlk(0, 0).run();
+                Assert.assertEquals(version < 4 ? "7\n" : "2 7\n", out.toString());
+            }
+        } finally {
+            file.delete();
+        }
+    }
 }